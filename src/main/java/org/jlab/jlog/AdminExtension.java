@@ -1,14 +1,7 @@
 package org.jlab.jlog;
 
 import java.util.GregorianCalendar;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathExpressionException;
 import org.jlab.jlog.exception.LogRuntimeException;
-import org.jlab.jlog.util.XMLUtil;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 
 /**
  * Wraps a LogItem to provide administrative capabilities. Generally these features will only be
@@ -19,11 +12,6 @@ import org.w3c.dom.Element;
 abstract class AdminExtension {
 
   final LogItem item;
-  final Document doc;
-  final Element root;
-  final XPath xpath;
-  XPathExpression authorExpression;
-  XPathExpression createdExpression;
 
   /**
    * Constructs a new AdminExtension with the specified LogItem.
@@ -32,16 +20,6 @@ abstract class AdminExtension {
    */
   public AdminExtension(LogItem item) {
     this.item = item;
-    doc = item.getDocument();
-    root = item.getRoot();
-    xpath = item.getXPath();
-
-    try {
-      authorExpression = xpath.compile("/*/Author/username");
-      createdExpression = xpath.compile("/*/created");
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to construct XML XPath query", e);
-    }
   }
 
   /**
@@ -53,21 +31,7 @@ abstract class AdminExtension {
    * @throws LogRuntimeException If unable to set the author username
    */
   public void setAuthor(String author) throws LogRuntimeException {
-    Element authorElement = null;
-
-    try {
-      authorElement = (Element) authorExpression.evaluate(doc, XPathConstants.NODE);
-
-      if (authorElement == null) {
-        throw new LogRuntimeException("Element not found in XML DOM.");
-      }
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
-
-    authorElement.setTextContent(author);
+    item.setAuthor(author);
   }
 
   /**
@@ -82,21 +46,7 @@ abstract class AdminExtension {
       created = new GregorianCalendar();
     }
 
-    Element createdElement = null;
-
-    try {
-      createdElement = (Element) createdExpression.evaluate(doc, XPathConstants.NODE);
-
-      if (createdElement == null) {
-        throw new LogRuntimeException("Element not found in XML DOM.");
-      }
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
-
-    createdElement.setTextContent(XMLUtil.toXMLFormat(created));
+    item.setCreated(created);
   }
 
   /**
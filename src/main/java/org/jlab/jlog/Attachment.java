@@ -1,14 +1,25 @@
 package org.jlab.jlog;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.Base64;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import org.jlab.jlog.exception.LogIOException;
 import org.jlab.jlog.exception.LogRuntimeException;
 import org.jlab.jlog.util.IOUtil;
 import org.jlab.jlog.util.XMLUtil;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 /**
@@ -18,26 +29,193 @@ import org.w3c.dom.Element;
  */
 public class Attachment {
 
-  private final Element attachmentElement;
+  /** The number of base64 characters above which attachment data read from XML is spilled */
+  static final int SPILL_THRESHOLD = 64 * 1024;
 
-  Attachment(Element attachmentElement) {
-    this.attachmentElement = attachmentElement;
+  /** Base64 is decoded in whole 4 character groups, so this must be a multiple of 4 */
+  private static final int DECODE_CHUNK_CHARS = 16 * 1024;
+
+  private final String caption;
+  private final String fileName;
+  private final String mimeType;
+  private final String encoding;
+  private final String data;
+  private final File file;
+  private final boolean temporary;
+
+  /**
+   * Construct a new Attachment with the specified base64 encoded data.
+   *
+   * @param caption The caption
+   * @param fileName The file name
+   * @param mimeType The mime type
+   * @param data The base64 encoded data
+   */
+  Attachment(String caption, String fileName, String mimeType, String data) {
+    this(caption, fileName, mimeType, "base64", data, null, false);
   }
 
   /**
-   * Return the attachment caption.
+   * Construct a new Attachment with data which is read from the specified file only when it is
+   * needed.
    *
-   * @return The caption
+   * @param caption The caption
+   * @param fileName The file name
+   * @param mimeType The mime type
+   * @param file The file containing the data
    */
-  public String getCaption() {
-    Element capElement = XMLUtil.getChildElementByName(attachmentElement, "caption");
+  Attachment(String caption, String fileName, String mimeType, File file) {
+    this(caption, fileName, mimeType, "base64", null, file, false);
+  }
+
+  private Attachment(
+      String caption,
+      String fileName,
+      String mimeType,
+      String encoding,
+      String data,
+      File file,
+      boolean temporary) {
+    this.caption = caption;
+    this.fileName = fileName;
+    this.mimeType = mimeType;
+    this.encoding = encoding;
+    this.data = data;
+    this.file = file;
+    this.temporary = temporary;
+  }
+
+  /**
+   * Read a new Attachment from the specified XMLStreamReader, which must be positioned on the
+   * START_ELEMENT event of an Attachment element and is left on the matching END_ELEMENT event.
+   *
+   * <p>Base64 data is decoded as it streams by. Small attachments are kept in memory, but once the
+   * data exceeds SPILL_THRESHOLD characters it is written to a temporary file instead and the
+   * attachment is backed by that file, so the encoded data is never held in memory all at once.
+   * The temporary file is deleted by release, which the reader of the item must call once done
+   * with it; see LogItem.release.
+   *
+   * @param reader The XMLStreamReader
+   * @return The Attachment
+   * @throws XMLStreamException If unable to read the XML
+   * @throws LogIOException If unable to write the temporary file
+   * @throws LogRuntimeException If the Attachment element is missing a child element
+   */
+  static Attachment read(XMLStreamReader reader)
+      throws XMLStreamException, LogIOException, LogRuntimeException {
+    String caption = null;
+    String fileName = null;
+    String mimeType = null;
+    String encoding = null;
+    String data = null;
+    File file = null;
+
+    try {
+      while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+        switch (reader.getLocalName()) {
+          case "caption":
+            caption = reader.getElementText();
+            break;
+          case "filename":
+            fileName = reader.getElementText();
+            break;
+          case "type":
+            mimeType = reader.getElementText();
+            break;
+          case "data":
+            encoding = reader.getAttributeValue(null, "encoding");
+
+            if (encoding == null) {
+              encoding = "";
+            }
+
+            if (file != null) {
+              // A repeated data element replaces the first
+              file.delete();
+              file = null;
+            }
+
+            if (encoding.equals("url")) {
+              data = reader.getElementText();
+            } else {
+              Base64Spool spool = new Base64Spool();
+              spool.read(reader);
+              data = spool.getText();
+              file = spool.getFile();
+            }
+            break;
+          default:
+            XMLUtil.skipElement(reader);
+        }
+      }
+
+      checkPresent(caption, "caption");
+      checkPresent(fileName, "filename");
+      checkPresent(mimeType, "type");
+      checkPresent(encoding, "data");
+    } catch (XMLStreamException | LogIOException | RuntimeException e) {
+      if (file != null) {
+        file.delete();
+      }
+
+      throw e;
+    }
+
+    return new Attachment(caption, fileName, mimeType, encoding, data, file, file != null);
+  }
+
+  /**
+   * Delete the temporary file holding the data of this attachment if the data was spilled to one
+   * when it was read; see read. The data cannot be read afterwards. Has no effect on other
+   * attachments.
+   */
+  void release() {
+    if (temporary) {
+      file.delete();
+    }
+  }
 
-    if (capElement == null) {
+  private static void checkPresent(String value, String tagName) throws LogRuntimeException {
+    if (value == null) {
       throw new LogRuntimeException(
-          "Unexpected XML DOM structure; " + "Attachment caption element missing.");
+          "Unexpected XML DOM structure; " + "Attachment " + tagName + " element missing.");
+    }
+  }
+
+  /**
+   * Create an Attachment Element in the specified Document representing this attachment.
+   *
+   * @param doc The Document
+   * @return The Attachment Element
+   */
+  Element toElement(Document doc) {
+    Element attachmentElement = doc.createElement("Attachment");
+    XMLUtil.appendElementWithText(doc, attachmentElement, "caption", caption);
+    XMLUtil.appendElementWithText(doc, attachmentElement, "filename", fileName);
+    XMLUtil.appendElementWithText(doc, attachmentElement, "type", mimeType);
+    Element dataElement = doc.createElement("data");
+    attachmentElement.appendChild(dataElement);
+
+    if (!encoding.isEmpty()) {
+      dataElement.setAttribute("encoding", encoding);
+    }
+
+    if (file != null) {
+      XMLUtil.setBase64FileContent(dataElement, file);
+    } else {
+      dataElement.setTextContent(data);
     }
 
-    return capElement.getTextContent();
+    return attachmentElement;
+  }
+
+  /**
+   * Return the attachment caption.
+   *
+   * @return The caption
+   */
+  public String getCaption() {
+    return caption;
   }
 
   /**
@@ -46,14 +224,7 @@ public class Attachment {
    * @return The file name
    */
   public String getFileName() {
-    Element nameElement = XMLUtil.getChildElementByName(attachmentElement, "filename");
-
-    if (nameElement == null) {
-      throw new LogRuntimeException(
-          "Unexpected XML DOM structure; " + "Attachment filename element missing.");
-    }
-
-    return nameElement.getTextContent();
+    return fileName;
   }
 
   /**
@@ -62,14 +233,7 @@ public class Attachment {
    * @return The mime type
    */
   public String getMimeType() {
-    Element mimeElement = XMLUtil.getChildElementByName(attachmentElement, "type");
-
-    if (mimeElement == null) {
-      throw new LogRuntimeException(
-          "Unexpected XML DOM structure; " + "Attachment type element missing.");
-    }
-
-    return mimeElement.getTextContent();
+    return mimeType;
   }
 
   /**
@@ -81,15 +245,8 @@ public class Attachment {
   public String getURL() {
     String url = null;
 
-    Element dataElement = XMLUtil.getChildElementByName(attachmentElement, "data");
-
-    if (dataElement == null) {
-      throw new LogRuntimeException(
-          "Unexpected XML DOM structure; " + "Attachment data element missing.");
-    }
-
-    if (dataElement.getAttribute("encoding").equals("url")) {
-      url = dataElement.getTextContent();
+    if (encoding.equals("url")) {
+      url = data;
     }
 
     return url;
@@ -107,6 +264,26 @@ public class Attachment {
     return (getURL() != null);
   }
 
+  /**
+   * Return the size of the attachment data in bytes, or -1 if the attachment is accessed via URL.
+   * The size is computed from the base64 text or file length without decoding or reading the data.
+   *
+   * @return The size or -1
+   */
+  long getSize() {
+    long size;
+
+    if (encoding.equals("url")) {
+      size = -1;
+    } else if (file != null) {
+      size = file.length();
+    } else {
+      size = IOUtil.base64DecodedLength(data);
+    }
+
+    return size;
+  }
+
   /**
    * Return the attachment data via an InputStream. The user should close the InputStream when done.
    *
@@ -116,30 +293,143 @@ public class Attachment {
   public InputStream getData() throws LogIOException {
     InputStream is = null;
 
-    Element dataElement = XMLUtil.getChildElementByName(attachmentElement, "data");
-
-    if (dataElement == null) {
-      throw new LogRuntimeException(
-          "Unexpected XML DOM structure; " + "Attachment data element missing.");
-    }
-
-    if (dataElement.getAttribute("encoding").equals("url")) {
-      String urlStr = dataElement.getTextContent();
-
+    if (encoding.equals("url")) {
       try {
-        java.net.URL url = new URL(urlStr);
+        java.net.URL url = new URL(data);
         is = url.openStream();
       } catch (MalformedURLException e) {
         throw new LogIOException("Unable to open input stream.", e);
       } catch (IOException e) {
         throw new LogIOException("Unable to open input stream.", e);
       }
+    } else if (file != null) {
+      try {
+        is = new FileInputStream(file);
+      } catch (IOException e) {
+        throw new LogIOException("Unable to open input stream.", e);
+      }
     } else {
-      String dataStr = dataElement.getTextContent();
-      byte[] data = IOUtil.decodeBase64(dataStr);
-      is = new ByteArrayInputStream(data);
+      byte[] bytes = IOUtil.decodeBase64(data);
+      is = new ByteArrayInputStream(bytes);
     }
 
     return is;
   }
+
+  /**
+   * Collects the base64 text of a data element, decoding it into a temporary file once it grows
+   * beyond SPILL_THRESHOLD characters.
+   */
+  private static final class Base64Spool {
+
+    private final StringBuilder text = new StringBuilder();
+    private final byte[] pending = new byte[DECODE_CHUNK_CHARS];
+    private int pendingLength = 0;
+    private File file;
+    private OutputStream out;
+
+    /**
+     * Read the content of the data element at the current position of the reader, leaving it on
+     * the END_ELEMENT event.
+     *
+     * @param reader The XMLStreamReader
+     * @throws XMLStreamException If unable to read the XML
+     * @throws LogIOException If unable to write the temporary file
+     * @throws LogRuntimeException If the data is not valid base64
+     */
+    void read(XMLStreamReader reader)
+        throws XMLStreamException, LogIOException, LogRuntimeException {
+      try {
+        while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+          switch (reader.getEventType()) {
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+              append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+              break;
+            case XMLStreamConstants.START_ELEMENT:
+              XMLUtil.skipElement(reader);
+              break;
+            default:
+              break;
+          }
+        }
+
+        if (out != null) {
+          flush();
+          out.close();
+        }
+      } catch (IOException e) {
+        discard();
+        throw new LogIOException("Unable to spool attachment data to temporary file.", e);
+      } catch (IllegalArgumentException e) {
+        discard();
+        throw new LogRuntimeException("Attachment data is not valid base64.", e);
+      } catch (XMLStreamException | RuntimeException e) {
+        discard();
+        throw e;
+      }
+    }
+
+    String getText() {
+      return file == null ? text.toString() : null;
+    }
+
+    File getFile() {
+      return file;
+    }
+
+    private void append(char[] chars, int start, int length) throws IOException {
+      if (out == null) {
+        text.append(chars, start, length);
+
+        if (text.length() > SPILL_THRESHOLD) {
+          file = File.createTempFile("jlog", ".bin");
+          out = new BufferedOutputStream(new FileOutputStream(file));
+
+          char[] buffered = new char[text.length()];
+          text.getChars(0, text.length(), buffered, 0);
+          text.setLength(0);
+          decode(buffered, 0, buffered.length);
+        }
+      } else {
+        decode(chars, start, length);
+      }
+    }
+
+    private void decode(char[] chars, int start, int length) throws IOException {
+      for (int i = start; i < start + length; i++) {
+        char c = chars[i];
+
+        // Line breaks and other characters outside the alphabet are ignored, as MIME requires
+        if (c == '=' || IOUtil.isBase64Alphabet(c)) {
+          pending[pendingLength++] = (byte) c;
+
+          if (pendingLength == pending.length) {
+            flush();
+          }
+        }
+      }
+    }
+
+    private void flush() throws IOException {
+      out.write(Base64.getDecoder().decode(Arrays.copyOf(pending, pendingLength)));
+      pendingLength = 0;
+    }
+
+    private void discard() {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          // Already failing; the file is deleted regardless
+        }
+      }
+
+      if (file != null) {
+        file.delete();
+        file = null;
+      }
+    }
+  }
 }
@@ -0,0 +1,165 @@
+package org.jlab.jlog;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.jlab.jlog.exception.LogRuntimeException;
+
+/**
+ * Stops submissions from waiting on a server which is known to be down. Each submit URL has one
+ * breaker shared by all threads. After CIRCUIT_BREAKER_FAILURE_THRESHOLD consecutive transient
+ * failures the breaker opens and direct submission is not attempted, so submit falls back to the
+ * queue at once and submitNow fails fast. Once CIRCUIT_BREAKER_OPEN_MS has elapsed the breaker is
+ * half-open: a single trial submission is let through, which closes the breaker if it succeeds or
+ * opens it again if it fails. A threshold of zero disables the breaker.
+ *
+ * <p>Only failures which suggest the server is unreachable count; a submission the server rejects
+ * shows the server is up and counts as a success. An attempt which fails before reaching the
+ * server, for example because the client certificate cannot be read, counts as neither and is
+ * reported with release.
+ *
+ * @author ryans
+ */
+final class CircuitBreaker {
+
+  private static final long DEFAULT_FAILURE_THRESHOLD = 5;
+  private static final long DEFAULT_OPEN_MS = 30000;
+  private static final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+  /** The breaker state enumeration. */
+  enum State {
+    /** Submissions are attempted */
+    CLOSED,
+    /** Submissions are not attempted */
+    OPEN,
+    /** A single trial submission is in flight */
+    HALF_OPEN
+  }
+
+  private final LongSupplier clock;
+  private State state = State.CLOSED;
+  private int consecutiveFailures = 0;
+  private long openedNanos;
+
+  /**
+   * Construct a new CircuitBreaker which reads the time from the specified clock. Shared breakers
+   * are obtained via forServer.
+   *
+   * @param clock The source of the current time in nanoseconds, like System.nanoTime
+   */
+  CircuitBreaker(LongSupplier clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * Return the shared breaker for the specified submit URL, creating it if necessary.
+   *
+   * @param submitUrl The submit URL
+   * @return The breaker
+   */
+  static CircuitBreaker forServer(String submitUrl) {
+    return breakers.computeIfAbsent(
+        String.valueOf(submitUrl), url -> new CircuitBreaker(System::nanoTime));
+  }
+
+  /** Forget the state of all breakers. */
+  static void clear() {
+    breakers.clear();
+  }
+
+  /**
+   * Return true if a submission may be attempted now. If the breaker is open and the open period
+   * has elapsed the caller becomes the half-open trial and must report the outcome with
+   * recordSuccess, recordFailure, or release.
+   *
+   * @return true if the submission may be attempted
+   * @throws LogRuntimeException If a circuit breaker property is invalid
+   */
+  synchronized boolean tryAcquire() throws LogRuntimeException {
+    if (getFailureThreshold() <= 0) {
+      return true;
+    }
+
+    boolean allowed;
+
+    switch (state) {
+      case OPEN:
+        long openNanos = TimeUnit.MILLISECONDS.toNanos(getOpenMillis());
+        allowed = clock.getAsLong() - openedNanos >= openNanos;
+
+        if (allowed) {
+          state = State.HALF_OPEN;
+        }
+        break;
+      case HALF_OPEN:
+        allowed = false;
+        break;
+      default:
+        allowed = true;
+    }
+
+    return allowed;
+  }
+
+  /** Record a submission which reached the server, closing the breaker. */
+  synchronized void recordSuccess() {
+    state = State.CLOSED;
+    consecutiveFailures = 0;
+  }
+
+  /**
+   * Record a submission which failed to reach the server, opening the breaker if this was the
+   * half-open trial or the failure threshold is reached.
+   *
+   * @throws LogRuntimeException If a circuit breaker property is invalid
+   */
+  synchronized void recordFailure() throws LogRuntimeException {
+    consecutiveFailures++;
+
+    long threshold = getFailureThreshold();
+
+    if (state == State.HALF_OPEN || (threshold > 0 && consecutiveFailures >= threshold)) {
+      state = State.OPEN;
+      openedNanos = clock.getAsLong();
+    }
+  }
+
+  /**
+   * Record a submission which did not reach the server and so says nothing about it, such as one
+   * which failed locally. The failure count is unchanged. If this was the half-open trial the
+   * breaker returns to open with the open period already elapsed, so the next submission becomes
+   * the trial.
+   */
+  synchronized void release() {
+    if (state == State.HALF_OPEN) {
+      state = State.OPEN;
+    }
+  }
+
+  /**
+   * Return true if the breaker is open, in which case a retry would not be attempted.
+   *
+   * @return true if open
+   */
+  synchronized boolean isOpen() {
+    return state == State.OPEN;
+  }
+
+  /**
+   * Return the current state.
+   *
+   * @return The state
+   */
+  synchronized State getState() {
+    return state;
+  }
+
+  private static long getFailureThreshold() throws LogRuntimeException {
+    return Library.getLongProperty("CIRCUIT_BREAKER_FAILURE_THRESHOLD", DEFAULT_FAILURE_THRESHOLD);
+  }
+
+  private static long getOpenMillis() throws LogRuntimeException {
+    return Library.getLongProperty("CIRCUIT_BREAKER_OPEN_MS", DEFAULT_OPEN_MS);
+  }
+}
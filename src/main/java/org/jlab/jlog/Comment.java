@@ -1,6 +1,14 @@
 package org.jlab.jlog;
 
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashSet;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.jlab.jlog.exception.LogIOException;
 import org.jlab.jlog.exception.LogRuntimeException;
 
 /**
@@ -46,6 +54,100 @@ public class Comment extends LogItem {
     setBody(body);
   }
 
+  /**
+   * Construct a Comment from the existing Comment element at the current position of the specified
+   * XMLStreamReader. The reader is left on the matching END_ELEMENT event.
+   *
+   * @param reader The XMLStreamReader positioned on the Comment START_ELEMENT event
+   * @throws XMLStreamException If unable to read the XML
+   * @throws LogIOException If unable to spool attachment data
+   * @throws LogRuntimeException If the XML contains unexpected values
+   */
+  Comment(XMLStreamReader reader) throws XMLStreamException, LogIOException, LogRuntimeException {
+    read(reader);
+  }
+
+  /**
+   * Return true if the specified comment can be merged into this one: both comment on the same log
+   * entry, have the same author and body content type, have no unrecognized content, and their
+   * attachments together are within the ATTACH_TOTAL_MAX_BYTES limit.
+   *
+   * @param other The other comment
+   * @return true if mergeable
+   * @throws LogRuntimeException If the attachment limit property is invalid
+   */
+  boolean isMergeableWith(Comment other) throws LogRuntimeException {
+    if (!Objects.equals(getLogNumber(), other.getLogNumber())
+        || !Objects.equals(getAuthor(), other.getAuthor())
+        || hasUnrecognizedContent()
+        || other.hasUnrecognizedContent()) {
+      return false;
+    }
+
+    Body body = getBody();
+    Body otherBody = other.getBody();
+
+    if (body != null && otherBody != null && body.getType() != otherBody.getType()) {
+      return false;
+    }
+
+    long limit = Library.getLongProperty("ATTACH_TOTAL_MAX_BYTES", Long.MAX_VALUE);
+
+    return getAttachmentBytes() + other.getAttachmentBytes() <= limit;
+  }
+
+  /**
+   * Append the body, attachments, and notification addresses of the specified comment to this
+   * one, so both are submitted as a single comment. Bodies are separated by a blank line, or by a
+   * horizontal rule if HTML. The later of the two created dates is kept, since the merged comment
+   * is only complete as of the later one.
+   *
+   * @param other The other comment, which must be mergeable with this one
+   * @throws LogRuntimeException If unable to merge
+   */
+  void merge(Comment other) throws LogRuntimeException {
+    Body body = getBody();
+    Body otherBody = other.getBody();
+
+    if (body == null) {
+      setBody(otherBody);
+    } else if (otherBody != null) {
+      String separator = body.getType() == Body.ContentType.HTML ? "\n<hr/>\n" : "\n\n";
+      setBody(new Body(body.getType(), body.getContent() + separator + otherBody.getContent()));
+    }
+
+    for (Attachment attachment : other.getAttachments()) {
+      addAttachment(attachment);
+      totalAttachmentBytes += getAttachmentLength(attachment);
+    }
+
+    try {
+      GregorianCalendar otherCreated = other.getCreated();
+
+      if (otherCreated.after(getCreated())) {
+        setCreated(otherCreated);
+      }
+    } catch (LogRuntimeException e) {
+      // One of them has no valid created date, so there is nothing to compare
+    }
+
+    if (other.getEmailNotify().length > 0) {
+      Set<String> addresses = new LinkedHashSet<>(Arrays.asList(getEmailNotify()));
+      addresses.addAll(Arrays.asList(other.getEmailNotify()));
+      setEmailNotify(addresses.toArray(new String[] {}));
+    }
+  }
+
+  private long getAttachmentBytes() {
+    long total = 0;
+
+    for (Attachment attachment : getAttachments()) {
+      total += getAttachmentLength(attachment);
+    }
+
+    return total;
+  }
+
   @Override
   String getSchemaURL() throws LogRuntimeException {
     Properties props = Library.getConfiguration();
@@ -58,4 +160,9 @@ public class Comment extends LogItem {
 
     return url;
   }
+
+  @Override
+  String getSchemaResource() {
+    return "Comment.xsd";
+  }
 }
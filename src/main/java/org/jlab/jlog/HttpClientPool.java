@@ -0,0 +1,190 @@
+package org.jlab.jlog;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.security.KeyManagementException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
+import java.security.spec.InvalidKeySpecException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import org.jlab.jlog.exception.LogRuntimeException;
+import org.jlab.jlog.util.SecurityUtil;
+
+/**
+ * Holds long-lived HttpClient instances shared by all log item submissions. An HttpClient owns a
+ * connection pool, a selector thread, and a TLS session cache so reusing one allows keep-alive
+ * connections and HTTP/2 streams to be shared across submissions instead of paying for a new TCP
+ * and TLS handshake every time.
+ *
+ * <p>Clients are keyed by client certificate path, whether the server certificate is verified, and
+ * the connect timeout (which is a property of the client rather than of each request). If the
+ * cached SSLContext for the certificate is replaced (the certificate file changed on disk) a new
+ * client is built for it. The executor of the replaced client is shut down once requests still in
+ * flight on it have had SUBMIT_REQUEST_TIMEOUT_MS (and at least a minute) to finish.
+ *
+ * @author ryans
+ */
+final class HttpClientPool {
+
+  private static final long RETIRE_GRACE_MS = 60000;
+  private static final Map<Key, Entry> clients = new HashMap<>();
+  private static final AtomicInteger threadCount = new AtomicInteger();
+
+  private HttpClientPool() {
+    // Can't instantiate publicly
+  }
+
+  /**
+   * Return the shared HttpClient for the specified client certificate and trust setting, creating
+   * it if necessary.
+   *
+   * @param pemPath The PEM file path
+   * @param verifyPeer true to verify the server certificate
+   * @param connectTimeoutMillis The connect timeout in milliseconds, or zero for no timeout
+   * @return The HttpClient
+   * @throws NoSuchAlgorithmException If unable to create the SSLContext
+   * @throws IOException If unable to read the PEM file
+   * @throws CertificateException If unable to create the SSLContext
+   * @throws InvalidKeySpecException If unable to create the SSLContext
+   * @throws KeyStoreException If unable to create the SSLContext
+   * @throws UnrecoverableKeyException If unable to create the SSLContext
+   * @throws KeyManagementException If unable to create the SSLContext
+   */
+  static synchronized HttpClient getClient(
+      String pemPath, boolean verifyPeer, long connectTimeoutMillis)
+      throws NoSuchAlgorithmException,
+          IOException,
+          CertificateException,
+          InvalidKeySpecException,
+          KeyStoreException,
+          UnrecoverableKeyException,
+          KeyManagementException {
+    Key key = new Key(pemPath, verifyPeer, connectTimeoutMillis);
+
+    SSLContext sslContext = SecurityUtil.getCachedContext(pemPath, verifyPeer);
+
+    Entry entry = clients.get(key);
+
+    if (entry == null || entry.sslContext != sslContext) {
+      if (entry != null) {
+        retire(entry);
+      }
+
+      ExecutorService executor = Executors.newCachedThreadPool(new DaemonThreadFactory());
+
+      HttpClient.Builder builder =
+          HttpClient.newBuilder().sslContext(sslContext).executor(executor);
+
+      if (connectTimeoutMillis > 0) {
+        builder.connectTimeout(Duration.ofMillis(connectTimeoutMillis));
+      }
+
+      HttpClient client = builder.build();
+
+      entry = new Entry(client, executor, sslContext);
+      clients.put(key, entry);
+    }
+
+    return entry.client;
+  }
+
+  /**
+   * Shut down the executor of a replaced client after a grace period. Shutting it down at once
+   * would strand requests still in flight on the client, as their completions run on it.
+   *
+   * @param entry The replaced client
+   */
+  private static void retire(Entry entry) {
+    long grace = RETIRE_GRACE_MS;
+
+    try {
+      grace = Math.max(grace, Library.getLongProperty("SUBMIT_REQUEST_TIMEOUT_MS", 0));
+    } catch (LogRuntimeException e) {
+      // Reported when the request is built
+    }
+
+    CompletableFuture.delayedExecutor(grace, TimeUnit.MILLISECONDS)
+        .execute(entry.executor::shutdown);
+  }
+
+  /**
+   * Release all shared clients. Requests still in flight may fail. Idle connections are closed once
+   * the clients are no longer referenced. A subsequent call to getClient will create a new client.
+   */
+  static synchronized void close() {
+    for (Entry entry : clients.values()) {
+      entry.executor.shutdown();
+    }
+
+    clients.clear();
+
+    SecurityUtil.clearContextCache();
+  }
+
+  private static final class Key {
+    private final String pemPath;
+    private final boolean verifyPeer;
+    private final long connectTimeoutMillis;
+
+    Key(String pemPath, boolean verifyPeer, long connectTimeoutMillis) {
+      this.pemPath = pemPath;
+      this.verifyPeer = verifyPeer;
+      this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+
+      if (!(o instanceof Key)) {
+        return false;
+      }
+
+      Key other = (Key) o;
+
+      return verifyPeer == other.verifyPeer
+          && connectTimeoutMillis == other.connectTimeoutMillis
+          && pemPath.equals(other.pemPath);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(pemPath, verifyPeer, connectTimeoutMillis);
+    }
+  }
+
+  private static final class Entry {
+    private final HttpClient client;
+    private final ExecutorService executor;
+    private final SSLContext sslContext;
+
+    Entry(HttpClient client, ExecutorService executor, SSLContext sslContext) {
+      this.client = client;
+      this.executor = executor;
+      this.sslContext = sslContext;
+    }
+  }
+
+  private static final class DaemonThreadFactory implements ThreadFactory {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "jlog-http-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
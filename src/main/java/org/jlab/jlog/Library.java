@@ -2,6 +2,9 @@ package org.jlab.jlog;
 
 import java.io.*;
 import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jlab.jlog.exception.LogIOException;
 import org.jlab.jlog.exception.LogRuntimeException;
 
 /**
@@ -12,6 +15,7 @@ import org.jlab.jlog.exception.LogRuntimeException;
  */
 public final class Library {
 
+  private static final Logger logger = Logger.getLogger(Library.class.getName());
   private static final Properties defaultConfiguration;
   private static Properties userConfiguration;
 
@@ -50,12 +54,32 @@ public final class Library {
     } catch (IOException e) {
       e.printStackTrace(); // Probably a permissions or format issue...
     }
+
+    startOutboxSender();
   }
 
   private Library() {
     // Can't instantiate publicly
   }
 
+  /**
+   * Start the write-behind outbox sender if the OUTBOX_PATH configuration property is set, so items
+   * left by an earlier run are sent without waiting for the application to submit another. A
+   * failure is logged rather than thrown so the library can still be used. The spool mover is
+   * started by the first submit or queue call instead; see Spool.
+   */
+  private static void startOutboxSender() {
+    String outboxPath = userConfiguration.getProperty("OUTBOX_PATH");
+
+    try {
+      if (outboxPath != null && !outboxPath.isEmpty()) {
+        Outbox.getDefault();
+      }
+    } catch (LogRuntimeException e) {
+      logger.log(Level.WARNING, "Unable to start outbox sender", e);
+    }
+  }
+
   /**
    * Get the configuration properties.
    *
@@ -74,6 +98,29 @@ public final class Library {
     Library.userConfiguration = configuration;
   }
 
+  /**
+   * Return a numeric configuration property, or the specified default if the property is missing
+   * or empty.
+   *
+   * @param name The property name
+   * @param defaultValue The value to use if the property is undefined
+   * @return The value
+   * @throws LogRuntimeException If the property is not a number
+   */
+  static long getLongProperty(String name, long defaultValue) throws LogRuntimeException {
+    String value = getConfiguration().getProperty(name);
+
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      throw new LogRuntimeException(name + " must be a number.", e);
+    }
+  }
+
   /**
    * Returns the library version String. A programmatically accessible version String is a
    * requirement of JLab accelerator software certification.
@@ -95,6 +142,58 @@ public final class Library {
     return release.getProperty("RELEASE_DATE");
   }
 
+  /**
+   * Return the number of log entries and comments waiting in the queue directory (see
+   * LogItem.getQueuePath), counting queue files and journal records. Items leased by a
+   * QueueDrainer are not counted. The count may be up to QUEUE_MEASURE_TTL_MS milliseconds old;
+   * see QueueCapacity.
+   *
+   * @return The queue depth
+   * @throws LogIOException If unable to read the queue
+   * @throws LogRuntimeException If the QUEUE_MEASURE_TTL_MS property is invalid
+   */
+  public static long getQueueDepth() throws LogIOException, LogRuntimeException {
+    return QueueCapacity.getUsage(new File(LogItem.getQueuePath())).getItems();
+  }
+
+  /**
+   * Return the number of bytes of the log entries and comments waiting in the queue directory,
+   * counting queue files and journal segments. Items leased by a QueueDrainer are not counted. The
+   * size may be up to QUEUE_MEASURE_TTL_MS milliseconds old; see QueueCapacity.
+   *
+   * @return The queue size in bytes
+   * @throws LogIOException If unable to read the queue
+   * @throws LogRuntimeException If the QUEUE_MEASURE_TTL_MS property is invalid
+   */
+  public static long getQueueBytes() throws LogIOException, LogRuntimeException {
+    return QueueCapacity.getUsage(new File(LogItem.getQueuePath())).getBytes();
+  }
+
+  /**
+   * Release the shared resources held by the library. Call this when the application is done
+   * submitting. Any submissions made afterwards simply create new resources. Shutting down:
+   *
+   * <ul>
+   *   <li>closes the pooled HTTP connections used to submit log entries and comments
+   *   <li>clears the cached schemas used to validate them
+   *   <li>forgets the circuit breaker state of the server
+   *   <li>forgets the cached queue measurements and queue file log numbers
+   *   <li>stops the write-behind outbox sender and the spool mover; items not yet sent stay in the
+   *       outbox or spool
+   *   <li>closes the open queue journal segments so they can be drained
+   * </ul>
+   */
+  public static void shutdown() {
+    HttpClientPool.close();
+    SchemaCache.clear();
+    CircuitBreaker.clear();
+    QueueCapacity.clear();
+    QueueCoalescer.clear();
+    Outbox.closeDefault();
+    Spool.closeDefault();
+    QueueJournal.closeAll();
+  }
+
   /**
    * Set the logbook server. This updates the SUBMIT, FETCH, SCHEMA, and COMMENT URLs.
    *
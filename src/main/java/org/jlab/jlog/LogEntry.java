@@ -1,15 +1,22 @@
 package org.jlab.jlog;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathExpressionException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import org.jlab.jlog.exception.AttachmentSizeException;
 import org.jlab.jlog.exception.InvalidXMLException;
 import org.jlab.jlog.exception.LogException;
@@ -20,9 +27,8 @@ import org.jlab.jlog.exception.SchemaUnavailableException;
 import org.jlab.jlog.util.IOUtil;
 import org.jlab.jlog.util.SecurityUtil;
 import org.jlab.jlog.util.XMLUtil;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 /**
  * An electronic log book log entry.
@@ -31,35 +37,20 @@ import org.xml.sax.SAXException;
  */
 public class LogEntry extends LogItem {
 
-  final XPathExpression titleExpression;
-  final XPathExpression logbooksExpression;
-  final XPathExpression logbookListExpression;
-  final XPathExpression entrymakersExpression;
-  final XPathExpression usernameListExpression;
-  final XPathExpression stickyExpression;
-  final XPathExpression tagsExpression;
-  final XPathExpression tagListExpression;
-  final XPathExpression referencesExpression;
-  final XPathExpression revisionReasonExpression;
-  final XPathExpression problemReportExpression;
-
-  {
-    try {
-      titleExpression = xpath.compile("/Logentry/title");
-      logbooksExpression = xpath.compile("/Logentry/Logbooks");
-      logbookListExpression = xpath.compile("/Logentry/Logbooks/logbook");
-      entrymakersExpression = xpath.compile("/Logentry/Entrymakers");
-      usernameListExpression = xpath.compile("/Logentry/Entrymakers/Entrymaker/username");
-      stickyExpression = xpath.compile("/Logentry/sticky");
-      tagsExpression = xpath.compile("/Logentry/Tags");
-      tagListExpression = xpath.compile("/Logentry/Tags/tag");
-      referencesExpression = xpath.compile("/Logentry/References");
-      revisionReasonExpression = xpath.compile("/Logentry/revision_reason");
-      problemReportExpression = xpath.compile("/Logentry/ProblemReport");
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to construct XML XPath query", e);
-    }
-  }
+  private static final String CDATA_CHUNK_SIZE_PROPERTY = "jdk.xml.cdataChunkSize";
+  private static final long DEFAULT_FETCH_CONNECT_TIMEOUT_MS = 10000;
+  private static final long DEFAULT_FETCH_READ_TIMEOUT_MS = 60000;
+  private static final XMLInputFactory inputFactory = newInputFactory();
+  private String title;
+  private final List<String> logbooks = new ArrayList<>();
+  // Optional containers are null when the element is absent and empty when it has no children
+  private List<String> entrymakers;
+  private List<String> tags;
+  private List<Reference> references;
+  private List<Comment> comments;
+  private boolean sticky = false;
+  private String revisionReason;
+  private ProblemReport problemReport;
 
   /**
    * Construct a new LogEntry with the specified title and log books designation.
@@ -71,11 +62,32 @@ public class LogEntry extends LogItem {
   public LogEntry(String title, String books) throws LogRuntimeException {
     super("Logentry");
 
-    XMLUtil.appendElementWithText(doc, root, "title", title);
+    this.title = title;
+    addCSV(logbooks, books);
+  }
 
-    Element logbooks = doc.createElement("Logbooks");
-    root.appendChild(logbooks);
-    XMLUtil.appendCommaDelimitedElementsWithText(doc, logbooks, "logbook", books);
+  /**
+   * Construct a new LogEntry from the specified template. This is a cheap way to create many
+   * similar entries, such as automated posts which share log books, tags, entry makers, references
+   * and notifications but differ in title and body: prepare the template once and then construct
+   * each entry from it and set the fields which differ.
+   *
+   * <p>The fields of the template are copied, except the created date is set to the current time
+   * and the log number, comments, and revision reason are not copied since the copy is a new log
+   * entry. Later changes to the template do not affect the copy and vice versa.
+   *
+   * @param template The template
+   */
+  public LogEntry(LogEntry template) {
+    super(template);
+
+    title = template.title;
+    logbooks.addAll(template.logbooks);
+    entrymakers = copyList(template.entrymakers);
+    tags = copyList(template.tags);
+    references = copyList(template.references);
+    sticky = template.sticky;
+    problemReport = template.problemReport;
   }
 
   /**
@@ -106,6 +118,125 @@ public class LogEntry extends LogItem {
     checkAndTallyAttachmentSize();
   }
 
+  private LogEntry() {
+    // Populated by read
+  }
+
+  /**
+   * Read the log entry or comment in the specified queue file. The root element determines which:
+   * a Comment root gives a Comment and anything else a LogEntry. Attachment sizes are not checked
+   * as they were checked before the item was queued.
+   *
+   * @param file The queue file
+   * @return The log entry or comment
+   * @throws MalformedXMLException If the XML is malformed
+   * @throws LogIOException If unable to read the file
+   * @throws LogRuntimeException If the XML contains unexpected values
+   */
+  static LogItem readQueuedItem(File file)
+      throws MalformedXMLException, LogIOException, LogRuntimeException {
+    try (InputStream in = new FileInputStream(file)) {
+      return readQueuedItem(in, file.getPath());
+    } catch (IOException e) {
+      throw new LogIOException("Unable to parse XML file.", e);
+    }
+  }
+
+  /**
+   * Read the log entry or comment in the specified stream; see readQueuedItem(File). The stream is
+   * not closed.
+   *
+   * @param in The stream
+   * @param systemId The system ID (file name) used in error messages
+   * @return The log entry or comment
+   * @throws MalformedXMLException If the XML is malformed
+   * @throws LogIOException If unable to read the stream
+   * @throws LogRuntimeException If the XML contains unexpected values
+   */
+  static LogItem readQueuedItem(InputStream in, String systemId)
+      throws MalformedXMLException, LogIOException, LogRuntimeException {
+    LogItem item;
+
+    try {
+      XMLStreamReader reader = inputFactory.createXMLStreamReader(systemId, in);
+
+      try {
+        while (reader.next() != XMLStreamConstants.START_ELEMENT) {}
+
+        if (reader.getLocalName().equals("Comment")) {
+          item = new Comment(reader);
+        } else {
+          LogEntry entry = new LogEntry();
+          entry.read(reader);
+          item = entry;
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException e) {
+      throw new MalformedXMLException("File is not well formed XML.", e);
+    }
+
+    return item;
+  }
+
+  /**
+   * Return the log number of the item in the specified queue file if its root element has the
+   * specified name, without reading the rest of the item. The log number follows at most the
+   * created and Author elements, so the body and attachments are never read.
+   *
+   * @param file The queue file
+   * @param rootTagName The root element name, such as Logentry or Comment, or null for any
+   * @return The log number, or null if the root element differs or there is no log number
+   * @throws MalformedXMLException If the XML is malformed
+   * @throws LogIOException If unable to read the file
+   */
+  static Long readQueuedLogNumber(File file, String rootTagName)
+      throws MalformedXMLException, LogIOException {
+    try (InputStream in = new FileInputStream(file)) {
+      XMLStreamReader reader = inputFactory.createXMLStreamReader(file.getPath(), in);
+
+      try {
+        while (reader.next() != XMLStreamConstants.START_ELEMENT) {}
+
+        if (rootTagName != null && !reader.getLocalName().equals(rootTagName)) {
+          return null;
+        }
+
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+          switch (reader.getLocalName()) {
+            case "lognumber":
+              return Long.valueOf(reader.getElementText().trim());
+            case "created":
+            case "Author":
+              XMLUtil.skipElement(reader);
+              break;
+            default:
+              return null;
+          }
+        }
+
+        return null;
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException | NumberFormatException e) {
+      throw new MalformedXMLException("File is not well formed XML.", e);
+    } catch (IOException e) {
+      throw new LogIOException("Unable to parse XML file.", e);
+    }
+  }
+
+  /**
+   * Read the fields of this log entry from the specified file path or URL with a streaming (StAX)
+   * parser. Unlike building a DOM of the whole file, attachment data is decoded as it streams by,
+   * and large attachments are spilled to temporary files, so the memory needed does not grow with
+   * the size of the attachments.
+   *
+   * @param filePath The file path or URL
+   * @throws MalformedXMLException If the XML is malformed
+   * @throws LogIOException If unable to read the XML
+   */
   private void parse(String filePath) throws MalformedXMLException, LogIOException {
     Properties props = Library.getConfiguration();
     boolean ignoreServerCert = "true".equals(props.getProperty("IGNORE_SERVER_CERT_ERRORS"));
@@ -118,11 +249,20 @@ public class LogEntry extends LogItem {
           throw new LogRuntimeException("Unable to disable server certificate check", e);
         }
       }
-      doc = builder.parse(filePath);
-      root = doc.getDocumentElement();
 
-      SecurityUtil.enableServerCertificateCheck();
-    } catch (SAXException e) {
+      try (InputStream in = openStream(filePath)) {
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(filePath, in);
+
+        try {
+          // Skip the prolog, which may include a document type declaration
+          while (reader.next() != XMLStreamConstants.START_ELEMENT) {}
+
+          read(reader);
+        } finally {
+          reader.close();
+        }
+      }
+    } catch (XMLStreamException e) {
       throw new MalformedXMLException("File is not well formed XML.", e);
     } catch (IOException e) {
       throw new LogIOException("Unable to parse XML file.", e);
@@ -131,177 +271,282 @@ public class LogEntry extends LogItem {
     }
   }
 
-  /**
-   * Set the problem report information. Use null to clear it.
-   *
-   * @param report The problem report information.
-   */
-  public void setProblemReport(ProblemReport report) {
-    Element problemReportElement = null;
+  private static XMLInputFactory newInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+
+    // Lazy attachments are queued as CDATA, which by default is reported as one huge event
+    if (factory.isPropertySupported(CDATA_CHUNK_SIZE_PROPERTY)) {
+      factory.setProperty(CDATA_CHUNK_SIZE_PROPERTY, 64 * 1024);
+    }
+
+    return factory;
+  }
+
+  private static InputStream openStream(String filePath) throws IOException, LogRuntimeException {
+    URL url;
 
     try {
-      problemReportElement = (Element) problemReportExpression.evaluate(doc, XPathConstants.NODE);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
+      url = new URL(filePath);
+    } catch (MalformedURLException e) {
+      return new FileInputStream(filePath);
     }
 
-    if (report == null) {
-      if (problemReportElement == null) {
-        doc.removeChild(problemReportElement);
-      }
+    URLConnection connection = url.openConnection();
+    connection.setConnectTimeout(
+        getTimeoutProperty("FETCH_CONNECT_TIMEOUT_MS", DEFAULT_FETCH_CONNECT_TIMEOUT_MS));
+    connection.setReadTimeout(
+        getTimeoutProperty("FETCH_READ_TIMEOUT_MS", DEFAULT_FETCH_READ_TIMEOUT_MS));
 
-      return;
+    return connection.getInputStream();
+  }
+
+  private static int getTimeoutProperty(String name, long defaultValue)
+      throws LogRuntimeException {
+    long timeout = Library.getLongProperty(name, defaultValue);
+
+    // URLConnection treats zero as no timeout and rejects negative values
+    return (int) Math.min(Math.max(timeout, 0), Integer.MAX_VALUE);
+  }
+
+  @Override
+  boolean readElement(XMLStreamReader reader)
+      throws XMLStreamException, LogIOException, LogRuntimeException {
+    if (!reader.getLocalName().equals("Comments")) {
+      return super.readElement(reader);
     }
 
-    if (problemReportElement == null) {
-      problemReportElement = doc.createElement("ProblemReport");
-      root.appendChild(problemReportElement);
+    comments = new ArrayList<>();
+
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if (reader.getLocalName().equals("Comment")) {
+        comments.add(new Comment(reader));
+      } else {
+        XMLUtil.skipElement(reader);
+      }
     }
 
-    problemReportElement.setAttribute("type", report.getType().name());
+    return true;
+  }
+
+  @Override
+  boolean readElement(Element element) throws LogRuntimeException {
+    switch (element.getTagName()) {
+      case "title":
+        title = element.getTextContent();
+        break;
+      case "Logbooks":
+        logbooks.addAll(getChildText(element, "logbook"));
+        break;
+      case "Entrymakers":
+        entrymakers = new ArrayList<>();
+
+        for (Element entrymaker : getChildElements(element, "Entrymaker")) {
+          entrymakers.addAll(getChildText(entrymaker, "username"));
+        }
+        break;
+      case "Tags":
+        tags = getChildText(element, "tag");
+        break;
+      case "References":
+        references = new ArrayList<>();
+
+        for (Element refElement : getChildElements(element, null)) {
+          String type = refElement.getAttribute("type");
+          String id = refElement.getTextContent();
+          references.add(new Reference(type, id));
+        }
+        break;
+      case "sticky":
+        try {
+          sticky = Integer.parseInt(element.getTextContent()) != 0;
+        } catch (NumberFormatException e) {
+          throw new LogRuntimeException("Unable to obtain sticky due to non-numeric format.", e);
+        }
+        break;
+      case "revision_reason":
+        revisionReason = element.getTextContent();
+        break;
+      case "ProblemReport":
+        problemReport = readProblemReport(element);
+        break;
+      default:
+        return super.readElement(element);
+    }
+
+    return true;
+  }
+
+  private static ProblemReport readProblemReport(Element problemReportElement)
+      throws LogRuntimeException {
+    ProblemReportType type = ProblemReportType.valueOf(problemReportElement.getAttribute("type"));
 
     Element needsAttentionElement =
         XMLUtil.getChildElementByName(problemReportElement, "needs_attention");
 
     if (needsAttentionElement == null) {
-      needsAttentionElement = doc.createElement("needs_attention");
-      problemReportElement.appendChild(needsAttentionElement);
+      throw new LogRuntimeException(
+          "Unexpected XML DOM structure; " + "ProblemReport needsAttention element missing.");
     }
 
-    needsAttentionElement.setTextContent(report.isNeedsAttention() ? "1" : "0");
+    boolean needsAttention = needsAttentionElement.getTextContent().equals("1");
 
     Element systemIdElement = XMLUtil.getChildElementByName(problemReportElement, "system_id");
 
     if (systemIdElement == null) {
-      systemIdElement = doc.createElement("system_id");
-      problemReportElement.appendChild(systemIdElement);
+      throw new LogRuntimeException(
+          "Unexpected XML DOM structure; " + "ProblemReport system_id element missing.");
     }
 
-    systemIdElement.setTextContent(String.valueOf(report.getSystemId()));
+    int systemId;
+
+    try {
+      systemId = Integer.parseInt(systemIdElement.getTextContent());
+    } catch (NumberFormatException e) {
+      throw new LogRuntimeException(
+          "Unexpected XML DOM structure; ProblemReport system_id value"
+              + " is not an integer or is out-of-range",
+          e);
+    }
 
     Element groupIdElement = XMLUtil.getChildElementByName(problemReportElement, "group_id");
 
     if (groupIdElement == null) {
-      groupIdElement = doc.createElement("group_id");
-      problemReportElement.appendChild(groupIdElement);
+      throw new LogRuntimeException(
+          "Unexpected XML DOM structure; " + "ProblemReport group_id element missing.");
     }
 
-    groupIdElement.setTextContent(String.valueOf(report.getGroupId()));
+    int groupId;
 
-    Element componentsElement = XMLUtil.getChildElementByName(problemReportElement, "Components");
+    try {
+      groupId = Integer.parseInt(groupIdElement.getTextContent());
+    } catch (NumberFormatException e) {
+      throw new LogRuntimeException(
+          "Unexpected XML DOM structure; ProblemReport group_id value"
+              + " is not an integer or is out-of-range",
+          e);
+    }
 
-    if (report.getComponentId() == null) {
-      if (componentsElement != null) {
-        problemReportElement.removeChild(componentsElement);
-      }
-    } else {
-      if (componentsElement == null) {
-        componentsElement = doc.createElement("Components");
-        problemReportElement.appendChild(componentsElement);
-      }
+    Element componentsElement = XMLUtil.getChildElementByName(problemReportElement, "Components");
 
+    Integer componentId = null;
+    if (componentsElement != null) {
       Element componentIdElement = XMLUtil.getChildElementByName(componentsElement, "component_id");
 
-      if (componentIdElement == null) {
-        componentIdElement = doc.createElement("component_id");
-        componentsElement.appendChild(componentIdElement);
+      if (componentIdElement != null) {
+        try {
+          componentId = Integer.parseInt(componentIdElement.getTextContent());
+        } catch (NumberFormatException e) {
+          throw new LogRuntimeException(
+              "Unexpected XML DOM structure; ProblemReport component_id value"
+                  + " is not an integer or is out-of-range",
+              e);
+        }
       }
-
-      componentIdElement.setTextContent(String.valueOf(report.getComponentId()));
     }
-  }
 
-  /**
-   * Get the problem report information.
-   *
-   * @return The problem report information or null if none
-   */
-  public ProblemReport getProblemReport() {
-    Element problemReportElement = null;
-    ProblemReport report = null;
+    return new ProblemReport(type, needsAttention, systemId, groupId, componentId);
+  }
 
-    try {
-      problemReportElement = (Element) problemReportExpression.evaluate(doc, XPathConstants.NODE);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
+  @Override
+  void writeItemElements(Document doc, Element root) {
+    if (title != null) {
+      XMLUtil.appendElementWithText(doc, root, "title", title);
     }
 
-    if (problemReportElement != null) {
-      ProblemReportType type = ProblemReportType.valueOf(problemReportElement.getAttribute("type"));
-
-      Element needsAttentionElement =
-          XMLUtil.getChildElementByName(problemReportElement, "needs_attention");
+    Element logbooksElement = doc.createElement("Logbooks");
+    root.appendChild(logbooksElement);
 
-      if (needsAttentionElement == null) {
-        throw new LogRuntimeException(
-            "Unexpected XML DOM structure; " + "ProblemReport needsAttention element missing.");
-      }
-
-      boolean needsAttention = needsAttentionElement.getTextContent().equals("1");
+    for (String book : logbooks) {
+      XMLUtil.appendElementWithText(doc, logbooksElement, "logbook", book);
+    }
 
-      Element systemIdElement = XMLUtil.getChildElementByName(problemReportElement, "system_id");
+    if (entrymakers != null) {
+      Element entrymakersElement = doc.createElement("Entrymakers");
+      root.appendChild(entrymakersElement);
 
-      if (systemIdElement == null) {
-        throw new LogRuntimeException(
-            "Unexpected XML DOM structure; " + "ProblemReport system_id element missing.");
+      for (String username : entrymakers) {
+        Element entrymakerElement = doc.createElement("Entrymaker");
+        entrymakersElement.appendChild(entrymakerElement);
+        XMLUtil.appendElementWithText(doc, entrymakerElement, "username", username);
       }
+    }
 
-      int systemId;
+    if (tags != null) {
+      Element tagsElement = doc.createElement("Tags");
+      root.appendChild(tagsElement);
 
-      try {
-        systemId = Integer.parseInt(systemIdElement.getTextContent());
-      } catch (NumberFormatException e) {
-        throw new LogRuntimeException(
-            "Unexpected XML DOM structure; ProblemReport system_id value"
-                + " is not an integer or is out-of-range",
-            e);
+      for (String tag : tags) {
+        XMLUtil.appendElementWithText(doc, tagsElement, "tag", tag);
       }
+    }
 
-      Element groupIdElement = XMLUtil.getChildElementByName(problemReportElement, "group_id");
+    if (references != null) {
+      Element referencesElement = doc.createElement("References");
+      root.appendChild(referencesElement);
 
-      if (groupIdElement == null) {
-        throw new LogRuntimeException(
-            "Unexpected XML DOM structure; " + "ProblemReport group_id element missing.");
+      for (Reference ref : references) {
+        Element refElement =
+            XMLUtil.appendElementWithText(doc, referencesElement, "reference", ref.getId());
+        refElement.setAttribute("type", ref.getType());
       }
+    }
 
-      int groupId;
+    if (sticky) {
+      XMLUtil.appendElementWithText(doc, root, "sticky", "1");
+    }
 
-      try {
-        groupId = Integer.parseInt(groupIdElement.getTextContent());
-      } catch (NumberFormatException e) {
-        throw new LogRuntimeException(
-            "Unexpected XML DOM structure; ProblemReport group_id value"
-                + " is not an integer or is out-of-range",
-            e);
-      }
+    if (revisionReason != null) {
+      XMLUtil.appendElementWithText(doc, root, "revision_reason", revisionReason);
+    }
 
-      Element componentsElement = XMLUtil.getChildElementByName(problemReportElement, "Components");
-
-      Integer componentId = null;
-      if (componentsElement != null) {
-        Element componentIdElement =
-            XMLUtil.getChildElementByName(componentsElement, "component_id");
-
-        if (componentIdElement != null) {
-          try {
-            componentId = Integer.parseInt(componentIdElement.getTextContent());
-          } catch (NumberFormatException e) {
-            throw new LogRuntimeException(
-                "Unexpected XML DOM structure; ProblemReport component_id value"
-                    + " is not an integer or is out-of-range",
-                e);
-          }
-        }
+    if (problemReport != null) {
+      Element problemReportElement = doc.createElement("ProblemReport");
+      root.appendChild(problemReportElement);
+      problemReportElement.setAttribute("type", problemReport.getType().name());
+      String needsAttention = problemReport.isNeedsAttention() ? "1" : "0";
+      XMLUtil.appendElementWithText(doc, problemReportElement, "needs_attention", needsAttention);
+      XMLUtil.appendElementWithText(
+          doc, problemReportElement, "system_id", String.valueOf(problemReport.getSystemId()));
+      XMLUtil.appendElementWithText(
+          doc, problemReportElement, "group_id", String.valueOf(problemReport.getGroupId()));
+
+      if (problemReport.getComponentId() != null) {
+        Element componentsElement = doc.createElement("Components");
+        problemReportElement.appendChild(componentsElement);
+        XMLUtil.appendElementWithText(
+            doc,
+            componentsElement,
+            "component_id",
+            String.valueOf(problemReport.getComponentId()));
       }
+    }
 
-      report = new ProblemReport(type, needsAttention, systemId, groupId, componentId);
+    if (comments != null) {
+      Element commentsElement = doc.createElement("Comments");
+      root.appendChild(commentsElement);
+
+      for (Comment comment : comments) {
+        commentsElement.appendChild(comment.toElement(doc));
+      }
     }
+  }
+
+  /**
+   * Set the problem report information. Use null to clear it.
+   *
+   * @param report The problem report information.
+   */
+  public void setProblemReport(ProblemReport report) {
+    problemReport = report;
+  }
 
-    return report;
+  /**
+   * Get the problem report information.
+   *
+   * @return The problem report information or null if none
+   */
+  public ProblemReport getProblemReport() {
+    return problemReport;
   }
 
   /**
@@ -369,22 +614,21 @@ public class LogEntry extends LogItem {
    * @throws LogRuntimeException If unable to set the revision reason
    */
   void setRevisionReason(String reason) throws LogRuntimeException {
-    Element revisionReasonElement = null;
-
-    try {
-      revisionReasonElement = (Element) revisionReasonExpression.evaluate(doc, XPathConstants.NODE);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
+    // A null reason still produces an (empty) revision_reason element
+    revisionReason = reason == null ? "" : reason;
+  }
 
-    if (revisionReasonElement == null) {
-      revisionReasonElement = doc.createElement("revision_reason");
-      root.appendChild(revisionReasonElement);
+  /**
+   * Add a Comment to this log entry.
+   *
+   * @param comment The comment
+   */
+  void addComment(Comment comment) {
+    if (comments == null) {
+      comments = new ArrayList<>();
     }
 
-    revisionReasonElement.setTextContent(reason);
+    comments.add(comment);
   }
 
   /**
@@ -410,21 +654,7 @@ public class LogEntry extends LogItem {
       return;
     }
 
-    Element logbooksElement = null;
-
-    try {
-      logbooksElement = (Element) logbooksExpression.evaluate(doc, XPathConstants.NODE);
-
-      if (logbooksElement == null) {
-        throw new LogRuntimeException("Element not found in XML DOM.");
-      }
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
-
-    XMLUtil.appendCommaDelimitedElementsWithText(doc, logbooksElement, "logbook", books);
+    addCSV(logbooks, books);
   }
 
   /**
@@ -450,22 +680,8 @@ public class LogEntry extends LogItem {
       books = "";
     }
 
-    Element logbooksElement = null;
-
-    try {
-      logbooksElement = (Element) logbooksExpression.evaluate(doc, XPathConstants.NODE);
-
-      if (logbooksElement == null) {
-        throw new LogRuntimeException("Element not found in XML DOM.");
-      }
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
-
-    XMLUtil.removeChildren(logbooksElement);
-    XMLUtil.appendCommaDelimitedElementsWithText(doc, logbooksElement, "logbook", books);
+    logbooks.clear();
+    addCSV(logbooks, books);
   }
 
   /**
@@ -485,21 +701,7 @@ public class LogEntry extends LogItem {
    * @throws LogRuntimeException If unable to return the log books
    */
   public String[] getLogbooks() throws LogRuntimeException {
-    NodeList logbookElements = null;
-
-    try {
-      logbookElements = (NodeList) logbookListExpression.evaluate(doc, XPathConstants.NODESET);
-
-      if (logbookElements == null) {
-        throw new LogRuntimeException("Element not found in XML DOM.");
-      }
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
-
-    return XMLUtil.buildArrayFromText(logbookElements);
+    return logbooks.toArray(new String[] {});
   }
 
   /**
@@ -525,22 +727,11 @@ public class LogEntry extends LogItem {
       return;
     }
 
-    Element tagsElement = null;
-
-    try {
-      tagsElement = (Element) tagsExpression.evaluate(doc, XPathConstants.NODE);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
+    if (this.tags == null) {
+      this.tags = new ArrayList<>();
     }
 
-    if (tagsElement == null) {
-      tagsElement = doc.createElement("Tags");
-      root.appendChild(tagsElement);
-    }
-
-    XMLUtil.appendCommaDelimitedElementsWithText(doc, tagsElement, "tag", tags);
+    addCSV(this.tags, tags);
   }
 
   /**
@@ -562,27 +753,16 @@ public class LogEntry extends LogItem {
    * @throws LogRuntimeException If unable to set the tags
    */
   public void setTags(String tags) throws LogRuntimeException {
-    Element tagsElement = null;
-
-    try {
-      tagsElement = (Element) tagsExpression.evaluate(doc, XPathConstants.NODE);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
-
-    if (tagsElement == null) {
+    if (this.tags == null) {
       if (tags != null && !tags.isEmpty()) {
-        tagsElement = doc.createElement("Tags");
-        root.appendChild(tagsElement);
+        this.tags = new ArrayList<>();
       }
     } else {
-      XMLUtil.removeChildren(tagsElement);
+      this.tags.clear();
     }
 
     if (tags != null && !tags.isEmpty()) {
-      XMLUtil.appendCommaDelimitedElementsWithText(doc, tagsElement, "tag", tags);
+      addCSV(this.tags, tags);
     }
   }
 
@@ -603,24 +783,11 @@ public class LogEntry extends LogItem {
    * @throws LogRuntimeException If unable to get the tags
    */
   public String[] getTags() throws LogRuntimeException {
-    NodeList tagElements = null;
-    String[] tags;
-
-    try {
-      tagElements = (NodeList) tagListExpression.evaluate(doc, XPathConstants.NODESET);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
-
-    if (tagElements != null) {
-      tags = XMLUtil.buildArrayFromText(tagElements);
-    } else {
-      tags = new String[0];
+    if (tags == null) {
+      return new String[0];
     }
 
-    return tags;
+    return tags.toArray(new String[] {});
   }
 
   /**
@@ -635,26 +802,11 @@ public class LogEntry extends LogItem {
       return;
     }
 
-    Element referencesElement = null;
-
-    try {
-      referencesElement = (Element) referencesExpression.evaluate(doc, XPathConstants.NODE);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
-
-    if (referencesElement == null) {
-      referencesElement = doc.createElement("References");
-      root.appendChild(referencesElement);
+    if (references == null) {
+      references = new ArrayList<>();
     }
 
-    Element refElement = doc.createElement("reference");
-    referencesElement.appendChild(refElement);
-
-    refElement.setAttribute("type", ref.getType());
-    refElement.setTextContent(ref.getId());
+    references.add(ref);
   }
 
   /**
@@ -664,33 +816,10 @@ public class LogEntry extends LogItem {
    * @throws LogRuntimeException If unable to get the references
    */
   public Reference[] getReferences() throws LogRuntimeException {
-    List<Reference> references = new ArrayList<>();
-
-    Element referencesElement = null;
-
-    try {
-      referencesElement = (Element) referencesExpression.evaluate(doc, XPathConstants.NODE);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
+    if (references == null) {
+      return new Reference[0];
     }
 
-    if (referencesElement != null) {
-      NodeList children = referencesElement.getChildNodes();
-
-      for (int i = 0; i < children.getLength(); i++) {
-        if (!(children.item(i) instanceof Element)) {
-          throw new LogRuntimeException(
-              "Unexpected node type in XML DOM; " + "expected reference element.");
-        }
-
-        Element refElement = (Element) children.item(i);
-        String type = refElement.getAttribute("type");
-        String id = refElement.getTextContent();
-        references.add(new Reference(type, id));
-      }
-    }
     return references.toArray(new Reference[] {});
   }
 
@@ -700,19 +829,7 @@ public class LogEntry extends LogItem {
    * @throws LogRuntimeException If unable to remove the references
    */
   public void deleteReferences() throws LogRuntimeException {
-    Element referencesElement = null;
-
-    try {
-      referencesElement = (Element) referencesExpression.evaluate(doc, XPathConstants.NODE);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
-
-    if (referencesElement != null) {
-      root.removeChild(referencesElement);
-    }
+    references = null;
   }
 
   /**
@@ -722,21 +839,7 @@ public class LogEntry extends LogItem {
    * @throws LogRuntimeException If unable to set the title
    */
   public void setTitle(String title) throws LogRuntimeException {
-    Element titleElement = null;
-
-    try {
-      titleElement = (Element) titleExpression.evaluate(doc, XPathConstants.NODE);
-
-      if (titleElement == null) {
-        throw new LogRuntimeException("Element not found in XML DOM.");
-      }
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
-
-    titleElement.setTextContent(title);
+    this.title = title;
   }
 
   /**
@@ -746,21 +849,7 @@ public class LogEntry extends LogItem {
    * @throws LogRuntimeException If unable to get the title
    */
   public String getTitle() throws LogRuntimeException {
-    Element titleElement = null;
-
-    try {
-      titleElement = (Element) titleExpression.evaluate(doc, XPathConstants.NODE);
-
-      if (titleElement == null) {
-        throw new LogRuntimeException("Element not found in XML DOM.");
-      }
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
-
-    return titleElement.getTextContent();
+    return title;
   }
 
   /**
@@ -780,24 +869,11 @@ public class LogEntry extends LogItem {
    * @throws LogRuntimeException If unable to add entry makers
    */
   public void addEntryMakers(String entrymakers) throws LogRuntimeException {
-    Element entrymakersElement = null;
-
-    try {
-      entrymakersElement = (Element) entrymakersExpression.evaluate(doc, XPathConstants.NODE);
-
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
-
-    if (entrymakersElement == null) {
-      entrymakersElement = doc.createElement("Entrymakers");
-      root.appendChild(entrymakersElement);
+    if (this.entrymakers == null) {
+      this.entrymakers = new ArrayList<>();
     }
 
-    XMLUtil.appendCommaDelimitedElementsWithGrandchildAndText(
-        doc, entrymakersElement, "Entrymaker", "username", entrymakers);
+    addCSV(this.entrymakers, entrymakers);
   }
 
   /**
@@ -821,25 +897,13 @@ public class LogEntry extends LogItem {
       entrymakers = "";
     }
 
-    Element entrymakersElement = null;
-
-    try {
-      entrymakersElement = (Element) entrymakersExpression.evaluate(doc, XPathConstants.NODE);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
-
-    if (entrymakersElement == null) {
-      entrymakersElement = doc.createElement("Entrymakers");
-      root.appendChild(entrymakersElement);
+    if (this.entrymakers == null) {
+      this.entrymakers = new ArrayList<>();
     } else {
-      XMLUtil.removeChildren(entrymakersElement);
+      this.entrymakers.clear();
     }
 
-    XMLUtil.appendCommaDelimitedElementsWithGrandchildAndText(
-        doc, entrymakersElement, "Entrymaker", "username", entrymakers);
+    addCSV(this.entrymakers, entrymakers);
   }
 
   /**
@@ -859,21 +923,11 @@ public class LogEntry extends LogItem {
    * @throws LogRuntimeException If unable to get the entry makers
    */
   public String[] getEntryMakers() throws LogRuntimeException {
-    NodeList usernameElements = null;
-
-    try {
-      usernameElements = (NodeList) usernameListExpression.evaluate(doc, XPathConstants.NODESET);
-
-      if (usernameElements == null) {
-        throw new LogRuntimeException("Element not found in XML DOM.");
-      }
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
+    if (entrymakers == null) {
+      return new String[0];
     }
 
-    return XMLUtil.buildArrayFromText(usernameElements);
+    return entrymakers.toArray(new String[] {});
   }
 
   /**
@@ -883,27 +937,7 @@ public class LogEntry extends LogItem {
    * @throws LogRuntimeException If unable to set the sticky value
    */
   public void setSticky(boolean sticky) throws LogRuntimeException {
-    Element stickyElement = null;
-
-    try {
-      stickyElement = (Element) stickyExpression.evaluate(doc, XPathConstants.NODE);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
-
-    if (stickyElement == null && sticky) {
-      stickyElement = doc.createElement("sticky");
-      root.appendChild(stickyElement);
-      stickyElement.setTextContent("1");
-    } else {
-      if (sticky) {
-        stickyElement.setTextContent("1");
-      } else {
-        root.removeChild(stickyElement);
-      }
-    }
+    this.sticky = sticky;
   }
 
   /**
@@ -913,32 +947,6 @@ public class LogEntry extends LogItem {
    * @throws LogRuntimeException If unable to get the sticky value
    */
   public boolean isSticky() throws LogRuntimeException {
-    boolean sticky = false;
-
-    Element stickyElement = null;
-
-    try {
-      stickyElement = (Element) stickyExpression.evaluate(doc, XPathConstants.NODE);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
-
-    if (stickyElement != null) {
-      String value = stickyElement.getTextContent();
-
-      try {
-        int number = Integer.parseInt(value);
-
-        if (number != 0) {
-          sticky = true;
-        }
-      } catch (NumberFormatException e) {
-        throw new LogRuntimeException("Unable to obtain sticky due to non-numeric format.", e);
-      }
-    }
-
     return sticky;
   }
 
@@ -955,6 +963,11 @@ public class LogEntry extends LogItem {
     return url;
   }
 
+  @Override
+  String getSchemaResource() {
+    return "Logentry.xsd";
+  }
+
   /**
    * Set the body to the specified plain text content.
    *
@@ -1,11 +1,6 @@
 package org.jlab.jlog;
 
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathExpressionException;
 import org.jlab.jlog.exception.LogRuntimeException;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
 
 /**
  * Wraps a LogEntry to provide administrative capabilities. Generally these features will only be
@@ -15,8 +10,6 @@ import org.w3c.dom.Node;
  */
 public class LogEntryAdminExtension extends AdminExtension {
 
-  XPathExpression commentsExpression;
-
   /**
    * Construct a new LogEntryAdminExtension with the specified LogEntry.
    *
@@ -25,12 +18,6 @@ public class LogEntryAdminExtension extends AdminExtension {
    */
   public LogEntryAdminExtension(LogEntry entry) throws LogRuntimeException {
     super(entry);
-
-    try {
-      commentsExpression = xpath.compile("/LogEntry/Comments");
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to construct XML XPath query", e);
-    }
   }
 
   /**
@@ -40,23 +27,6 @@ public class LogEntryAdminExtension extends AdminExtension {
    * @throws LogRuntimeException If unable to add the comment
    */
   public void addComment(Comment comment) throws LogRuntimeException {
-    Element commentsElement = null;
-
-    try {
-      commentsElement = (Element) commentsExpression.evaluate(doc, XPathConstants.NODE);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
-
-    if (commentsElement == null) {
-      commentsElement = doc.createElement("Comments");
-      root.appendChild(commentsElement);
-    }
-
-    Node imported = doc.importNode(comment.getRoot(), true);
-
-    commentsElement.appendChild(imported);
+    ((LogEntry) item).addComment(comment);
   }
 }
@@ -1,16 +1,24 @@
 package org.jlab.jlog;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.net.*;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -19,38 +27,48 @@ import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.security.spec.InvalidKeySpecException;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.naming.InvalidNameException;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.xml.XMLConstants;
-import javax.xml.datatype.DatatypeConfigurationException;
-import javax.xml.datatype.DatatypeFactory;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.dom.DOMSource;
 import javax.xml.validation.Schema;
-import javax.xml.validation.SchemaFactory;
 import javax.xml.validation.Validator;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 import org.jlab.jlog.exception.AttachmentSizeException;
 import org.jlab.jlog.exception.InvalidXMLException;
 import org.jlab.jlog.exception.LogCertificateException;
 import org.jlab.jlog.exception.LogException;
 import org.jlab.jlog.exception.LogIOException;
 import org.jlab.jlog.exception.LogRuntimeException;
+import org.jlab.jlog.exception.QueueFullException;
 import org.jlab.jlog.exception.SchemaUnavailableException;
+import org.jlab.jlog.exception.SubmissionRejectedException;
 import org.jlab.jlog.util.IOUtil;
 import org.jlab.jlog.util.SecurityUtil;
 import org.jlab.jlog.util.SystemUtil;
@@ -58,7 +76,6 @@ import org.jlab.jlog.util.XMLUtil;
 import org.w3c.dom.CDATASection;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
@@ -70,91 +87,334 @@ import org.xml.sax.SAXException;
  *
  * @author ryans
  */
-abstract class LogItem {
+public abstract class LogItem {
 
+  private static final Logger logger = Logger.getLogger(LogItem.class.getName());
   private static final String PEM_FILE_NAME = ".elogcert";
+  private static final long DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+  private static final long DEFAULT_REQUEST_TIMEOUT_MS = 60000;
+  private static final AtomicLong queueSequence = new AtomicLong();
+  private static final AtomicInteger completionThreadCount = new AtomicInteger();
+  // The queue fallback may block on the queue directory, so it never runs on the caller's thread
+  private static final ExecutorService completions =
+      Executors.newCachedThreadPool(
+          r -> {
+            Thread thread = new Thread(r, "jlog-submit-" + completionThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          });
   private static final FileNameMap mimeMap = URLConnection.getFileNameMap();
-  LogException submitException = null;
-  Document doc;
-  Element root;
-  DatatypeFactory typeFactory;
-  DocumentBuilder builder;
-  XPath xpath;
-  XPathExpression lognumberExpression;
-  XPathExpression lognumberTextExpression;
-  XPathExpression createdExpression;
-  XPathExpression bodyExpression;
-  XPathExpression attachmentsExpression;
-  XPathExpression authorTextExpression;
-  XPathExpression notificationsExpression;
-  XPathExpression notificationListExpression;
-  XPathExpression responseStatusExpression;
-  XPathExpression responseMessageExpression;
-  XPathExpression responseLognumberExpression;
+  private static final ThreadLocal<DocumentBuilder> builders =
+      ThreadLocal.withInitial(LogItem::newDocumentBuilder);
+  static final SharedXPathExpression responseStatusExpression =
+      new SharedXPathExpression("/Response/@stat");
+  static final SharedXPathExpression responseMessageExpression =
+      new SharedXPathExpression("/Response/msg/text()");
+  static final SharedXPathExpression responseLognumberExpression =
+      new SharedXPathExpression("/Response/lognumber");
+  volatile LogException submitException = null;
+  private volatile List<LogException> failedAttempts = Collections.emptyList();
   long totalAttachmentBytes = 0;
+  private String rootTagName;
+  private Long lognumber;
+  private String created;
+  private String author;
+  private Body body;
+  // Optional containers are null when the element is absent and empty when it has no children
+  private List<Attachment> attachments;
+  private List<String> emailNotify;
+  private final Map<String, String> rootAttributes = new LinkedHashMap<>();
+  private final List<Element> unrecognizedElements = new ArrayList<>();
 
-  {
-    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+  /**
+   * Construct a new empty LogItem. Note: the caller should populate the fields, generally by
+   * reading an existing log item from XML.
+   *
+   * @throws LogRuntimeException If unable to initialize the LogItem
+   */
+  public LogItem() throws LogRuntimeException {}
+
+  /**
+   * Construct a new LogItem with the specified root element tag name.
+   *
+   * <p>The fields of a log item are held in memory as plain values; a Document Object Model (DOM)
+   * is only built when the XML is needed, for example to validate or submit the log item.
+   *
+   * @param rootTagName The root tag name
+   * @throws LogRuntimeException If unable to initialize the LogItem
+   */
+  public LogItem(String rootTagName) throws LogRuntimeException {
+    this.rootTagName = rootTagName;
+    created = XMLUtil.toXMLFormat(new GregorianCalendar());
+    author = System.getProperty("user.name");
+  }
+
+  /**
+   * Construct a new LogItem from the specified template. The fields of the template are copied,
+   * except the created date is set to the current time and the log number is not copied since the
+   * copy is a new log item. Attachments are shared rather than copied as they are immutable.
+   *
+   * @param template The template
+   */
+  LogItem(LogItem template) {
+    rootTagName = template.rootTagName;
+    created = XMLUtil.toXMLFormat(new GregorianCalendar());
+    author = template.author;
+    body = template.body;
+    totalAttachmentBytes = template.totalAttachmentBytes;
+    attachments = copyList(template.attachments);
+    emailNotify = copyList(template.emailNotify);
+    rootAttributes.putAll(template.rootAttributes);
+    // Unrecognized elements are only ever imported into other documents, never modified
+    unrecognizedElements.addAll(template.unrecognizedElements);
+  }
+
+  /**
+   * Populate the fields of this log item from the specified XMLStreamReader, which must be
+   * positioned on the START_ELEMENT event of the root element of an existing log item and is left
+   * on the matching END_ELEMENT event. Child elements which are not recognized are retained and
+   * written back out unchanged.
+   *
+   * <p>Attachment data is streamed rather than held in memory; see Attachment.read. Other small
+   * child elements are read into a DOM fragment and handed to readElement(Element).
+   *
+   * @param reader The XMLStreamReader
+   * @throws XMLStreamException If unable to read the XML
+   * @throws LogIOException If unable to spool attachment data
+   * @throws LogRuntimeException If the XML contains unexpected values
+   */
+  void read(XMLStreamReader reader)
+      throws XMLStreamException, LogIOException, LogRuntimeException {
+    rootTagName = reader.getLocalName();
+    rootAttributes.putAll(XMLUtil.readAttributes(reader));
+
+    Document fragments = getDocumentBuilder().newDocument();
 
     try {
-      builder = factory.newDocumentBuilder();
-    } catch (ParserConfigurationException e) {
-      throw new LogRuntimeException("Unable to obtain XML document builder.", e);
+      while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+        if (!readElement(reader)) {
+          Element child = XMLUtil.readElement(fragments, reader);
+
+          if (!readElement(child)) {
+            unrecognizedElements.add(child);
+          }
+        }
+      }
+    } catch (XMLStreamException | LogIOException | RuntimeException e) {
+      // The caller never gets the item, so it cannot release the attachments read so far
+      release();
+      throw e;
     }
+  }
 
-    try {
-      typeFactory = DatatypeFactory.newInstance();
-    } catch (DatatypeConfigurationException e) {
-      throw new LogRuntimeException("Unable to obtain XML datatype factory.", e);
+  /**
+   * Populate the field represented by the child element of the root element at the current
+   * position of the specified XMLStreamReader if the field is large enough to be worth streaming.
+   * If the element is recognized the reader is left on its END_ELEMENT event, otherwise the reader
+   * is not moved. Subclasses override this method to stream their own fields.
+   *
+   * @param reader The XMLStreamReader positioned on a START_ELEMENT event
+   * @return true if the element was recognized, false otherwise
+   * @throws XMLStreamException If unable to read the XML
+   * @throws LogIOException If unable to spool attachment data
+   * @throws LogRuntimeException If the XML contains unexpected values
+   */
+  boolean readElement(XMLStreamReader reader)
+      throws XMLStreamException, LogIOException, LogRuntimeException {
+    if (!reader.getLocalName().equals("Attachments")) {
+      return false;
     }
 
-    XPathFactory xpathFactory = XPathFactory.newInstance();
-    xpath = xpathFactory.newXPath();
+    attachments = new ArrayList<>();
 
-    try {
-      lognumberExpression = xpath.compile("/*/lognumber");
-      lognumberTextExpression = xpath.compile("/*/lognumber/text()");
-      createdExpression = xpath.compile("/*/created");
-      bodyExpression = xpath.compile("/*/body");
-      attachmentsExpression = xpath.compile("/*/Attachments");
-      authorTextExpression = xpath.compile("/*/Author/username/text()");
-      notificationsExpression = xpath.compile("/*/Notifications");
-      notificationListExpression = xpath.compile("/*/Notifications/email");
-      responseStatusExpression = xpath.compile("/Response/@stat");
-      responseMessageExpression = xpath.compile("/Response/msg/text()");
-      responseLognumberExpression = xpath.compile("/Response/lognumber");
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to construct XML XPath query", e);
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      attachments.add(Attachment.read(reader));
     }
+
+    return true;
   }
 
   /**
-   * Construct a new LogItem, but do not initialize a DOM (Document). Note: the caller should do the
-   * initialization of the DOM.
+   * Populate the field represented by the specified child of the root Element. Subclasses override
+   * this method to read their own fields.
    *
-   * @throws LogRuntimeException If unable to initialize the LogItem
+   * @param element The child Element
+   * @return true if the Element was recognized, false otherwise
+   * @throws LogRuntimeException If the Element contains unexpected values
    */
-  public LogItem() throws LogRuntimeException {}
+  boolean readElement(Element element) throws LogRuntimeException {
+    switch (element.getTagName()) {
+      case "lognumber":
+        String lognumberStr = element.getTextContent();
+
+        // NOTE: C++ impl throws exception if null
+        if (lognumberStr != null && !lognumberStr.isEmpty()) {
+          try {
+            lognumber = Long.parseLong(lognumberStr);
+          } catch (NumberFormatException e) {
+            throw new LogRuntimeException(
+                "Unable to obtain log number due to non-numeric format.", e);
+          }
+        }
+        break;
+      case "created":
+        created = element.getTextContent();
+        break;
+      case "Author":
+        Element usernameElement = XMLUtil.getChildElementByName(element, "username");
+        author = usernameElement == null ? null : usernameElement.getTextContent();
+        break;
+      case "body":
+        String typeStr = element.getAttribute("type");
+        Body.ContentType type = Body.ContentType.TEXT;
+
+        if (typeStr != null && !typeStr.isEmpty()) {
+          try {
+            type = Body.ContentType.valueOf(typeStr.toUpperCase());
+          } catch (IllegalArgumentException e) {
+            throw new LogRuntimeException("Unexpected ContentType in XML body.", e);
+          }
+        }
+
+        body = new Body(type, element.getTextContent());
+        break;
+      case "Notifications":
+        emailNotify = getChildText(element, "email");
+        break;
+      default:
+        return false;
+    }
+
+    return true;
+  }
 
   /**
-   * Construct a new LogItem with the specified root element tag name.
+   * Append the Elements representing the fields of this log item to the specified root Element.
    *
-   * @param rootTagName The root tag name
-   * @throws LogRuntimeException If unable to initialize the LogItem
+   * @param doc The Document
+   * @param root The root Element
    */
-  public LogItem(String rootTagName) throws LogRuntimeException {
+  void writeElements(Document doc, Element root) {
+    if (created != null) {
+      XMLUtil.appendElementWithText(doc, root, "created", created);
+    }
+
+    if (author != null) {
+      Element authorElement = doc.createElement("Author");
+      root.appendChild(authorElement);
+      XMLUtil.appendElementWithText(doc, authorElement, "username", author);
+    }
+
+    if (lognumber != null) {
+      XMLUtil.appendElementWithText(doc, root, "lognumber", String.valueOf(lognumber));
+    }
+
+    writeItemElements(doc, root);
+
+    if (body != null) {
+      Element bodyElement = doc.createElement("body");
+      root.appendChild(bodyElement);
+
+      if (body.getType() == Body.ContentType.HTML) {
+        bodyElement.setAttribute("type", "html");
+      }
+
+      CDATASection data = doc.createCDATASection(body.getContent());
+      bodyElement.appendChild(data);
+    }
+
+    if (attachments != null) {
+      Element attachmentsElement = doc.createElement("Attachments");
+      root.appendChild(attachmentsElement);
+
+      for (Attachment attachment : attachments) {
+        attachmentsElement.appendChild(attachment.toElement(doc));
+      }
+    }
+
+    if (emailNotify != null) {
+      Element notificationsElement = doc.createElement("Notifications");
+      root.appendChild(notificationsElement);
+
+      for (String address : emailNotify) {
+        XMLUtil.appendElementWithText(doc, notificationsElement, "email", address);
+      }
+    }
+
+    for (Element element : unrecognizedElements) {
+      root.appendChild(doc.importNode(element, true));
+    }
+  }
+
+  /**
+   * Append the Elements representing the fields specific to a type of log item to the specified
+   * root Element. The default implementation appends nothing.
+   *
+   * @param doc The Document
+   * @param root The root Element
+   */
+  void writeItemElements(Document doc, Element root) {}
 
-    doc = builder.newDocument();
+  /**
+   * Return the child Elements of the specified parent with the specified tag name.
+   *
+   * @param parent The parent
+   * @param tagName The tag name, or null for all child Elements
+   * @return The child Elements
+   */
+  static List<Element> getChildElements(Element parent, String tagName) {
+    List<Element> elements = new ArrayList<>();
+    NodeList children = parent.getChildNodes();
 
-    root = doc.createElement(rootTagName);
-    doc.appendChild(root);
+    for (int i = 0; i < children.getLength(); i++) {
+      if (children.item(i) instanceof Element) {
+        Element child = (Element) children.item(i);
 
-    XMLUtil.appendElementWithText(
-        doc, root, "created", XMLUtil.toXMLFormat(new GregorianCalendar()));
+        if (tagName == null || tagName.equals(child.getTagName())) {
+          elements.add(child);
+        }
+      }
+    }
+
+    return elements;
+  }
+
+  /**
+   * Return the text of the child Elements of the specified parent with the specified tag name.
+   *
+   * @param parent The parent
+   * @param tagName The tag name
+   * @return The text values
+   */
+  static List<String> getChildText(Element parent, String tagName) {
+    List<String> values = new ArrayList<>();
+
+    for (Element child : getChildElements(parent, tagName)) {
+      values.add(child.getTextContent());
+    }
+
+    return values;
+  }
+
+  /**
+   * Return a shallow copy of the specified list, or null if the list is null.
+   *
+   * @param list The list or null
+   * @param <T> The element type
+   * @return The copy or null
+   */
+  static <T> List<T> copyList(List<T> list) {
+    return list == null ? null : new ArrayList<>(list);
+  }
 
-    Element authorElement = doc.createElement("Author");
-    root.appendChild(authorElement);
-    XMLUtil.appendElementWithText(doc, authorElement, "username", System.getProperty("user.name"));
+  /**
+   * Append each of the specified comma-separated-values to the specified list.
+   *
+   * @param list The list
+   * @param csv The comma-separated-values
+   */
+  static void addCSV(List<String> list, String csv) {
+    Collections.addAll(list, IOUtil.csvToArray(csv));
   }
 
   /**
@@ -211,49 +471,16 @@ abstract class LogItem {
   }
 
   /**
-   * Return the length of the specified attachment. This method writes the attachment out to a temp
-   * directly and checks the length. Base64 attachments are decoded and URL attachments are
-   * downloaded.
+   * Return the length of the specified attachment. The length of base64 attachments is computed
+   * from the encoded text and file-backed attachments from the file, without decoding or copying
+   * the data. URL attachments are already stored on the server and are not counted, so they are
+   * never downloaded.
    *
    * @param attachment The attachment
    * @return The length
-   * @throws LogIOException If unable to obtain length due to IO
    */
-  long getAttachmentLength(Attachment attachment) throws LogIOException {
-    long length = 0;
-    String prefix = "jlogattachment";
-    String suffix = ".tmp";
-
-    File file = null;
-
-    Properties props = Library.getConfiguration();
-    boolean ignoreServerCert = "true".equals(props.getProperty("IGNORE_SERVER_CERT_ERRORS"));
-
-    try {
-      if (ignoreServerCert) {
-        SecurityUtil.disableServerCertificateCheck();
-      }
-    } catch (NoSuchAlgorithmException | KeyManagementException e) {
-      throw new LogRuntimeException("Unable to disable server certificate check", e);
-    }
-
-    try (InputStream in = attachment.getData()) {
-
-      file = File.createTempFile(prefix, suffix);
-
-      try (OutputStream out = new FileOutputStream(file)) {
-        IOUtil.copy(in, out);
-      }
-    } catch (IOException e) {
-      throw new LogIOException(
-          "Unable to write attachment to tmp directory for length measurement.", e);
-    } finally {
-      IOUtil.deleteQuietly(file);
-
-      SecurityUtil.enableServerCertificateCheck();
-    }
-
-    return length;
+  long getAttachmentLength(Attachment attachment) {
+    return Math.max(attachment.getSize(), 0);
   }
 
   /**
@@ -261,9 +488,8 @@ abstract class LogItem {
    * attachment size so that further checking can be done when attachments are added.
    *
    * @throws AttachmentSizeException If an attachment size limit is crossed
-   * @throws LogIOException If unable to check and tally due to IO
    */
-  void checkAndTallyAttachmentSize() throws AttachmentSizeException, LogIOException {
+  void checkAndTallyAttachmentSize() throws AttachmentSizeException {
     Attachment[] attachments = getAttachments();
 
     for (Attachment attachment : attachments) {
@@ -321,7 +547,6 @@ abstract class LogItem {
   public void addAttachment(String filepath, String caption, String mimeType)
       throws AttachmentSizeException, LogIOException, LogRuntimeException {
     String data = null;
-    Element attachmentsElement = null;
 
     File file = new File(filepath);
 
@@ -329,57 +554,120 @@ abstract class LogItem {
 
     try {
       data = IOUtil.encodeBase64(IOUtil.fileToBytes(file));
-      attachmentsElement = (Element) attachmentsExpression.evaluate(doc, XPathConstants.NODE);
     } catch (IOException e) {
       throw new LogIOException("Unable to access attachment file.", e);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
     }
 
-    if (attachmentsElement == null) {
-      attachmentsElement = doc.createElement("Attachments");
-      root.appendChild(attachmentsElement);
+    addAttachment(new Attachment(caption, file.getName(), mimeType, data));
+    totalAttachmentBytes += file.length();
+  }
+
+  /**
+   * Add a file attachment which is read from disk only when the log item is serialized, with an
+   * empty caption and a hastily guessed mime type. See addLazyAttachment(String, String, String).
+   *
+   * @param filepath The file path
+   * @throws AttachmentSizeException If the attachment crosses a size limit
+   * @throws LogIOException If the file is not readable
+   * @throws LogRuntimeException If unable to add the attachment
+   */
+  public void addLazyAttachment(String filepath)
+      throws AttachmentSizeException, LogIOException, LogRuntimeException {
+    addLazyAttachment(filepath, "", mimeMap.getContentTypeFor(filepath));
+  }
+
+  /**
+   * Add a file attachment which is read from disk only when the log item is serialized, with the
+   * specified caption and a hastily guessed mime type. See addLazyAttachment(String, String,
+   * String).
+   *
+   * @param filepath The file path
+   * @param caption The caption
+   * @throws AttachmentSizeException If the attachment crosses a size limit
+   * @throws LogIOException If the file is not readable
+   * @throws LogRuntimeException If unable to add the attachment
+   */
+  public void addLazyAttachment(String filepath, String caption)
+      throws AttachmentSizeException, LogIOException, LogRuntimeException {
+    addLazyAttachment(filepath, caption, mimeMap.getContentTypeFor(filepath));
+  }
+
+  /**
+   * Add a file attachment which is read from disk only when the log item is serialized, with the
+   * specified caption and mime type. Unlike addAttachment, only the file path is recorded; the
+   * file is base64 encoded in chunks as the XML is written to the server or queue, so memory use
+   * does not grow with the size of the file.
+   *
+   * <p>The file must remain in place and unchanged until the log item has been submitted or
+   * queued. Queued log items contain the encoded data and no longer depend on the file.
+   *
+   * @param filepath The file path
+   * @param caption The caption
+   * @param mimeType The mime type
+   * @throws AttachmentSizeException If the attachment crosses a size limit
+   * @throws LogIOException If the file is not readable
+   * @throws LogRuntimeException If unable to add the attachment
+   */
+  public void addLazyAttachment(String filepath, String caption, String mimeType)
+      throws AttachmentSizeException, LogIOException, LogRuntimeException {
+    File file = new File(filepath).getAbsoluteFile();
+
+    if (!file.isFile() || !file.canRead()) {
+      throw new LogIOException("Unable to access attachment file.");
     }
 
-    Element attachmentElement = doc.createElement("Attachment");
-    attachmentsElement.appendChild(attachmentElement);
-    XMLUtil.appendElementWithText(doc, attachmentElement, "caption", caption);
-    XMLUtil.appendElementWithText(doc, attachmentElement, "filename", file.getName());
-    XMLUtil.appendElementWithText(doc, attachmentElement, "type", mimeType);
-    Element dataElement = XMLUtil.appendElementWithText(doc, attachmentElement, "data", data);
-    dataElement.setAttribute("encoding", "base64");
+    checkAttachmentSize(file.length());
+
+    addAttachment(new Attachment(caption, file.getName(), mimeType, file));
     totalAttachmentBytes += file.length();
   }
 
   /**
-   * Return the file attachments.
+   * Append the specified attachment without checking size limits.
    *
-   * @return The attachments
-   * @throws LogRuntimeException If unable to return the attachments
+   * @param attachment The attachment
    */
-  public Attachment[] getAttachments() throws LogRuntimeException {
-    List<Attachment> attachments = new ArrayList<Attachment>();
-    Element attachmentsElement = null;
-
-    try {
-      attachmentsElement = (Element) attachmentsExpression.evaluate(doc, XPathConstants.NODE);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
+  void addAttachment(Attachment attachment) {
+    if (attachments == null) {
+      attachments = new ArrayList<>();
     }
 
-    if (attachmentsElement != null) {
-      NodeList children = attachmentsElement.getChildNodes();
+    attachments.add(attachment);
+  }
 
-      for (int i = 0; i < children.getLength(); i++) {
-        if (children.item(i) instanceof Element) {
-          attachments.add(new Attachment((Element) children.item(i)));
-        }
+  /**
+   * Delete the temporary files holding attachment data spilled when this log item was read from a
+   * queue file; see Attachment.read. Whoever reads an item from a queue must call this once the
+   * item has been submitted or discarded. The attachment data cannot be read afterwards.
+   */
+  void release() {
+    if (attachments != null) {
+      for (Attachment attachment : attachments) {
+        attachment.release();
       }
     }
+  }
+
+  /**
+   * Return true if this log item has root attributes or child elements which are not recognized.
+   * They are written back out unchanged, but could not be combined with those of another item.
+   *
+   * @return true if there is unrecognized content
+   */
+  boolean hasUnrecognizedContent() {
+    return !rootAttributes.isEmpty() || !unrecognizedElements.isEmpty();
+  }
+
+  /**
+   * Return the file attachments.
+   *
+   * @return The attachments
+   * @throws LogRuntimeException If unable to return the attachments
+   */
+  public Attachment[] getAttachments() throws LogRuntimeException {
+    if (attachments == null) {
+      return new Attachment[0];
+    }
 
     return attachments.toArray(new Attachment[] {});
   }
@@ -390,18 +678,8 @@ abstract class LogItem {
    * @throws LogRuntimeException If unable to remove the file attachments
    */
   public void deleteAttachments() throws LogRuntimeException {
-    Element attachmentsElement = null;
-
-    try {
-      attachmentsElement = (Element) attachmentsExpression.evaluate(doc, XPathConstants.NODE);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
-
-    if (attachmentsElement != null) {
-      XMLUtil.removeChildren(attachmentsElement);
+    if (attachments != null) {
+      attachments.clear();
     }
 
     totalAttachmentBytes = 0;
@@ -414,27 +692,16 @@ abstract class LogItem {
    * @throws LogRuntimeException If unable to set the email addresses
    */
   public void setEmailNotify(String addresses) throws LogRuntimeException {
-    Element notificationsElement = null;
-
-    try {
-      notificationsElement = (Element) notificationsExpression.evaluate(doc, XPathConstants.NODE);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
-
-    if (notificationsElement == null) {
+    if (emailNotify == null) {
       if (addresses != null && !addresses.isEmpty()) {
-        notificationsElement = doc.createElement("Notifications");
-        root.appendChild(notificationsElement);
+        emailNotify = new ArrayList<>();
       }
     } else {
-      XMLUtil.removeChildren(notificationsElement);
+      emailNotify.clear();
     }
 
     if (addresses != null && !addresses.isEmpty()) {
-      XMLUtil.appendCommaDelimitedElementsWithText(doc, notificationsElement, "email", addresses);
+      addCSV(emailNotify, addresses);
     }
   }
 
@@ -465,25 +732,11 @@ abstract class LogItem {
    * @throws LogRuntimeException If unable to get the email addresses
    */
   public String[] getEmailNotify() throws LogRuntimeException {
-    String[] addresses;
-    NodeList notificationElements = null;
-
-    try {
-      notificationElements =
-          (NodeList) notificationListExpression.evaluate(doc, XPathConstants.NODESET);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
+    if (emailNotify == null) {
+      return new String[0];
     }
 
-    if (notificationElements != null) {
-      addresses = XMLUtil.buildArrayFromText(notificationElements);
-    } else {
-      addresses = new String[0];
-    }
-
-    return addresses;
+    return emailNotify.toArray(new String[] {});
   }
 
   /**
@@ -493,19 +746,19 @@ abstract class LogItem {
    * @throws LogRuntimeException If unable to get the author username
    */
   public String getAuthor() throws LogRuntimeException {
-    String author = null;
-
-    try {
-      author = (String) authorTextExpression.evaluate(doc, XPathConstants.STRING);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
-
     return author;
   }
 
+  /**
+   * Set the author username.
+   *
+   * @param author The author username
+   * @throws LogRuntimeException If unable to set the author username
+   */
+  void setAuthor(String author) throws LogRuntimeException {
+    this.author = author;
+  }
+
   /**
    * Set the log number.
    *
@@ -513,22 +766,7 @@ abstract class LogItem {
    * @throws LogRuntimeException If unable to set the log number
    */
   void setLogNumber(long lognumber) throws LogRuntimeException {
-    Element lognumberElement = null;
-
-    try {
-      lognumberElement = (Element) lognumberExpression.evaluate(doc, XPathConstants.NODE);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
-
-    if (lognumberElement == null) {
-      lognumberElement = doc.createElement("lognumber");
-      root.appendChild(lognumberElement);
-    }
-
-    lognumberElement.setTextContent(String.valueOf(lognumber));
+    this.lognumber = lognumber;
   }
 
   /**
@@ -538,26 +776,6 @@ abstract class LogItem {
    * @throws LogRuntimeException If unable to get the log number
    */
   public Long getLogNumber() throws LogRuntimeException {
-    Long lognumber = null;
-    String lognumberStr = null;
-
-    try {
-      lognumberStr = (String) lognumberTextExpression.evaluate(doc, XPathConstants.STRING);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
-
-    // NOTE: C++ impl throws exception if null
-    if (lognumberStr != null && !lognumberStr.isEmpty()) {
-      try {
-        lognumber = Long.parseLong(lognumberStr);
-      } catch (NumberFormatException e) {
-        throw new LogRuntimeException("Unable to obtain log number due to non-numeric format.", e);
-      }
-    }
-
     return lognumber;
   }
 
@@ -568,23 +786,21 @@ abstract class LogItem {
    * @throws LogRuntimeException If unable to get the created date/time
    */
   public GregorianCalendar getCreated() throws LogRuntimeException {
-    Element createdElement = null;
-
-    try {
-      createdElement = (Element) createdExpression.evaluate(doc, XPathConstants.NODE);
-
-      if (createdElement == null) {
-        throw new LogRuntimeException("Element not found in XML DOM.");
-      }
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to evaluate XPath query on XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
+    if (created == null) {
+      throw new LogRuntimeException("Element not found in XML DOM.");
     }
 
-    String createdStr = createdElement.getTextContent();
+    return XMLUtil.toGregorianCalendar(created);
+  }
 
-    return XMLUtil.toGregorianCalendar(createdStr);
+  /**
+   * Set the created date/time.
+   *
+   * @param created The created date/time
+   * @throws LogRuntimeException If unable to set the created date/time
+   */
+  void setCreated(GregorianCalendar created) throws LogRuntimeException {
+    this.created = XMLUtil.toXMLFormat(created);
   }
 
   /**
@@ -594,31 +810,6 @@ abstract class LogItem {
    * @throws LogRuntimeException If unable to get the body
    */
   public Body getBody() throws LogRuntimeException {
-    Body body = null;
-    Element bodyElement = null;
-
-    try {
-      bodyElement = (Element) bodyExpression.evaluate(doc, XPathConstants.NODE);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to traverse XML DOM.", e);
-    }
-
-    if (bodyElement != null) {
-      String content = bodyElement.getTextContent();
-      String typeStr = bodyElement.getAttribute("type");
-      Body.ContentType type = Body.ContentType.TEXT;
-
-      if (typeStr != null && !typeStr.isEmpty()) {
-        try {
-          type = Body.ContentType.valueOf(typeStr.toUpperCase());
-        } catch (IllegalArgumentException e) {
-          throw new LogRuntimeException("Unexpected ContentType in XML body.", e);
-        }
-      }
-
-      body = new Body(type, content);
-    }
-
     return body;
   }
 
@@ -629,39 +820,16 @@ abstract class LogItem {
    * @throws LogRuntimeException If unable to set the body
    */
   void setBody(Body body) throws LogRuntimeException {
-    if (body == null) {
-      body = new Body(Body.ContentType.TEXT, "");
+    if (body == null || body.getContent() == null || body.getContent().isEmpty()) {
+      body = null;
     }
 
-    Element bodyElement = null;
-
-    try {
-      bodyElement = (Element) bodyExpression.evaluate(doc, XPathConstants.NODE);
-    } catch (XPathExpressionException e) {
-      throw new LogRuntimeException("Unable to traverse XML DOM.", e);
-    } catch (ClassCastException e) {
-      throw new LogRuntimeException("Unexpected node type in XML DOM.", e);
-    }
-
-    if (bodyElement != null) {
-      root.removeChild(bodyElement);
-    }
-
-    if (body.getContent() != null && !body.getContent().isEmpty()) {
-      bodyElement = doc.createElement("body");
-      root.appendChild(bodyElement);
-
-      if (body.getType() == Body.ContentType.HTML) {
-        bodyElement.setAttribute("type", "html");
-      }
-
-      CDATASection data = doc.createCDATASection(body.getContent());
-      bodyElement.appendChild(data);
-    }
+    this.body = body;
   }
 
   /**
-   * Return the XML.
+   * Return the XML. This is the same XML written by writeXML; it is compact unless the INDENT_XML
+   * configuration property is "true".
    *
    * @return The XML
    * @throws LogRuntimeException If unable to get the XML
@@ -670,7 +838,7 @@ abstract class LogItem {
     String xml = null;
 
     try {
-      xml = XMLUtil.getXML(doc);
+      xml = XMLUtil.getXML(getDocument(), isIndentXML());
     } catch (TransformerConfigurationException e) {
       throw new LogRuntimeException("Unable to obtain XML document transformer.", e);
     } catch (TransformerException e) {
@@ -680,6 +848,36 @@ abstract class LogItem {
     return xml;
   }
 
+  /**
+   * Write the XML to the specified OutputStream as UTF-8 without first building it as a String.
+   * The stream is flushed but not closed. This is the XML sent to the server and written to the
+   * queue; it is compact unless the INDENT_XML configuration property is "true".
+   *
+   * @param out The OutputStream
+   * @throws LogIOException If unable to write to the stream
+   * @throws LogRuntimeException If unable to transform the XML
+   */
+  public void writeXML(OutputStream out) throws LogIOException, LogRuntimeException {
+    try {
+      XMLUtil.writeXML(getDocument(), out, isIndentXML());
+    } catch (TransformerConfigurationException e) {
+      throw new LogRuntimeException("Unable to obtain XML document transformer.", e);
+    } catch (TransformerException e) {
+      // The IOException may be wrapped in a SAXException, depending on where it occurred
+      for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+        if (cause instanceof IOException) {
+          throw new LogIOException("Unable to write XML.", cause);
+        }
+      }
+
+      throw new LogRuntimeException("Unable to transform XML document.", e);
+    }
+  }
+
+  private static boolean isIndentXML() {
+    return "true".equals(Library.getConfiguration().getProperty("INDENT_XML"));
+  }
+
   /**
    * Return the URL to the schema needed for validation of this log book item.
    *
@@ -689,44 +887,31 @@ abstract class LogItem {
   abstract String getSchemaURL() throws LogRuntimeException;
 
   /**
-   * Validate the DOM that makes up this log item using the log item schema.
+   * Return the classpath resource name of the schema bundled in the jar for this log book item.
    *
-   * @throws SchemaUnavailableException If the schema is unavailable
-   * @throws InvalidXMLException If the XML generated from the DOM is invalid
-   * @throws LogIOException If unable to validate due to IO
+   * @return The resource name
    */
-  void validate() throws SchemaUnavailableException, InvalidXMLException, LogIOException {
-    Schema schema = null;
-
-    Properties props = Library.getConfiguration();
-    boolean ignoreServerCert = "true".equals(props.getProperty("IGNORE_SERVER_CERT_ERRORS"));
-
-    try {
-      if (ignoreServerCert) {
-        try {
-          SecurityUtil.disableServerCertificateCheck();
-        } catch (NoSuchAlgorithmException | KeyManagementException e) {
-          throw new LogRuntimeException("Unable to disable server certificate check", e);
-        }
-      }
+  abstract String getSchemaResource();
 
-      java.net.URL schemaURL = new URL(getSchemaURL());
-      SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-      schema = factory.newSchema(schemaURL);
-    } catch (MalformedURLException e) {
-      throw new SchemaUnavailableException("Schema URL malformed.", e);
-    } catch (SAXException e) {
-      throw new SchemaUnavailableException("Unable to parse schema.", e);
-    } finally {
-      SecurityUtil.enableServerCertificateCheck();
-    }
+  /**
+   * Validate the DOM that makes up this log item using the log item schema. The compiled schema is
+   * cached so the server is not contacted on every validation. Set the SCHEMA_SOURCE configuration
+   * property to "bundled" to validate against the schema bundled in the jar without contacting the
+   * server at all, for example to check items before they are queued while the server is down.
+   *
+   * @throws SchemaUnavailableException If the schema is unavailable
+   * @throws InvalidXMLException If the XML generated from the DOM is invalid
+   * @throws LogIOException If unable to validate due to IO
+   * @throws LogRuntimeException If the schema configuration properties are invalid
+   */
+  public void validate()
+      throws SchemaUnavailableException, InvalidXMLException, LogIOException, LogRuntimeException {
+    Schema schema = SchemaCache.getSchema(getSchemaURL(), getSchemaResource());
 
     Validator validator = schema.newValidator();
 
-    DOMSource source = new DOMSource(doc);
-
     try {
-      validator.validate(source);
+      validator.validate(XMLUtil.getSource(getDocument()));
     } catch (SAXException e) {
       throw new InvalidXMLException("The XML failed to validate against the schema.", e);
     } catch (IOException e) {
@@ -739,6 +924,7 @@ abstract class LogItem {
    *
    * @param is The InputStream containing the response
    * @return The log number contained within the response
+   * @throws SubmissionRejectedException If the server rejected the submission
    * @throws LogIOException If unable to parse due to IO
    * @throws LogRuntimeException If unable to parse
    */
@@ -746,7 +932,7 @@ abstract class LogItem {
     long id;
 
     try {
-      Document response = builder.parse(is);
+      Document response = getDocumentBuilder().parse(is);
 
       String status = (String) responseStatusExpression.evaluate(response, XPathConstants.STRING);
       String message = (String) responseMessageExpression.evaluate(response, XPathConstants.STRING);
@@ -758,7 +944,7 @@ abstract class LogItem {
       }
 
       if (!"ok".equals(status)) {
-        throw new LogIOException("Submission Failed: " + message);
+        throw new SubmissionRejectedException("Submission Failed: " + message);
       }
 
       id = Long.parseLong(lognumberStr);
@@ -782,136 +968,486 @@ abstract class LogItem {
   }
 
   /**
-   * Perform the HTTP PUT request to the server with the log item.
+   * Return the shared HttpClient configured with the client certificate and the
+   * SUBMIT_CONNECT_TIMEOUT_MS connect timeout.
+   *
+   * @return The HttpClient
+   * @throws LogCertificateException If unable to read the client certificate or obtain the client
+   *     due to certificate
+   * @throws LogRuntimeException If the SUBMIT_CONNECT_TIMEOUT_MS property is invalid
+   */
+  HttpClient getHttpClient() throws LogCertificateException, LogRuntimeException {
+    String pemFilePath = getClientCertificatePath();
+
+    Properties props = Library.getConfiguration();
+    boolean ignoreServerCert = "true".equals(props.getProperty("IGNORE_SERVER_CERT_ERRORS"));
+    long connectTimeout =
+        Library.getLongProperty("SUBMIT_CONNECT_TIMEOUT_MS", DEFAULT_CONNECT_TIMEOUT_MS);
+
+    try {
+      return HttpClientPool.getClient(pemFilePath, !ignoreServerCert, connectTimeout);
+    } catch (IOException e) {
+      // Not a LogIOException, so a missing or unreadable certificate is not retried
+      throw new LogCertificateException(
+          "Unable to read client certificate " + pemFilePath + ".", e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new LogCertificateException("Invalid SSL certificate algorithm.", e);
+    } catch (CertificateException
+        | KeyStoreException
+        | KeyManagementException
+        | UnrecoverableKeyException
+        | InvalidKeySpecException e) {
+      throw new LogCertificateException(
+          "Unable to obtain SSL connection due to certificate error.", e);
+    }
+  }
+
+  /**
+   * Build the HTTP PUT request containing the log item. The XML is streamed into the request from
+   * the specified body as it is sent, with a chunked transfer encoding since the length of the XML
+   * is not known until it has been written.
+   *
+   * <p>The request times out after SUBMIT_REQUEST_TIMEOUT_MS milliseconds.
+   *
+   * @param body The request body
+   * @param filename The file name of the submission; see buildHttpPutUrl
+   * @return The HTTP PUT request
+   * @throws LogIOException If the submission URL is invalid
+   * @throws LogRuntimeException If unable to build the request
+   */
+  HttpRequest buildHttpPutRequest(PipedXMLBody body, String filename)
+      throws LogIOException, LogRuntimeException {
+    URI putUri;
+
+    try {
+      putUri = URI.create(buildHttpPutUrl(filename));
+    } catch (IllegalArgumentException e) {
+      throw new LogIOException("Invalid submission URL: check config file.", e);
+    }
+
+    HttpRequest.Builder builder =
+        HttpRequest.newBuilder()
+            .uri(putUri)
+            .expectContinue(true)
+            .PUT(HttpRequest.BodyPublishers.ofInputStream(body));
+
+    long requestTimeout =
+        Library.getLongProperty("SUBMIT_REQUEST_TIMEOUT_MS", DEFAULT_REQUEST_TIMEOUT_MS);
+
+    // A timeout surfaces as an HttpTimeoutException, which is an IOException, so submit() falls
+    // back to the queue within a bounded time when the server is unreachable
+    if (requestTimeout > 0) {
+      builder.timeout(Duration.ofMillis(requestTimeout));
+    }
+
+    return builder.build();
+  }
+
+  /**
+   * Perform the HTTP PUT request to the server with the log item. The caller closes the body.
    *
+   * @param filename The file name of the submission, the same for every attempt
+   * @param body The request body
    * @return The log number returned in the server response
    * @throws LogIOException If unable to perform the request due to IO
    * @throws LogCertificateException If unable to perform the request due to certificate
    * @throws LogRuntimeException If unable to perform the request
    */
-  long performHttpPutToServer()
+  long performHttpPutToServer(String filename, PipedXMLBody body)
       throws LogIOException, LogCertificateException, LogRuntimeException {
     long id;
 
-    String pemFilePath = getClientCertificatePath();
+    HttpClient httpClient = getHttpClient();
+    HttpRequest request = buildHttpPutRequest(body, filename);
 
-    String xml = getXML();
+    try {
+      HttpResponse<InputStream> response =
+          httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+      body.markAnswered();
 
-    HttpsURLConnection con;
+      try (InputStream in = response.body()) {
+        checkServerAvailable(response.statusCode());
+        id = parseServerResponse(in);
+      }
+    } catch (IOException e) {
+      throw new LogIOException("Unable to submit to ELOG server.", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LogIOException("Interrupted while submitting to ELOG server.", e);
+    } catch (LogIOException e) {
+      throw bodyFailureOr(body, e);
+    }
 
-    Properties props = Library.getConfiguration();
-    boolean ignoreServerCert = "true".equals(props.getProperty("IGNORE_SERVER_CERT_ERRORS"));
+    return id;
+  }
+
+  /**
+   * Perform the HTTP PUT request to the server with the log item without blocking the caller. The
+   * returned future completes with the log number returned in the server response, or completes
+   * exceptionally with a LogException (or LogRuntimeException) as the cause. The body is closed
+   * once the exchange is complete.
+   *
+   * @param filename The file name of the submission, the same for every attempt
+   * @param body The request body
+   * @return The future log number
+   */
+  CompletableFuture<Long> performHttpPutToServerAsync(String filename, PipedXMLBody body) {
+    HttpClient httpClient;
+    HttpRequest request;
 
     try {
+      httpClient = getHttpClient();
+      request = buildHttpPutRequest(body, filename);
+    } catch (LogException | LogRuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+
+    // The response is small so buffer it instead of blocking an HttpClient thread on a stream
+    return httpClient
+        .sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+        .handleAsync(
+            (response, t) -> {
+              try {
+                if (t != null) {
+                  throw new CompletionException(toLogException(t));
+                }
+
+                body.markAnswered();
+                checkServerAvailable(response.statusCode());
+
+                return parseServerResponse(new ByteArrayInputStream(response.body()));
+              } catch (IOException e) {
+                throw new CompletionException(
+                    new LogIOException("Unable to submit to ELOG server.", e));
+              } catch (LogIOException e) {
+                throw new CompletionException(bodyFailureOr(body, e));
+              } finally {
+                body.close();
+              }
+            },
+            completions);
+  }
+
+  /**
+   * Throw an IOException if the HTTP status indicates the server is temporarily unavailable. The
+   * server reports its own errors in a Response document, but these statuses come from a proxy or
+   * a server which is restarting, and like a refused connection are worth retrying.
+   *
+   * @param status The HTTP status code
+   * @throws IOException If the server is unavailable
+   */
+  private static void checkServerAvailable(int status) throws IOException {
+    if (status == 502 || status == 503 || status == 504) {
+      throw new IOException("Server unavailable (HTTP status " + status + ").");
+    }
+  }
 
-      String putUrl = buildHttpPutUrl();
+  /**
+   * Perform the HTTP PUT request to the server with the log item, retrying failures according to
+   * the configured RetryPolicy. Each failed attempt is recorded for getFailedAttempts. No attempt
+   * is made while the shared CircuitBreaker is open.
+   *
+   * <p>Every attempt puts the same file name, and an attempt which sent the whole item but got no
+   * answer is not retried: the server may have accepted it, and would accept it again.
+   *
+   * @return The log number returned in the server response
+   * @throws LogIOException If unable to perform the request due to IO
+   * @throws LogCertificateException If unable to perform the request due to certificate
+   * @throws LogRuntimeException If unable to perform the request
+   */
+  long performHttpPutToServerWithRetry()
+      throws LogIOException, LogCertificateException, LogRuntimeException {
+    RetryPolicy policy = RetryPolicy.fromConfiguration();
+    CircuitBreaker breaker = getCircuitBreaker();
+    String filename = generateXMLFilename();
+    List<LogException> failures = new ArrayList<>();
 
-      SSLContext sslContext = SecurityUtil.getContext(pemFilePath, !ignoreServerCert);
+    try {
+      for (int attempt = 1; ; attempt++) {
+        if (!breaker.tryAcquire()) {
+          throw newCircuitOpenException();
+        }
 
-      HttpClient httpClient = HttpClient.newBuilder().sslContext(sslContext).build();
+        boolean recorded = false;
+        PipedXMLBody body = new PipedXMLBody(this);
 
-      HttpRequest request =
-          HttpRequest.newBuilder()
-              .uri(URI.create(putUrl))
-              .expectContinue(true)
-              .PUT(HttpRequest.BodyPublishers.ofString(xml))
-              .build();
+        try {
+          long id = performHttpPutToServer(filename, body);
+          breaker.recordSuccess();
+          recorded = true;
+          return id;
+        } catch (LogIOException | LogCertificateException | LogRuntimeException e) {
+          failures.add(toLogException(e));
+          recorded = recordOutcome(breaker, policy, e);
+
+          if (!policy.shouldRetry(attempt, e) || breaker.isOpen() || body.isUnanswered()) {
+            throw e;
+          }
 
-      HttpResponse<InputStream> response =
-          httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+          try {
+            Thread.sleep(policy.getDelayMillis(attempt));
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw e;
+          }
+        } finally {
+          body.close();
 
-      id = parseServerResponse(response.body());
-
-      /*URL url = new URL(putUrl);
-      con = (HttpsURLConnection) url.openConnection();
-      con.setSSLSocketFactory(SecurityUtil.getClientCertSocketFactoryPEM(
-              pemFilePath, !ignoreServerCert));
-      con.setRequestMethod("PUT");
-      con.setDoOutput(true);
-      //con.setChunkedStreamingMode(0);
-      //con.setRequestProperty("Expect", "100-Continue");
-      con.connect();
-
-      try (OutputStream out = con.getOutputStream();
-              OutputStreamWriter writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
-          writer.write(xml);
+          // Never leave the breaker half-open, whatever was thrown
+          if (!recorded) {
+            breaker.release();
+          }
+        }
       }
+    } finally {
+      failedAttempts = Collections.unmodifiableList(failures);
+    }
+  }
 
-      try (InputStream error = con.getErrorStream()) {
-          if (error != null) {
-              String errorMsg = IOUtil.streamToString(error, "UTF-8");
-              throw new IOException(errorMsg);
-          }
+  /**
+   * Perform the HTTP PUT request to the server with the log item without blocking the caller,
+   * retrying failures according to the configured RetryPolicy. Retries are scheduled after the
+   * backoff delay rather than waiting on a thread. Each failed attempt is recorded for
+   * getFailedAttempts. No attempt is made while the shared CircuitBreaker is open. Every attempt
+   * puts the same file name, and an attempt which sent the whole item but got no answer is not
+   * retried, as with performHttpPutToServerWithRetry.
+   *
+   * @return The future log number
+   */
+  CompletableFuture<Long> performHttpPutToServerWithRetryAsync() {
+    RetryPolicy policy;
+    CircuitBreaker breaker;
+
+    try {
+      policy = RetryPolicy.fromConfiguration();
+      breaker = getCircuitBreaker();
+    } catch (LogRuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+
+    CompletableFuture<Long> result = new CompletableFuture<>();
+    attemptHttpPutToServerAsync(
+        policy, breaker, generateXMLFilename(), 1, new ArrayList<>(), result);
+    return result;
+  }
+
+  private void attemptHttpPutToServerAsync(
+      RetryPolicy policy,
+      CircuitBreaker breaker,
+      String filename,
+      int attempt,
+      List<LogException> failures,
+      CompletableFuture<Long> result) {
+    try {
+      if (!breaker.tryAcquire()) {
+        throw newCircuitOpenException();
       }
+    } catch (LogIOException | LogRuntimeException e) {
+      failedAttempts = Collections.unmodifiableList(failures);
+      result.completeExceptionally(e);
+      return;
+    }
 
-      try (InputStream is = con.getInputStream()) {
-          id = parseServerResponse(is);
-      }*/
-    } catch (MalformedURLException e) {
-      throw new LogIOException("Invalid submission URL: check config file.", e);
-    } catch (IOException e) {
-      throw new LogIOException("Unable to submit to ELOG server.", e);
-    } catch (ClassCastException e) {
-      throw new LogIOException("Expected HTTP URL; check config file.", e);
-    } catch (NoSuchAlgorithmException e) {
-      throw new LogCertificateException("Invalid SSL certificate algorithm.", e);
-    } catch (CertificateException e) {
-      throw new LogCertificateException(
-          "Unable to obtain SSL connection due to certificate error.", e);
-    } catch (KeyStoreException e) {
-      throw new LogCertificateException(
-          "Unable to obtain SSL connection due to certificate error.", e);
-    } catch (KeyManagementException e) {
-      throw new LogCertificateException(
-          "Unable to obtain SSL connection due to certificate error.", e);
-    } catch (UnrecoverableKeyException e) {
-      throw new LogCertificateException(
-          "Unable to obtain SSL connection due to certificate error.", e);
-    } catch (InvalidKeySpecException e) {
-      throw new LogCertificateException(
-          "Unable to obtain SSL connection due to certificate error.", e);
-    } catch (InterruptedException e) {
-      throw new RuntimeException(e);
+    PipedXMLBody body = new PipedXMLBody(this);
+    CompletableFuture<Long> attemptFuture;
+
+    try {
+      attemptFuture = performHttpPutToServerAsync(filename, body);
+    } catch (RuntimeException e) {
+      attemptFuture = CompletableFuture.failedFuture(e);
     }
 
-    return id;
+    attemptFuture.whenComplete(
+        (id, t) -> {
+          if (t == null) {
+            breaker.recordSuccess();
+            failedAttempts = Collections.unmodifiableList(failures);
+            result.complete(id);
+            return;
+          }
+
+          failures.add(toLogException(t));
+          boolean recorded = false;
+
+          try {
+            recorded = recordOutcome(breaker, policy, t);
+          } catch (LogRuntimeException e) {
+            failedAttempts = Collections.unmodifiableList(failures);
+            result.completeExceptionally(e);
+            return;
+          } finally {
+            // Never leave the breaker half-open, whatever was thrown
+            if (!recorded) {
+              breaker.release();
+            }
+          }
+
+          if (policy.shouldRetry(attempt, t) && !breaker.isOpen() && !body.isUnanswered()) {
+            Executor delayed =
+                CompletableFuture.delayedExecutor(
+                    policy.getDelayMillis(attempt), TimeUnit.MILLISECONDS);
+            CompletableFuture.runAsync(
+                () ->
+                    attemptHttpPutToServerAsync(
+                        policy, breaker, filename, attempt + 1, failures, result),
+                delayed);
+          } else {
+            failedAttempts = Collections.unmodifiableList(failures);
+            result.completeExceptionally(t);
+          }
+        });
+  }
+
+  /**
+   * Return the shared CircuitBreaker for the configured submit URL.
+   *
+   * @return The breaker
+   */
+  static CircuitBreaker getCircuitBreaker() {
+    return CircuitBreaker.forServer(Library.getConfiguration().getProperty("SUBMIT_URL"));
+  }
+
+  private static LogIOException newCircuitOpenException() {
+    return new LogIOException(
+        "Submission to ELOG server skipped; server unavailable after repeated failures.");
+  }
+
+  /**
+   * Report the outcome of a failed attempt to the breaker. Only a transient failure counts against
+   * the server. A failure in this client, such as an unreadable client certificate or an invalid
+   * configuration property, says nothing about the server and is not recorded; the caller must
+   * release the breaker instead. Any other failure means the server was reached and rejected the
+   * submission, so it is up.
+   *
+   * @param breaker The breaker
+   * @param policy The retry policy which classifies failures
+   * @param t The failure
+   * @return true if the outcome was recorded, false if the breaker must be released
+   * @throws LogRuntimeException If a circuit breaker property is invalid
+   */
+  private static boolean recordOutcome(CircuitBreaker breaker, RetryPolicy policy, Throwable t)
+      throws LogRuntimeException {
+    LogException failure = toLogException(t);
+
+    if (failure instanceof LogCertificateException
+        || failure.getCause() instanceof RuntimeException) {
+      return false;
+    }
+
+    if (policy.isTransient(t)) {
+      breaker.recordFailure();
+    } else {
+      breaker.recordSuccess();
+    }
+
+    return true;
+  }
+
+  /**
+   * Return the exception which prevented the request body from being fully written if there is
+   * one, since a truncated body is the real reason the server rejected the request. Otherwise the
+   * specified exception is returned.
+   *
+   * @param body The request body
+   * @param e The exception from the exchange
+   * @return The exception to report
+   * @throws LogRuntimeException If the body could not be written due to a transform error
+   */
+  private static LogIOException bodyFailureOr(PipedXMLBody body, LogIOException e)
+      throws LogRuntimeException {
+    Exception failure = body.getFailure();
+
+    if (failure instanceof LogIOException) {
+      return (LogIOException) failure;
+    } else if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    }
+
+    return e;
+  }
+
+  /**
+   * Convert a Throwable from a submission attempt into a LogException. Wrapping
+   * CompletionException and ExecutionException layers are removed first.
+   *
+   * @param t The Throwable
+   * @return The LogException
+   */
+  static LogException toLogException(Throwable t) {
+    while ((t instanceof CompletionException || t instanceof ExecutionException)
+        && t.getCause() != null) {
+      t = t.getCause();
+    }
+
+    LogException e;
+
+    if (t instanceof LogException) {
+      e = (LogException) t;
+    } else if (t instanceof IOException) {
+      e = new LogIOException("Unable to submit to ELOG server.", t);
+    } else {
+      e = new LogException(t.getMessage(), t);
+    }
+
+    return e;
   }
 
   /**
-   * Return the Document object for the Document Object Model (DOM).
+   * Build a new Document Object Model (DOM) from the fields of this log item. Each call returns a
+   * new Document, so changes to it do not affect the log item.
    *
    * @return The Document
+   * @throws LogRuntimeException If unable to build the Document
    */
-  Document getDocument() {
+  Document getDocument() throws LogRuntimeException {
+    Document doc = getDocumentBuilder().newDocument();
+    doc.appendChild(toElement(doc));
     return doc;
   }
 
   /**
-   * Return the root Element of this log item.
+   * Create the root Element of this log item in the specified Document, for example to nest this
+   * log item inside another.
    *
-   * @return The root (document) Element
+   * @param doc The Document
+   * @return The root Element
    */
-  Element getRoot() {
+  Element toElement(Document doc) {
+    Element root = doc.createElement(rootTagName);
+    rootAttributes.forEach(root::setAttribute);
+    writeElements(doc, root);
     return root;
   }
 
   /**
-   * Return the XPath object used to compile XPath expressions.
+   * Return the DocumentBuilder for the calling thread. A DocumentBuilder is not thread-safe, so
+   * each thread reuses its own instead of each log item creating one.
    *
-   * @return The XPath object
+   * @return The DocumentBuilder
    */
-  XPath getXPath() {
-    return xpath;
+  static DocumentBuilder getDocumentBuilder() {
+    return builders.get();
+  }
+
+  private static DocumentBuilder newDocumentBuilder() {
+    try {
+      return DocumentBuilderFactory.newInstance().newDocumentBuilder();
+    } catch (ParserConfigurationException e) {
+      throw new LogRuntimeException("Unable to obtain XML document builder.", e);
+    }
   }
 
   /**
    * Construct the HTTP PUT URL to use when submitting log entries and comments using the the
-   * SUBMIT_URL configuration property and the generateXMLFilename method.
+   * SUBMIT_URL configuration property and the specified file name. The file name is generated
+   * once per submission with the generateXMLFilename method and reused by every attempt, so the
+   * server sees a retry as the same submission.
    *
+   * @param filename The file name
    * @return The HTTP PUT URL
    * @throws LogRuntimeException If unable to construct
    */
-  String buildHttpPutUrl() throws LogRuntimeException {
+  String buildHttpPutUrl(String filename) throws LogRuntimeException {
     StringBuilder strBuilder = new StringBuilder();
 
     Properties props = Library.getConfiguration();
@@ -927,7 +1463,7 @@ abstract class LogItem {
       strBuilder.append("/");
     }
 
-    strBuilder.append(generateXMLFilename());
+    strBuilder.append(filename);
 
     return strBuilder.toString();
   }
@@ -972,16 +1508,10 @@ abstract class LogItem {
       X509Certificate cert =
           SecurityUtil.fetchCertificateFromPEM(IOUtil.fileToBytes(new File(certificatePath)));
       String commonName = SecurityUtil.getCommonNameFromCertificate(cert);
-      if (commonName != null) {
-        Node authorNode = (Node) authorTextExpression.evaluate(doc, XPathConstants.NODE);
-        if (authorNode != null) {
-          authorNode.setNodeValue(commonName);
-        }
+      if (commonName != null && author != null) {
+        author = commonName;
       }
-    } catch (IOException
-        | CertificateException
-        | InvalidNameException
-        | XPathExpressionException e) {
+    } catch (IOException | CertificateException | InvalidNameException e) {
       throw new LogException("Unable to set author to certificate user", e);
     }
   }
@@ -1000,32 +1530,72 @@ abstract class LogItem {
    * log number is zero then the submission was queued instead of being consumed directly by the
    * server.
    *
+   * <p>Transient failures of direct submission are retried according to the SUBMIT_RETRY_*
+   * configuration properties before falling back to the queue; see getFailedAttempts. While the
+   * server is unavailable after repeated failures (see the CIRCUIT_BREAKER_* configuration
+   * properties) the item is queued without attempting direct submission.
+   *
    * @return The log number, zero means queued
    * @throws InvalidXMLException If unable to submit due to invalid XML
    * @throws LogIOException If unable to submit due to IO
    */
   public long submit() throws InvalidXMLException, LogIOException {
+    startSpool();
+
     long id = 0L;
 
     try {
-      id = performHttpPutToServer();
+      id = performHttpPutToServerWithRetry();
     } catch (Exception e) {
-      if (e instanceof LogException) {
-        submitException = (LogException) e;
-      } else {
-        submitException = new LogException(e.getMessage(), e);
-      }
+      submitException = toLogException(e);
       queue();
     }
 
     return id;
   }
 
+  /**
+   * Submit the log item without blocking the caller, using the queue mechanism as a fallback. The
+   * returned future completes with the log number, or zero if the submission was queued instead of
+   * being consumed directly by the server. If queuing fails too the future completes exceptionally
+   * with an InvalidXMLException or LogIOException as the cause.
+   *
+   * <p>Transient failures are retried as with submit, after a backoff delay which does not block a
+   * thread. The queue fallback always runs on a library thread once the direct submission fails,
+   * even if it fails at once (for example while the server is unavailable after repeated
+   * failures), so this method never waits on the queue directory.
+   *
+   * @return The future log number, zero means queued
+   */
+  public CompletableFuture<Long> submitAsync() {
+    startSpool();
+
+    return performHttpPutToServerWithRetryAsync()
+        .handleAsync(
+            (id, t) -> {
+              if (t == null) {
+                return id;
+              }
+
+              submitException = toLogException(t);
+
+              try {
+                queue();
+              } catch (LogException e) {
+                throw new CompletionException(e);
+              }
+
+              return 0L;
+            },
+            completions);
+  }
+
   /**
    * Submit the log item using only direct submission to the server using the client certificate
    * named <em>.elogcert</em> in the user's home directory and return the log number. If an error
    * occurs during submission then an Exception will be thrown instead of falling back to the queue
-   * method.
+   * method. Transient failures are retried first as with submit. While the server is unavailable
+   * after repeated failures a LogIOException is thrown at once.
    *
    * @return The log number
    * @throws LogIOException If unable to submit due to IO
@@ -1033,13 +1603,47 @@ abstract class LogItem {
    * @throws LogRuntimeException If unable to submit
    */
   public long submitNow() throws LogIOException, LogCertificateException, LogRuntimeException {
-    return performHttpPutToServer();
+    return performHttpPutToServerWithRetry();
+  }
+
+  /**
+   * Submit the log item using only direct submission to the server without blocking the caller.
+   * The returned future completes with the log number, or completes exceptionally with a
+   * LogIOException, LogCertificateException, or LogRuntimeException as the cause instead of falling
+   * back to the queue method. Transient failures are retried first as with submit.
+   *
+   * @return The future log number
+   */
+  public CompletableFuture<Long> submitNowAsync() {
+    return performHttpPutToServerWithRetryAsync();
+  }
+
+  /**
+   * Submit the log item in write-behind mode: the item is durably written to the local outbox
+   * directory given by the OUTBOX_PATH configuration property and this method returns at once,
+   * without waiting on the network. A background sender submits the item to the server and the
+   * returned future then completes with the log number, or completes exceptionally with a
+   * SubmissionRejectedException if the server rejects the item. See Outbox.
+   *
+   * @return The future log number
+   * @throws InvalidXMLException If the XML is invalid
+   * @throws LogIOException If unable to write the item to the outbox
+   * @throws LogRuntimeException If OUTBOX_PATH is empty or the outbox cannot be created
+   */
+  public CompletableFuture<Long> submitWriteBehind()
+      throws InvalidXMLException, LogIOException, LogRuntimeException {
+    return Outbox.getDefault().submit(this);
   }
 
   /**
    * Generate an XML filename for log entries and comments submission. The format expected by the
    * logbook server is: [timestamp]_[pid]_[hostname]_[random].xml
    *
+   * <p>The last part is a counter which increases with each name generated by this process rather
+   * than a random number, so two items queued by the same process in the same second can never be
+   * given the same name. It is zero padded so that sorting the names sorts such items in the order
+   * they were queued.
+   *
    * @return The filename
    */
   String generateXMLFilename() {
@@ -1061,14 +1665,14 @@ abstract class LogItem {
       hostname = "unknown";
     }
 
-    int random = (int) (Math.random() * 10000);
+    long sequence = queueSequence.incrementAndGet();
 
     filenameBuilder.append(date);
     filenameBuilder.append(pid);
     filenameBuilder.append("_");
     filenameBuilder.append(hostname);
     filenameBuilder.append("_");
-    filenameBuilder.append(random);
+    filenameBuilder.append(String.format("%06d", sequence));
     filenameBuilder.append(".xml");
 
     return filenameBuilder.toString();
@@ -1116,32 +1720,183 @@ abstract class LogItem {
   }
 
   /**
-   * Queue the log item into configured file path.
+   * Return the exceptions from each failed attempt at direct submission to the server during the
+   * most recent submission, in order. A transient failure such as a refused connection is retried
+   * according to the SUBMIT_RETRY_* configuration properties before the submission falls back to
+   * the queue (or fails, for submitNow), so a submission which succeeded may still have failed
+   * attempts. The list is empty if the first attempt succeeded or no submission was made.
+   *
+   * @return The unmodifiable list of failed attempts
+   */
+  public List<LogException> getFailedAttempts() {
+    return failedAttempts;
+  }
+
+  /**
+   * Start the shared spool mover if the SPOOL_PATH configuration property is set, so items left in
+   * the spool by an earlier run are forwarded even if nothing is queued. A failure is logged rather
+   * than thrown, since the submission may not need the spool.
+   */
+  private static void startSpool() {
+    try {
+      Spool.getDefault();
+    } catch (LogRuntimeException e) {
+      logger.log(Level.WARNING, "Unable to start spool mover", e);
+    }
+  }
+
+  /**
+   * Queue the log item into configured file path. If the SPOOL_PATH configuration property is set
+   * the item is written to the local Spool instead, which forwards it to the queue later.
    *
    * @throws InvalidXMLException If the XML is invalid
    * @throws LogIOException If unable to queue due to IO
    */
   void queue() throws InvalidXMLException, LogIOException {
-    String filename = generateXMLFilename();
-    String filepath = new File(getQueuePath(), filename).getAbsolutePath();
-    queue(filepath);
+    Spool spool = Spool.getDefault();
+
+    if (spool != null) {
+      spool.put(this);
+      return;
+    }
+
+    queueToQueuePath(generateXMLFilename());
+  }
+
+  /**
+   * Queue the log item into the configured queue path under the specified file name. If the
+   * QUEUE_BACKEND configuration property is "journal" the item is appended to the QueueJournal of
+   * the queue directory instead of being written to a file of its own. If the queue is full the
+   * QUEUE_OVERFLOW_POLICY configuration property decides whether to wait, make room, or fail; see
+   * QueueCapacity. If the QUEUE_COALESCE configuration property is "true" queued revisions which
+   * this item supersedes are removed once it is written; see QueueCoalescer.
+   *
+   * @param filename The queue file name
+   * @throws InvalidXMLException If the XML is invalid
+   * @throws QueueFullException If the queue is full
+   * @throws LogIOException If unable to queue due to IO
+   */
+  void queueToQueuePath(String filename) throws InvalidXMLException, LogIOException {
+    String queuePath = getQueuePath();
+    File dir = new File(queuePath);
+    File file = new File(dir, filename);
+    boolean journal = isJournalQueueBackend();
+
+    QueueCapacity.Eviction eviction =
+        QueueCapacity.fromConfiguration().ensureRoom(dir, this, filename);
+
+    try {
+      if (journal) {
+        QueueJournal.forDirectory(queuePath).append(this);
+      } else {
+        queue(file.getAbsolutePath());
+      }
+    } catch (InvalidXMLException | LogIOException | RuntimeException e) {
+      // Nothing is dropped to make room for an item which was not queued
+      eviction.cancel();
+      throw e;
+    }
+
+    eviction.commit();
+
+    // The size of a journal record is not known here, so only its file is counted
+    QueueCapacity.recordQueued(dir, journal ? 0 : file.length());
+
+    if (!journal && QueueCoalescer.isEnabled()) {
+      QueueCoalescer.removeSupersededRevisions(dir, this, file);
+    }
+  }
+
+  /**
+   * Force the specified directory to disk so a rename into it is durable. Not all platforms allow
+   * a directory to be opened, in which case this does nothing.
+   *
+   * @param dir The directory
+   */
+  private static void syncDirectory(Path dir) {
+    try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // Not supported here (Windows); the rename is as durable as the platform allows
+    }
+  }
+
+  private static boolean isJournalQueueBackend() throws LogRuntimeException {
+    String backend = Library.getConfiguration().getProperty("QUEUE_BACKEND");
+
+    if (backend == null || backend.trim().isEmpty() || backend.trim().equals("files")) {
+      return false;
+    }
+
+    if (backend.trim().equals("journal")) {
+      return true;
+    }
+
+    throw new LogRuntimeException("QUEUE_BACKEND must be files or journal.");
   }
 
   /**
-   * Queue the log item into the specified file path.
+   * Queue the log item into the specified file path. The XML is written to a temporary file in the
+   * same directory which is then atomically renamed to the file path, so a consumer of the queue
+   * never sees a partially written file. If the QUEUE_FSYNC configuration property is "true" the
+   * file is also forced to disk before it is renamed.
    *
    * @param filepath The queue file path
    * @throws InvalidXMLException If the XML is invalid
    * @throws LogIOException If unable to queue due to IO
    */
   void queue(String filepath) throws InvalidXMLException, LogIOException {
-    String xml = getXML();
+    boolean sync = "true".equals(Library.getConfiguration().getProperty("QUEUE_FSYNC"));
+    queue(filepath, sync);
+  }
+
+  /**
+   * Queue the log item into the specified file path, optionally forcing the file and the rename to
+   * disk so the item survives a crash once this method returns.
+   *
+   * @param filepath The queue file path
+   * @param sync true to force the file and directory to disk
+   * @throws InvalidXMLException If the XML is invalid
+   * @throws LogIOException If unable to queue due to IO
+   */
+  void queue(String filepath, boolean sync) throws InvalidXMLException, LogIOException {
+    Path target = Paths.get(filepath).toAbsolutePath();
+    Path temp = null;
+
+    try {
+      // A dot prefix and no .xml extension so the consumer ignores the file while it is written
+      temp = Files.createTempFile(target.getParent(), ".jlog", ".tmp");
+
+      try (FileOutputStream fileOut = new FileOutputStream(temp.toFile());
+          OutputStream out = new BufferedOutputStream(fileOut)) {
+        writeXML(out);
+
+        if (sync) {
+          fileOut.getFD().sync();
+        }
+      }
+
+      try {
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
 
-    try (FileOutputStream out = new FileOutputStream(filepath);
-        OutputStreamWriter writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
-      writer.write(xml);
+      temp = null;
+
+      if (sync) {
+        syncDirectory(target.getParent());
+      }
     } catch (IOException e) {
       throw new LogIOException("Unable to write XML file to queue.", e);
+    } finally {
+      if (temp != null) {
+        try {
+          Files.deleteIfExists(temp);
+        } catch (IOException e) {
+          // Already failing; a leftover temporary file is ignored by the consumer
+        }
+      }
     }
   }
 }
@@ -0,0 +1,142 @@
+package org.jlab.jlog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import org.jlab.jlog.exception.LogIOException;
+import org.jlab.jlog.exception.LogRuntimeException;
+
+/**
+ * Submits many log entries and comments at once. The HTTP PUT requests are pipelined over the
+ * shared HTTP connections with a bounded number of requests in flight at a time, instead of waiting
+ * for each round trip in turn.
+ *
+ * <p>The default in-flight limit is taken from the SUBMIT_MAX_IN_FLIGHT configuration property.
+ *
+ * @author ryans
+ */
+public class LogbookSubmitter {
+
+  private static final long DEFAULT_MAX_IN_FLIGHT = 8;
+
+  private final int maxInFlight;
+  private final boolean allowQueue;
+
+  /**
+   * Construct a new LogbookSubmitter which uses the configured in-flight limit and falls back to
+   * the queue mechanism for items which cannot be submitted directly.
+   *
+   * @throws LogRuntimeException If the SUBMIT_MAX_IN_FLIGHT property is invalid
+   */
+  public LogbookSubmitter() throws LogRuntimeException {
+    this((int) Library.getLongProperty("SUBMIT_MAX_IN_FLIGHT", DEFAULT_MAX_IN_FLIGHT), true);
+  }
+
+  /**
+   * Construct a new LogbookSubmitter with the specified in-flight limit.
+   *
+   * @param maxInFlight The maximum number of requests in flight at a time
+   * @param allowQueue true to queue items which cannot be submitted directly (like submit), false
+   *     to report them as failed (like submitNow)
+   * @throws LogRuntimeException If maxInFlight is less than one
+   */
+  public LogbookSubmitter(int maxInFlight, boolean allowQueue) throws LogRuntimeException {
+    if (maxInFlight < 1) {
+      throw new LogRuntimeException("maxInFlight must be at least 1.");
+    }
+
+    this.maxInFlight = maxInFlight;
+    this.allowQueue = allowQueue;
+  }
+
+  /**
+   * Return the maximum number of requests in flight at a time.
+   *
+   * @return The in-flight limit
+   */
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  /**
+   * Submit all of the specified items and wait for them to complete. A result is returned for every
+   * item, in the iteration order of the collection, with the log number, whether it was queued, or
+   * the exception that prevented submission.
+   *
+   * <p>If the calling thread is interrupted while waiting for an in-flight slot the remaining items
+   * are not submitted and are reported as failed; the interrupt status is restored before
+   * returning.
+   *
+   * @param items The log entries and comments
+   * @return The results
+   */
+  public List<SubmitResult> submitAll(Collection<? extends LogItem> items) {
+    Semaphore permits = new Semaphore(maxInFlight);
+    List<CompletableFuture<SubmitResult>> futures = new ArrayList<>(items.size());
+    boolean interrupted = false;
+
+    for (LogItem item : items) {
+      if (!interrupted) {
+        try {
+          permits.acquire();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+
+      if (interrupted) {
+        futures.add(
+            CompletableFuture.completedFuture(
+                new SubmitResult(
+                    item,
+                    SubmitResult.Status.FAILED,
+                    null,
+                    new LogIOException("Interrupted before submission."))));
+        continue;
+      }
+
+      CompletableFuture<Long> future;
+
+      try {
+        future = allowQueue ? item.submitAsync() : item.submitNowAsync();
+      } catch (RuntimeException e) {
+        future = CompletableFuture.failedFuture(e);
+      }
+
+      futures.add(
+          future.handle(
+              (id, t) -> {
+                permits.release();
+                return toResult(item, id, t);
+              }));
+    }
+
+    List<SubmitResult> results = new ArrayList<>(futures.size());
+
+    for (CompletableFuture<SubmitResult> future : futures) {
+      results.add(future.join());
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    return results;
+  }
+
+  private SubmitResult toResult(LogItem item, Long id, Throwable t) {
+    SubmitResult result;
+
+    if (t != null) {
+      result = new SubmitResult(item, SubmitResult.Status.FAILED, null, LogItem.toLogException(t));
+    } else if (id == 0L) {
+      result = new SubmitResult(item, SubmitResult.Status.QUEUED, null, item.whyQueued());
+    } else {
+      result = new SubmitResult(item, SubmitResult.Status.SUBMITTED, id, null);
+    }
+
+    return result;
+  }
+}
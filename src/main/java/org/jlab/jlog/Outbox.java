@@ -0,0 +1,150 @@
+package org.jlab.jlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jlab.jlog.exception.InvalidXMLException;
+import org.jlab.jlog.exception.LogException;
+import org.jlab.jlog.exception.LogIOException;
+import org.jlab.jlog.exception.LogRuntimeException;
+
+/**
+ * A local, durable outbox for write-behind submission. Submitting an item writes it to the outbox
+ * directory and forces it to disk, which takes no network round trip, and returns a future which
+ * completes with the log number once a background sender has submitted the item to the server.
+ *
+ * <p>The sender is a QueueDrainer over the outbox directory, woken as each item is written. An item
+ * which cannot be submitted because the server is unreachable stays in the outbox and is tried
+ * again on each scan, so its future stays incomplete until the server accepts it. An item which is
+ * never tried again, because the server rejects it or its file cannot be parsed, is moved to the
+ * .failed subdirectory of the outbox and its future completes exceptionally with the reason, such
+ * as the SubmissionRejectedException. Items left in the outbox by a process which
+ * exited or crashed are sent once an outbox over the same directory is created again, though there
+ * is then no future for them.
+ *
+ * <p>The outbox should be on a local, persistent disk rather than the shared queue directory. The
+ * shared outbox is over the directory given by the OUTBOX_PATH configuration property; if the
+ * property is set in the jlog.properties file its sender is started when the library is loaded, so
+ * items left by an earlier run are sent without waiting for the next write-behind submission. The
+ * sender uses the QUEUE_DRAIN_PARALLELISM, QUEUE_DRAIN_INTERVAL_SECONDS, and
+ * QUEUE_LEASE_TIMEOUT_SECONDS configuration properties; submitted files are deleted.
+ *
+ * @author ryans
+ */
+public class Outbox {
+
+  private static Outbox defaultOutbox;
+
+  private final File dir;
+  private final QueueDrainer sender;
+  private final Map<String, CompletableFuture<Long>> tickets = new ConcurrentHashMap<>();
+
+  /**
+   * Construct a new Outbox over the specified directory, creating the directory if necessary, and
+   * start its background sender.
+   *
+   * @param path The outbox directory
+   * @throws LogRuntimeException If unable to create the directory or a property is invalid
+   */
+  public Outbox(String path) throws LogRuntimeException {
+    dir = new File(path);
+
+    try {
+      Files.createDirectories(dir.toPath());
+    } catch (IOException e) {
+      throw new LogRuntimeException("Unable to create outbox directory " + dir + ".", e);
+    }
+
+    sender = QueueDrainer.forDirectory(path);
+    sender.setResultListener(this::complete);
+    sender.start();
+  }
+
+  /**
+   * Return the shared outbox over the directory given by the OUTBOX_PATH configuration property,
+   * creating it if necessary. There is no default directory since the temporary directory may be
+   * cleared on reboot, losing items the caller was told were durably written.
+   *
+   * @return The outbox
+   * @throws LogRuntimeException If OUTBOX_PATH is empty or unable to create the outbox
+   */
+  static synchronized Outbox getDefault() throws LogRuntimeException {
+    if (defaultOutbox == null) {
+      String path = Library.getConfiguration().getProperty("OUTBOX_PATH");
+
+      if (path == null || path.isEmpty()) {
+        throw new LogRuntimeException("OUTBOX_PATH must be set to submit in write-behind mode.");
+      }
+
+      defaultOutbox = new Outbox(path);
+    }
+
+    return defaultOutbox;
+  }
+
+  /** Stop the sender of the shared outbox, if any. Items not yet sent remain in the outbox. */
+  static synchronized void closeDefault() {
+    if (defaultOutbox != null) {
+      defaultOutbox.close();
+      defaultOutbox = null;
+    }
+  }
+
+  /**
+   * Durably write the specified item to the outbox and return a future which completes with the
+   * log number once the item is submitted to the server, or completes exceptionally if the server
+   * rejects it.
+   *
+   * @param item The log entry or comment
+   * @return The future log number
+   * @throws InvalidXMLException If the XML is invalid
+   * @throws LogIOException If unable to write the item to the outbox
+   */
+  public CompletableFuture<Long> submit(LogItem item) throws InvalidXMLException, LogIOException {
+    String filename = item.generateXMLFilename();
+    CompletableFuture<Long> ticket = new CompletableFuture<>();
+
+    // Registered first as the sender may submit the file as soon as it exists
+    tickets.put(filename, ticket);
+
+    try {
+      item.queue(new File(dir, filename).getAbsolutePath(), true);
+    } catch (InvalidXMLException | LogIOException | RuntimeException e) {
+      tickets.remove(filename);
+      throw e;
+    }
+
+    sender.wakeUp();
+
+    return ticket;
+  }
+
+  /**
+   * Stop the background sender. A send in progress is allowed to finish. Items not yet sent remain
+   * in the outbox and their futures do not complete.
+   */
+  public void close() {
+    sender.stop();
+  }
+
+  private void complete(String filename, SubmitResult result) {
+    if (result.getStatus() == SubmitResult.Status.SUBMITTED) {
+      CompletableFuture<Long> ticket = tickets.remove(filename);
+
+      if (ticket != null) {
+        ticket.complete(result.getLogNumber());
+      }
+    } else if (new File(new File(dir, QueueDrainer.FAILED_DIR_NAME), filename).exists()) {
+      // Moved to the failed directory rather than returned to the outbox, so never tried again
+      CompletableFuture<Long> ticket = tickets.remove(filename);
+
+      if (ticket != null) {
+        LogException e = result.getException();
+        ticket.completeExceptionally(e != null ? e : new LogIOException("Item not submitted."));
+      }
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package org.jlab.jlog;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jlab.jlog.exception.LogException;
+import org.jlab.jlog.util.IOUtil;
+
+/**
+ * Streams the XML of a log item into an HTTP request body. The XML is written by a producer thread
+ * into a pipe which the HTTP client reads from, so the document is never held in memory as a
+ * String.
+ *
+ * <p>A new pipe is created each time the HTTP client asks for the body (it may ask more than
+ * once). The body should be closed when the exchange is complete so that a producer blocked on an
+ * abandoned request is released.
+ *
+ * <p>The length of the body is not known until the XML has been written, so the request is sent
+ * chunked. Measuring it first would mean serializing the document, including every file
+ * attachment, twice.
+ *
+ * @author ryans
+ */
+final class PipedXMLBody implements Supplier<InputStream>, AutoCloseable {
+
+  private static final Logger logger = Logger.getLogger(PipedXMLBody.class.getName());
+  private static final int PIPE_BUFFER_BYTES = 64 * 1024;
+  private static final int CHUNK_BYTES = 8 * 1024;
+  private static final AtomicInteger threadCount = new AtomicInteger();
+  private static final ExecutorService producers =
+      Executors.newCachedThreadPool(
+          r -> {
+            Thread thread = new Thread(r, "jlog-xml-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private final LogItem item;
+  private final List<PipedInputStream> pipes = new ArrayList<>();
+  private volatile Exception failure;
+  private volatile boolean sent;
+  private volatile boolean answered;
+
+  /**
+   * Construct a new PipedXMLBody for the specified log item.
+   *
+   * @param item The log item
+   */
+  PipedXMLBody(LogItem item) {
+    this.item = item;
+  }
+
+  @Override
+  public InputStream get() {
+    // The end of the pipe is only reached once the producer has written the whole document
+    PipedInputStream in =
+        new PipedInputStream(PIPE_BUFFER_BYTES) {
+          @Override
+          public synchronized int read() throws IOException {
+            return checkEnd(super.read());
+          }
+
+          @Override
+          public synchronized int read(byte[] b, int off, int len) throws IOException {
+            return checkEnd(super.read(b, off, len));
+          }
+        };
+    OutputStream out;
+
+    try {
+      // A reader blocked on an empty pipe is only woken promptly by flush, so flush every chunk
+      out =
+          new BufferedOutputStream(
+              new PipedOutputStream(in) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                  super.write(b, off, len);
+                  flush();
+                }
+              },
+              CHUNK_BYTES);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    synchronized (pipes) {
+      pipes.add(in);
+    }
+
+    producers.execute(
+        () -> {
+          try {
+            item.writeXML(out);
+          } catch (LogException | RuntimeException e) {
+            failure = e;
+            logger.log(Level.FINE, "Unable to stream XML request body.", e);
+          } finally {
+            IOUtil.closeQuietly(out);
+          }
+        });
+
+    return in;
+  }
+
+  private int checkEnd(int result) {
+    if (result < 0 && failure == null) {
+      sent = true;
+    }
+
+    return result;
+  }
+
+  /** Record that the server answered the request carrying this body. */
+  void markAnswered() {
+    answered = true;
+  }
+
+  /**
+   * Return true if the HTTP client read the whole document but the server did not answer, so the
+   * server may or may not have accepted it.
+   *
+   * @return true if the outcome is unknown
+   */
+  boolean isUnanswered() {
+    return sent && !answered;
+  }
+
+  /**
+   * Return the exception which stopped the producer from writing the whole document, or null if
+   * none.
+   *
+   * @return The exception or null
+   */
+  Exception getFailure() {
+    return failure;
+  }
+
+  /** Close all pipes handed out so far, releasing any producer still writing to them. */
+  @Override
+  public void close() {
+    synchronized (pipes) {
+      for (PipedInputStream in : pipes) {
+        IOUtil.closeQuietly(in);
+      }
+
+      pipes.clear();
+    }
+  }
+}
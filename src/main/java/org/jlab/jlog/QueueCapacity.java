@@ -0,0 +1,512 @@
+package org.jlab.jlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jlab.jlog.exception.LogIOException;
+import org.jlab.jlog.exception.LogRuntimeException;
+import org.jlab.jlog.exception.QueueFullException;
+
+/**
+ * Bounds the number of items and bytes in a queue directory so a long outage cannot fill the disk
+ * and then flood the server once it returns. Before an item is queued the directory is measured;
+ * the item is accepted while the queue is below both QUEUE_MAX_ITEMS and QUEUE_MAX_BYTES (zero
+ * means no limit), otherwise QUEUE_OVERFLOW_POLICY decides:
+ *
+ * <ul>
+ *   <li>BLOCK waits up to QUEUE_BLOCK_TIMEOUT_MS for a drainer or the server to make room
+ *   <li>REJECT fails at once
+ *   <li>DROP_OLDEST deletes the oldest queued items (oldest journal segments for a journal queue)
+ *   <li>COALESCE deletes queued revisions of the same log entry, which the new revision supersedes
+ * </ul>
+ *
+ * If there is still no room the item is not queued and a QueueFullException is thrown. Queue files
+ * and journal segments both count; items leased by a QueueDrainer do not. Many clients may queue at
+ * once, so the limits are approximate.
+ *
+ * <p>Measuring the queue lists the directory and reads the length prefixes of every journal record,
+ * so a measurement is cached for QUEUE_MEASURE_TTL_MS milliseconds and shared by every enqueue,
+ * BLOCK poll, and Library.getQueueDepth call in this process. Items queued and evicted by this
+ * process are added to and subtracted from the cached measurement as they happen, and a drain by a
+ * QueueDrainer in this process discards it, so only the work of other processes is seen late.
+ *
+ * <p>The files DROP_OLDEST and COALESCE remove are first leased by atomically renaming them to a
+ * hidden name, so neither a QueueDrainer nor the server can take them meanwhile. They are only
+ * deleted once the new item is written (see Eviction); if it cannot be written they are returned
+ * to the queue. A lease left behind by a process which died before it could do either is returned
+ * to the queue by the next measurement once it is EVICTION_TIMEOUT_MS old.
+ *
+ * @author ryans
+ */
+final class QueueCapacity {
+
+  private static final Logger logger = Logger.getLogger(QueueCapacity.class.getName());
+  private static final long DEFAULT_BLOCK_TIMEOUT_MS = 10000;
+  private static final long BLOCK_POLL_MS = 250;
+  private static final long DEFAULT_MEASURE_TTL_MS = 1000;
+  private static final String EVICTING_SUFFIX = ".evicting";
+
+  /** Evicting an item takes as long as writing one; a lease this old was left by a dead process */
+  static final long EVICTION_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(10);
+
+  private static final Map<String, Measurement> measurements = new ConcurrentHashMap<>();
+
+  /** The overflow policy enumeration. */
+  enum OverflowPolicy {
+    /** Wait for room */
+    BLOCK,
+    /** Fail at once */
+    REJECT,
+    /** Delete the oldest queued items */
+    DROP_OLDEST,
+    /** Delete queued revisions superseded by the new item */
+    COALESCE
+  }
+
+  private final long maxItems;
+  private final long maxBytes;
+  private final OverflowPolicy policy;
+  private final long blockTimeoutMillis;
+
+  private QueueCapacity(
+      long maxItems, long maxBytes, OverflowPolicy policy, long blockTimeoutMillis) {
+    this.maxItems = maxItems;
+    this.maxBytes = maxBytes;
+    this.policy = policy;
+    this.blockTimeoutMillis = blockTimeoutMillis;
+  }
+
+  /**
+   * Return the capacity described by the configuration properties.
+   *
+   * @return The capacity
+   * @throws LogRuntimeException If a queue capacity property is invalid
+   */
+  static QueueCapacity fromConfiguration() throws LogRuntimeException {
+    long maxItems = Library.getLongProperty("QUEUE_MAX_ITEMS", 0);
+    long maxBytes = Library.getLongProperty("QUEUE_MAX_BYTES", 0);
+    long timeout = Library.getLongProperty("QUEUE_BLOCK_TIMEOUT_MS", DEFAULT_BLOCK_TIMEOUT_MS);
+    String name = Library.getConfiguration().getProperty("QUEUE_OVERFLOW_POLICY");
+    OverflowPolicy policy;
+
+    try {
+      policy =
+          (name == null || name.trim().isEmpty())
+              ? OverflowPolicy.REJECT
+              : OverflowPolicy.valueOf(name.trim());
+    } catch (IllegalArgumentException e) {
+      throw new LogRuntimeException(
+          "QUEUE_OVERFLOW_POLICY must be BLOCK, REJECT, DROP_OLDEST, or COALESCE.", e);
+    }
+
+    return new QueueCapacity(maxItems, maxBytes, policy, Math.max(timeout, 0));
+  }
+
+  /**
+   * Make room for the specified item in the specified queue directory according to the overflow
+   * policy, or throw an exception if there is no room. Returns at once if there are no limits. The
+   * caller must commit the returned eviction once the item is written, or cancel it if the item is
+   * not written.
+   *
+   * @param dir The queue directory
+   * @param item The log entry or comment about to be queued
+   * @param filename The queue file name of the item
+   * @return The queued items leased to make room, if any
+   * @throws QueueFullException If there is no room for the item
+   * @throws LogIOException If unable to measure the queue
+   * @throws LogRuntimeException If the QUEUE_MEASURE_TTL_MS property is invalid
+   */
+  Eviction ensureRoom(File dir, LogItem item, String filename)
+      throws QueueFullException, LogIOException, LogRuntimeException {
+    Eviction eviction = new Eviction(dir);
+
+    if (maxItems <= 0 && maxBytes <= 0) {
+      return eviction;
+    }
+
+    Usage usage = getUsage(dir);
+
+    if (!isFull(usage)) {
+      return eviction;
+    }
+
+    try {
+      switch (policy) {
+        case BLOCK:
+          usage = awaitRoom(dir, usage);
+          break;
+        case DROP_OLDEST:
+          usage = dropOldest(dir, usage, eviction);
+          break;
+        case COALESCE:
+          for (File revision : QueueCoalescer.findSupersededRevisions(dir, item, filename)) {
+            eviction.lease(revision);
+          }
+
+          if (!eviction.isEmpty()) {
+            usage = measure(dir);
+          }
+          break;
+        default:
+          break;
+      }
+    } catch (LogIOException | RuntimeException e) {
+      eviction.cancel();
+      throw e;
+    }
+
+    if (!eviction.isEmpty()) {
+      // The leased files are hidden and no longer counted
+      remember(dir, usage);
+    }
+
+    if (isFull(usage)) {
+      eviction.cancel();
+      throw new QueueFullException(
+          "Queue is full (" + usage.items + " items, " + usage.bytes + " bytes); item not queued.");
+    }
+
+    return eviction;
+  }
+
+  private boolean isFull(Usage usage) {
+    return (maxItems > 0 && usage.items >= maxItems) || (maxBytes > 0 && usage.bytes >= maxBytes);
+  }
+
+  private Usage awaitRoom(File dir, Usage usage) throws QueueFullException, LogIOException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+
+    while (isFull(usage)) {
+      long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+
+      if (remaining <= 0) {
+        break;
+      }
+
+      try {
+        Thread.sleep(Math.min(remaining, BLOCK_POLL_MS));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new QueueFullException("Interrupted while waiting for room in queue.", e);
+      }
+
+      usage = getUsage(dir);
+    }
+
+    return usage;
+  }
+
+  private Usage dropOldest(File dir, Usage usage, Eviction eviction) throws LogIOException {
+    List<File> candidates = new ArrayList<>();
+    File[] files = dir.listFiles((d, name) -> isQueueFileName(name));
+
+    if (files != null) {
+      Collections.addAll(candidates, files);
+    }
+
+    Collections.addAll(candidates, QueueJournal.listSegments(dir));
+
+    // Queue files and segments are both named from the time they were created
+    Collections.sort(candidates);
+
+    long items = usage.items;
+    long bytes = usage.bytes;
+
+    for (File candidate : candidates) {
+      if (!isFull(new Usage(items, bytes))) {
+        break;
+      }
+
+      File leased = eviction.lease(candidate);
+
+      if (leased != null) {
+        boolean segment = candidate.getName().endsWith(QueueJournal.SEGMENT_SUFFIX);
+        items = items - (segment ? QueueJournal.countRecords(leased) : 1);
+        bytes = bytes - leased.length();
+      }
+    }
+
+    return new Usage(items, bytes);
+  }
+
+  /**
+   * Return the number of items and bytes in the specified queue directory, measuring it if the
+   * cached measurement is older than QUEUE_MEASURE_TTL_MS milliseconds; see measure.
+   *
+   * @param dir The queue directory
+   * @return The usage
+   * @throws LogIOException If unable to read a journal segment
+   * @throws LogRuntimeException If the QUEUE_MEASURE_TTL_MS property is invalid
+   */
+  static Usage getUsage(File dir) throws LogIOException, LogRuntimeException {
+    long ttlNanos =
+        TimeUnit.MILLISECONDS.toNanos(
+            Library.getLongProperty("QUEUE_MEASURE_TTL_MS", DEFAULT_MEASURE_TTL_MS));
+    Measurement measurement = measurements.get(dir.getAbsolutePath());
+
+    if (measurement != null && System.nanoTime() - measurement.measuredNanos < ttlNanos) {
+      return measurement.usage;
+    }
+
+    Usage usage = measure(dir);
+
+    if (ttlNanos > 0) {
+      measurements.put(dir.getAbsolutePath(), new Measurement(usage, System.nanoTime()));
+    }
+
+    return usage;
+  }
+
+  /**
+   * Add an item this process just queued to the cached measurement of the specified queue
+   * directory, if any, so it counts before the directory is measured again.
+   *
+   * @param dir The queue directory
+   * @param bytes The bytes of the item, or zero if not known
+   */
+  static void recordQueued(File dir, long bytes) {
+    measurements.computeIfPresent(
+        dir.getAbsolutePath(),
+        (path, measurement) ->
+            new Measurement(
+                new Usage(measurement.usage.items + 1, measurement.usage.bytes + bytes),
+                measurement.measuredNanos));
+  }
+
+  /**
+   * Discard the cached measurement of the specified queue directory, so the next one measures it.
+   * Called once items are removed from the queue by this process.
+   *
+   * @param dir The queue directory
+   */
+  static void forget(File dir) {
+    measurements.remove(dir.getAbsolutePath());
+  }
+
+  /** Discard all cached measurements. */
+  static void clear() {
+    measurements.clear();
+  }
+
+  private static void remember(File dir, Usage usage) {
+    measurements.computeIfPresent(
+        dir.getAbsolutePath(), (path, measurement) -> new Measurement(usage, System.nanoTime()));
+  }
+
+  /**
+   * Return the number of items and bytes in the specified queue directory, counting queue files
+   * and open and closed journal segments. Eviction leases older than EVICTION_TIMEOUT_MS are
+   * returned to the queue first.
+   *
+   * @param dir The queue directory
+   * @return The usage
+   * @throws LogIOException If unable to read a journal segment
+   */
+  static Usage measure(File dir) throws LogIOException {
+    recoverStaleEvictions(dir);
+
+    long items = 0;
+    long bytes = 0;
+    File[] files = dir.listFiles((d, name) -> isQueueFileName(name));
+
+    if (files != null) {
+      for (File file : files) {
+        items++;
+        bytes = bytes + file.length();
+      }
+    }
+
+    List<File> segments = new ArrayList<>(Arrays.asList(QueueJournal.listSegments(dir)));
+    Collections.addAll(segments, QueueJournal.listOpenSegments(dir));
+
+    for (File segment : segments) {
+      try {
+        items = items + QueueJournal.countRecords(segment);
+        bytes = bytes + segment.length();
+      } catch (LogIOException e) {
+        if (segment.exists()) {
+          throw e;
+        }
+        // Drained or rolled while being measured
+      }
+    }
+
+    return new Usage(items, bytes);
+  }
+
+  /**
+   * Return the files in the specified queue directory leased by an Eviction of a process which died
+   * before it could delete or return them to the queue, since they would otherwise be lost.
+   *
+   * @param dir The queue directory
+   */
+  private static void recoverStaleEvictions(File dir) {
+    File[] files =
+        dir.listFiles((d, name) -> name.startsWith(".") && name.endsWith(EVICTING_SUFFIX));
+
+    if (files == null) {
+      return;
+    }
+
+    // Leases are touched when taken, so the modification time is when
+    long cutoff = System.currentTimeMillis() - EVICTION_TIMEOUT_MS;
+
+    for (File file : files) {
+      long modified = file.lastModified();
+
+      if (modified == 0 || modified > cutoff) {
+        continue;
+      }
+
+      String name = file.getName();
+      File original = new File(dir, name.substring(1, name.length() - EVICTING_SUFFIX.length()));
+
+      try {
+        Files.move(file.toPath(), original.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        logger.log(Level.WARNING, "Returned abandoned eviction lease {0} to queue", original);
+      } catch (NoSuchFileException e) {
+        // Resolved or recovered by another process first
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Unable to return abandoned eviction lease " + file, e);
+      }
+    }
+  }
+
+  private static boolean isQueueFileName(String name) {
+    // Files being written have a dot prefix and no .xml extension; see LogItem.queue
+    return name.endsWith(".xml") && !name.startsWith(".");
+  }
+
+  /**
+   * The queued items leased by ensureRoom to make room for a new item. Leased files are hidden from
+   * drainers, the server, and measure until they are deleted by commit or returned to the queue by
+   * cancel.
+   */
+  static final class Eviction {
+    private final File dir;
+    private final List<File> originals = new ArrayList<>();
+    private final List<File> leased = new ArrayList<>();
+
+    private Eviction(File dir) {
+      this.dir = dir;
+    }
+
+    /**
+     * Lease the specified queued file by renaming it to a hidden name in the same directory.
+     *
+     * @param file The queue file or closed journal segment
+     * @return The leased file, or null if it was taken first or could not be renamed
+     */
+    private File lease(File file) {
+      File hidden = new File(file.getParentFile(), "." + file.getName() + EVICTING_SUFFIX);
+
+      try {
+        Files.move(file.toPath(), hidden.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (NoSuchFileException e) {
+        // Consumed by the server or a drainer first
+        return null;
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Unable to lease queued file " + file, e);
+        return null;
+      }
+
+      // A rename keeps the modification time, so touch the lease to mark when it was taken
+      hidden.setLastModified(System.currentTimeMillis());
+
+      originals.add(file);
+      leased.add(hidden);
+
+      return hidden;
+    }
+
+    private boolean isEmpty() {
+      return leased.isEmpty();
+    }
+
+    /** Delete the leased files now that the new item is queued. */
+    void commit() {
+      for (int i = 0; i < leased.size(); i++) {
+        try {
+          Files.delete(leased.get(i).toPath());
+          logger.log(Level.WARNING, "Queue is full; removed queued {0}", originals.get(i));
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Unable to delete queued file " + leased.get(i), e);
+        }
+      }
+
+      leased.clear();
+      originals.clear();
+    }
+
+    /** Return the leased files to the queue since the new item was not queued. */
+    void cancel() {
+      for (int i = 0; i < leased.size(); i++) {
+        try {
+          Files.move(
+              leased.get(i).toPath(), originals.get(i).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+          logger.log(
+              Level.SEVERE, "Unable to return leased file " + leased.get(i) + " to queue", e);
+        }
+      }
+
+      if (!leased.isEmpty()) {
+        // The cached measurement does not count the leased files
+        forget(dir);
+      }
+
+      leased.clear();
+      originals.clear();
+    }
+  }
+
+  private static final class Measurement {
+    private final Usage usage;
+    private final long measuredNanos;
+
+    private Measurement(Usage usage, long measuredNanos) {
+      this.usage = usage;
+      this.measuredNanos = measuredNanos;
+    }
+  }
+
+  /** The number of items and bytes in a queue. */
+  static final class Usage {
+    private final long items;
+    private final long bytes;
+
+    Usage(long items, long bytes) {
+      this.items = items;
+      this.bytes = bytes;
+    }
+
+    /**
+     * Return the number of queued items.
+     *
+     * @return The number of items
+     */
+    long getItems() {
+      return items;
+    }
+
+    /**
+     * Return the number of queued bytes.
+     *
+     * @return The number of bytes
+     */
+    long getBytes() {
+      return bytes;
+    }
+  }
+}
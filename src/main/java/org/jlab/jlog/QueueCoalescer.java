@@ -0,0 +1,280 @@
+package org.jlab.jlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jlab.jlog.exception.LogException;
+import org.jlab.jlog.exception.LogRuntimeException;
+
+/**
+ * Reduces the number of submissions needed to replay a queue when the QUEUE_COALESCE configuration
+ * property is "true". A revision replaces the whole log entry, so of several queued revisions of
+ * the same log number only the newest is submitted. Several queued comments on the same log entry
+ * are merged into one comment where the server format allows; see Comment.isMergeableWith.
+ *
+ * <p>Revisions are coalesced as they are queued, by deleting the queue files of older revisions
+ * once the new revision is written, and again when a QueueDrainer replays the queue. Comments are
+ * only merged when replayed, since a queued comment file may be consumed by the server while it is
+ * being merged. Only revisions queued before the new one are deleted; a newer revision queued
+ * meanwhile by another client is kept.
+ *
+ * <p>Finding the queued revisions of a log number would mean opening every queue file for every
+ * item queued, so the log number of each queue file is remembered once read. Queue files are never
+ * modified once written, so only files new since the last item was queued are opened.
+ *
+ * @author ryans
+ */
+final class QueueCoalescer {
+
+  private static final Logger logger = Logger.getLogger(QueueCoalescer.class.getName());
+  private static final long NO_LOG_NUMBER = -1;
+  // The log numbers of the queue files of each directory (NO_LOG_NUMBER for other items) by name
+  private static final Map<String, Map<String, Long>> logNumbers = new ConcurrentHashMap<>();
+
+  private QueueCoalescer() {
+    // Can't instantiate publicly
+  }
+
+  /**
+   * Return true if coalescing is enabled by the QUEUE_COALESCE configuration property.
+   *
+   * @return true if enabled
+   */
+  static boolean isEnabled() {
+    return "true".equals(Library.getConfiguration().getProperty("QUEUE_COALESCE"));
+  }
+
+  /**
+   * Return the queued items to submit in place of the specified items, each with the positions of
+   * the items it replaces. If coalescing is disabled each item replaces only itself. Comments are
+   * merged into the first of them, so the specified items may be modified.
+   *
+   * @param items The queued items, oldest first
+   * @return The groups, in the order of their first item
+   * @throws LogRuntimeException If unable to merge comments
+   */
+  static List<Group> coalesce(List<LogItem> items) throws LogRuntimeException {
+    List<Group> groups = new ArrayList<>(items.size());
+    boolean enabled = isEnabled();
+    Map<Long, Group> revisions = new HashMap<>();
+    Map<Long, Group> comments = new HashMap<>();
+
+    for (int i = 0; i < items.size(); i++) {
+      LogItem item = items.get(i);
+      Long lognumber = item.getLogNumber();
+      Group group = null;
+
+      if (enabled && lognumber != null) {
+        if (item instanceof LogEntry) {
+          group = revisions.get(lognumber);
+
+          if (group != null) {
+            // Newer, so it supersedes the revision in the group
+            group.item = item;
+          }
+        } else if (item instanceof Comment) {
+          group = comments.get(lognumber);
+
+          if (group != null && ((Comment) group.item).isMergeableWith((Comment) item)) {
+            ((Comment) group.item).merge((Comment) item);
+          } else {
+            group = null;
+          }
+        }
+      }
+
+      if (group == null) {
+        group = new Group(item);
+        groups.add(group);
+
+        if (enabled && lognumber != null) {
+          (item instanceof LogEntry ? revisions : comments).put(lognumber, group);
+        }
+      }
+
+      group.sources.add(i);
+    }
+
+    return groups;
+  }
+
+  /**
+   * Order the specified queue files so that files for the same log number are adjacent, in the
+   * position of the oldest of them, and return them in units which should be replayed in the same
+   * batch, oldest first, so they can be coalesced and are never submitted out of order. Files are
+   * grouped whether or not coalescing is enabled.
+   *
+   * @param files The queue files, oldest first
+   * @return The units of files
+   */
+  static List<List<File>> groupRelated(File[] files) {
+    List<List<File>> units = new ArrayList<>(files.length);
+    Map<Long, List<File>> byLogNumber = new LinkedHashMap<>();
+
+    for (File file : files) {
+      Long lognumber = null;
+
+      try {
+        lognumber = LogEntry.readQueuedLogNumber(file, null);
+      } catch (LogException e) {
+        // Consumed or unreadable; replayed on its own, which reports the problem
+      }
+
+      if (lognumber == null) {
+        List<File> unit = new ArrayList<>(1);
+        unit.add(file);
+        units.add(unit);
+      } else {
+        List<File> unit = byLogNumber.get(lognumber);
+
+        if (unit == null) {
+          unit = new ArrayList<>();
+          byLogNumber.put(lognumber, unit);
+          units.add(unit);
+        }
+
+        unit.add(file);
+      }
+    }
+
+    return units;
+  }
+
+  /**
+   * Delete the queued revisions of the log entry which the specified item revises, if any, which
+   * were queued before the specified file holding the item itself. A revision replaces the whole
+   * entry, so only the newest revision needs to reach the server. Call this only once the item is
+   * queued, so a failure to queue it never loses the older revisions.
+   *
+   * @param dir The queue directory
+   * @param item The log entry or comment which was queued
+   * @param queued The queue file of the item
+   * @return The number of queue files deleted
+   */
+  static int removeSupersededRevisions(File dir, LogItem item, File queued) {
+    int removed = 0;
+
+    for (File file : findSupersededRevisions(dir, item, queued.getName())) {
+      try {
+        Files.delete(file.toPath());
+        logger.log(Level.INFO, "Superseded queued revision {0}", file);
+        removed++;
+      } catch (NoSuchFileException e) {
+        // Consumed by the server or a drainer first
+      } catch (IOException e) {
+        // It is replayed before the new one
+        logger.log(Level.FINE, "Unable to coalesce queued file " + file, e);
+      }
+    }
+
+    return removed;
+  }
+
+  /**
+   * Return the queued revisions of the log entry which the specified item revises, if any, which
+   * were queued before the item, without removing them. Queue file names start with a timestamp,
+   * so those which sort before the file name of the item were queued before it.
+   *
+   * @param dir The queue directory
+   * @param item The log entry or comment
+   * @param filename The queue file name of the item
+   * @return The queue files
+   */
+  static List<File> findSupersededRevisions(File dir, LogItem item, String filename) {
+    Long lognumber = item.getLogNumber();
+
+    if (!(item instanceof LogEntry) || lognumber == null) {
+      return Collections.emptyList();
+    }
+
+    // Files being written have a dot prefix and no .xml extension; see LogItem.queue
+    File[] files = dir.listFiles((d, name) -> name.endsWith(".xml") && !name.startsWith("."));
+
+    if (files == null) {
+      return Collections.emptyList();
+    }
+
+    Map<String, Long> known =
+        logNumbers.computeIfAbsent(dir.getAbsolutePath(), path -> new ConcurrentHashMap<>());
+    Set<String> listed = new HashSet<>();
+    List<File> revisions = new ArrayList<>();
+
+    for (File file : files) {
+      String name = file.getName();
+      listed.add(name);
+
+      if (name.compareTo(filename) >= 0) {
+        continue;
+      }
+
+      Long queuedNumber = known.get(name);
+
+      if (queuedNumber == null) {
+        try {
+          queuedNumber = LogEntry.readQueuedLogNumber(file, "Logentry");
+        } catch (LogException e) {
+          // Not a revision which can be removed; it is replayed before the new one
+          logger.log(Level.FINE, "Unable to coalesce queued file " + file, e);
+          continue;
+        }
+
+        queuedNumber = queuedNumber == null ? NO_LOG_NUMBER : queuedNumber;
+        known.put(name, queuedNumber);
+      }
+
+      if (lognumber.equals(queuedNumber)) {
+        revisions.add(file);
+      }
+    }
+
+    // Forget the files consumed since
+    known.keySet().retainAll(listed);
+
+    return revisions;
+  }
+
+  /** Forget the log numbers of queue files read so far. */
+  static void clear() {
+    logNumbers.clear();
+  }
+
+  /** A queued item to submit and the positions of the queued items it replaces. */
+  static final class Group {
+    private LogItem item;
+    private final List<Integer> sources = new ArrayList<>(1);
+
+    private Group(LogItem item) {
+      this.item = item;
+    }
+
+    /**
+     * Return the item to submit.
+     *
+     * @return The log entry or comment
+     */
+    LogItem getItem() {
+      return item;
+    }
+
+    /**
+     * Return the positions of the queued items this group replaces, oldest first.
+     *
+     * @return The positions
+     */
+    List<Integer> getSources() {
+      return sources;
+    }
+  }
+}
@@ -0,0 +1,875 @@
+package org.jlab.jlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jlab.jlog.exception.LogException;
+import org.jlab.jlog.exception.LogIOException;
+import org.jlab.jlog.exception.LogRuntimeException;
+import org.jlab.jlog.exception.MalformedXMLException;
+import org.jlab.jlog.exception.SubmissionRejectedException;
+import org.jlab.jlog.util.SystemUtil;
+
+/**
+ * Resubmits log entries and comments which were queued because the server could not be reached.
+ * Each scan of the queue directory reads the queued files, submits them to the server over the
+ * shared HTTP connections with a bounded number of requests in flight (see LogbookSubmitter), and
+ * deletes each file which was submitted, or moves it to an archive directory if one is configured.
+ * Files which cannot be submitted are left in place for the next scan.
+ *
+ * <p>A poison file, which cannot be parsed or whose item the server rejected (see
+ * SubmissionRejectedException), would fail the same way on every scan. It is moved to the failed
+ * directory instead and reported to the result listener. Failures in this client, such as an
+ * unreadable client certificate, are not the fault of the file, so it is left in the queue.
+ *
+ * <p>Many drainers, in one JVM or on many hosts sharing the queue directory, may drain the same
+ * queue without submitting an item twice. Just before a file is submitted it is leased by
+ * atomically renaming it into a directory owned by the drainer under the .processing subdirectory
+ * of the queue; only one drainer can win the rename. A file which is not submitted is renamed back
+ * into the queue. While a scan runs its leases are renewed periodically, however long the
+ * submissions take. If a drainer dies holding leases, the files are renamed back into the queue by
+ * another drainer once the lease timeout has passed. Lease times are taken from the clock of the
+ * file server rather than of the host, so hosts whose clocks disagree still agree on when a lease
+ * expires.
+ *
+ * <p>Items for the same log number, such as several revisions of a log entry, are submitted one at
+ * a time, oldest first, so the server never applies an older revision last. Once one of them is
+ * not submitted the newer ones wait for the next scan. Items for different log numbers are
+ * submitted in parallel. If the QUEUE_COALESCE configuration property is "true" the items for the
+ * same log number are coalesced first (see QueueCoalescer): superseded revisions are removed once
+ * the newest revision is submitted, and merged comments are removed once the merged comment is
+ * submitted.
+ *
+ * <p>Closed QueueJournal segments in the queue directory are leased the same way and replayed. The
+ * items of a segment which are not submitted are appended to the journal of this process, which is
+ * forced to disk before the segment is removed, so a partly submitted segment is never replayed in
+ * full and a crash never loses its remaining items.
+ *
+ * <p>Scans run on a background daemon thread between start and stop, or on demand via drain. The
+ * defaults are taken from the QUEUE_PATH (see LogItem), QUEUE_DRAIN_PARALLELISM,
+ * QUEUE_DRAIN_INTERVAL_SECONDS, QUEUE_ARCHIVE_PATH, QUEUE_FAILED_PATH, and
+ * QUEUE_LEASE_TIMEOUT_SECONDS configuration properties.
+ *
+ * <p>Note: only drain a queue directory which the server does not consume itself, or an item may
+ * be submitted twice.
+ *
+ * @author ryans
+ */
+public class QueueDrainer {
+
+  /** The default of the QUEUE_LEASE_TIMEOUT_SECONDS configuration property */
+  static final long DEFAULT_LEASE_TIMEOUT_SECONDS = 600;
+
+  private static final Logger logger = Logger.getLogger(QueueDrainer.class.getName());
+  private static final long DEFAULT_PARALLELISM = 2;
+  private static final long DEFAULT_INTERVAL_SECONDS = 60;
+  private static final String PROCESSING_DIR_NAME = ".processing";
+  static final String FAILED_DIR_NAME = ".failed";
+  private static final String CLOCK_SUFFIX = ".clock";
+  private static final AtomicInteger instanceCount = new AtomicInteger();
+  private static final ScheduledExecutorService leaseRenewer =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread thread = new Thread(r, "jlog-lease-renewer");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /** The number of lease renewals per lease timeout */
+  private static final int RENEWALS_PER_TIMEOUT = 4;
+
+  private final File queueDir;
+  private final int parallelism;
+  private final long intervalMillis;
+  private final File archiveDir;
+  private final File failedDir;
+  private final long leaseTimeoutMillis;
+  private final File processingDir;
+  private final File leaseDir;
+  private final Object drainLock = new Object();
+  private final AtomicBoolean wakeUpPending = new AtomicBoolean();
+  private volatile long clockOffsetMillis;
+  private ScheduledExecutorService scheduler;
+  private BiConsumer<String, SubmitResult> resultListener;
+
+  /**
+   * Construct a new QueueDrainer configured from the configuration properties.
+   *
+   * @throws LogRuntimeException If a queue drain property is invalid
+   */
+  public QueueDrainer() throws LogRuntimeException {
+    this(
+        LogItem.getQueuePath(),
+        (int) Library.getLongProperty("QUEUE_DRAIN_PARALLELISM", DEFAULT_PARALLELISM),
+        TimeUnit.SECONDS.toMillis(
+            Library.getLongProperty("QUEUE_DRAIN_INTERVAL_SECONDS", DEFAULT_INTERVAL_SECONDS)),
+        Library.getConfiguration().getProperty("QUEUE_ARCHIVE_PATH"),
+        TimeUnit.SECONDS.toMillis(
+            Library.getLongProperty("QUEUE_LEASE_TIMEOUT_SECONDS", DEFAULT_LEASE_TIMEOUT_SECONDS)),
+        Library.getConfiguration().getProperty("QUEUE_FAILED_PATH"));
+  }
+
+  /**
+   * Return a new QueueDrainer over the specified directory, configured from the configuration
+   * properties like the default QueueDrainer except that submitted files are deleted rather than
+   * archived and poison files are moved to the .failed subdirectory of the directory.
+   *
+   * @param path The directory to drain
+   * @return The drainer
+   * @throws LogRuntimeException If a queue drain property is invalid
+   */
+  static QueueDrainer forDirectory(String path) throws LogRuntimeException {
+    return new QueueDrainer(
+        path,
+        (int) Library.getLongProperty("QUEUE_DRAIN_PARALLELISM", DEFAULT_PARALLELISM),
+        TimeUnit.SECONDS.toMillis(
+            Library.getLongProperty("QUEUE_DRAIN_INTERVAL_SECONDS", DEFAULT_INTERVAL_SECONDS)),
+        null,
+        TimeUnit.SECONDS.toMillis(
+            Library.getLongProperty("QUEUE_LEASE_TIMEOUT_SECONDS", DEFAULT_LEASE_TIMEOUT_SECONDS)),
+        null);
+  }
+
+  /**
+   * Construct a new QueueDrainer.
+   *
+   * @param queuePath The queue directory
+   * @param parallelism The maximum number of submissions in flight at a time
+   * @param intervalMillis The milliseconds between the end of one scan and the start of the next
+   * @param archivePath The directory submitted files are moved to, or null or empty to delete them
+   * @param leaseTimeoutMillis The milliseconds after which a file leased by another drainer is
+   *     presumed abandoned and returned to the queue; a running drainer renews its leases first
+   * @throws LogRuntimeException If parallelism, intervalMillis, or leaseTimeoutMillis is less than
+   *     one
+   */
+  public QueueDrainer(
+      String queuePath,
+      int parallelism,
+      long intervalMillis,
+      String archivePath,
+      long leaseTimeoutMillis)
+      throws LogRuntimeException {
+    this(queuePath, parallelism, intervalMillis, archivePath, leaseTimeoutMillis, null);
+  }
+
+  /**
+   * Construct a new QueueDrainer.
+   *
+   * @param queuePath The queue directory
+   * @param parallelism The maximum number of submissions in flight at a time
+   * @param intervalMillis The milliseconds between the end of one scan and the start of the next
+   * @param archivePath The directory submitted files are moved to, or null or empty to delete them
+   * @param leaseTimeoutMillis The milliseconds after which a file leased by another drainer is
+   *     presumed abandoned and returned to the queue; a running drainer renews its leases first
+   * @param failedPath The directory poison files are moved to, or null or empty for the .failed
+   *     subdirectory of the queue directory
+   * @throws LogRuntimeException If parallelism, intervalMillis, or leaseTimeoutMillis is less than
+   *     one
+   */
+  public QueueDrainer(
+      String queuePath,
+      int parallelism,
+      long intervalMillis,
+      String archivePath,
+      long leaseTimeoutMillis,
+      String failedPath)
+      throws LogRuntimeException {
+    if (parallelism < 1) {
+      throw new LogRuntimeException("parallelism must be at least 1.");
+    }
+
+    if (intervalMillis < 1) {
+      throw new LogRuntimeException("intervalMillis must be at least 1.");
+    }
+
+    if (leaseTimeoutMillis < 1) {
+      throw new LogRuntimeException("leaseTimeoutMillis must be at least 1.");
+    }
+
+    this.queueDir = new File(queuePath);
+    this.parallelism = parallelism;
+    this.intervalMillis = intervalMillis;
+    this.archiveDir = (archivePath == null || archivePath.isEmpty()) ? null : new File(archivePath);
+    this.leaseTimeoutMillis = leaseTimeoutMillis;
+    this.failedDir =
+        (failedPath == null || failedPath.isEmpty())
+            ? new File(queueDir, FAILED_DIR_NAME)
+            : new File(failedPath);
+    this.processingDir = new File(queueDir, PROCESSING_DIR_NAME);
+    this.leaseDir = new File(processingDir, newOwnerName());
+  }
+
+  /**
+   * Start scanning the queue directory periodically on a background daemon thread. The first scan
+   * starts immediately. Calling start on a drainer which is already started has no effect.
+   */
+  public synchronized void start() {
+    if (scheduler != null) {
+      return;
+    }
+
+    scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "jlog-queue-drainer");
+              thread.setDaemon(true);
+              return thread;
+            });
+
+    scheduler.scheduleWithFixedDelay(this::drainQuietly, 0, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop scanning the queue directory. A scan in progress is allowed to finish, but no further
+   * scans are started.
+   */
+  public synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+      scheduler = null;
+    }
+  }
+
+  /**
+   * Start a scan now on the background thread instead of waiting for the next periodic scan. A
+   * request made while one is already waiting to run is merged with it. Has no effect unless
+   * started.
+   */
+  synchronized void wakeUp() {
+    if (scheduler != null && wakeUpPending.compareAndSet(false, true)) {
+      scheduler.execute(
+          () -> {
+            wakeUpPending.set(false);
+            drainQuietly();
+          });
+    }
+  }
+
+  /**
+   * Set the listener called with the file name and result of each queued file submitted or
+   * attempted. A file which cannot be parsed is reported with a FAILED result which has no item.
+   *
+   * @param listener The listener
+   */
+  void setResultListener(BiConsumer<String, SubmitResult> listener) {
+    this.resultListener = listener;
+  }
+
+  private void drainQuietly() {
+    try {
+      drain();
+    } catch (RuntimeException e) {
+      // An exception would cancel the periodic scan
+      logger.log(Level.WARNING, "Unable to drain queue " + queueDir, e);
+    }
+  }
+
+  /**
+   * Scan the queue directory once and resubmit every queued file, oldest first. A result is
+   * returned for every file which was read. Files which cannot be parsed are logged and moved to
+   * the failed directory; files which cannot be read for another reason are left in place.
+   *
+   * @return The results
+   * @throws LogRuntimeException If unable to list the queue directory
+   */
+  public List<SubmitResult> drain() throws LogRuntimeException {
+    // Scans never overlap, whether started by the scheduler or by a direct call
+    synchronized (drainLock) {
+      return drainOnce();
+    }
+  }
+
+  private List<SubmitResult> drainOnce() throws LogRuntimeException {
+    RetryPolicy policy = RetryPolicy.fromConfiguration();
+
+    try {
+      Files.createDirectories(leaseDir.toPath());
+    } catch (IOException e) {
+      throw new LogRuntimeException("Unable to create lease directory " + leaseDir + ".", e);
+    }
+
+    long renewMillis = Math.max(leaseTimeoutMillis / RENEWALS_PER_TIMEOUT, 1);
+    ScheduledFuture<?> renewal =
+        leaseRenewer.scheduleAtFixedRate(
+            this::renewLeases, renewMillis, renewMillis, TimeUnit.MILLISECONDS);
+
+    try {
+      syncClock();
+      recoverExpiredLeases();
+      QueueJournal.closeAbandonedSegments(queueDir, leaseTimeoutMillis);
+
+      File[] files = queueDir.listFiles((dir, name) -> isQueueFileName(name));
+
+      if (files == null) {
+        throw new LogRuntimeException("Unable to list queue directory " + queueDir + ".");
+      }
+
+      // The file names start with a timestamp, so this is oldest first to the second
+      Arrays.sort(files);
+
+      return drainFiles(files, policy);
+    } finally {
+      renewal.cancel(false);
+
+      // Enqueuers in this process measure again rather than wait out a stale full queue
+      QueueCapacity.forget(queueDir);
+
+      // Only succeeds if empty, which it is unless a release failed
+      leaseDir.delete();
+    }
+  }
+
+  private List<SubmitResult> drainFiles(File[] files, RetryPolicy policy) {
+    LogbookSubmitter submitter = new LogbookSubmitter(parallelism, false);
+    List<List<File>> units = QueueCoalescer.groupRelated(files);
+    List<SubmitResult> results = new ArrayList<>(files.length);
+    int next = 0;
+
+    while (next < units.size()) {
+      List<List<File>> batchFiles = new ArrayList<>(parallelism);
+      List<List<QueueCoalescer.Group>> batchGroups = new ArrayList<>(parallelism);
+      List<LogItem> batchItems = new ArrayList<>();
+
+      // One unit per request in flight, each leased just before it is submitted, so a lease is
+      // held about as long as its submission rather than for a whole batch of them
+      while (next < units.size() && batchGroups.size() < parallelism) {
+        List<File> unitFiles = new ArrayList<>();
+        List<LogItem> unitItems = new ArrayList<>();
+
+        for (File file : units.get(next++)) {
+          File leased = lease(file);
+
+          if (leased == null) {
+            continue;
+          }
+
+          try {
+            unitItems.add(LogEntry.readQueuedItem(leased));
+            unitFiles.add(leased);
+          } catch (MalformedXMLException | LogRuntimeException e) {
+            logger.log(Level.WARNING, "Unable to parse queued file " + file, e);
+            moveToFailed(leased);
+
+            if (resultListener != null) {
+              resultListener.accept(
+                  leased.getName(),
+                  new SubmitResult(
+                      null, SubmitResult.Status.FAILED, null, LogItem.toLogException(e)));
+            }
+          } catch (LogIOException e) {
+            logger.log(Level.WARNING, "Unable to read queued file " + file, e);
+            release(leased);
+          }
+        }
+
+        if (!unitItems.isEmpty()) {
+          batchFiles.add(unitFiles);
+          batchGroups.add(QueueCoalescer.coalesce(unitItems));
+          batchItems.addAll(unitItems);
+        }
+      }
+
+      List<List<SubmitResult>> batchResults = submitInOrder(batchGroups, submitter, policy);
+
+      for (int u = 0; u < batchGroups.size(); u++) {
+        List<QueueCoalescer.Group> groups = batchGroups.get(u);
+        List<File> unitFiles = batchFiles.get(u);
+
+        for (int g = 0; g < groups.size(); g++) {
+          SubmitResult result = batchResults.get(u).get(g);
+
+          for (int i : groups.get(g).getSources()) {
+            if (result.getStatus() == SubmitResult.Status.SUBMITTED) {
+              remove(unitFiles.get(i));
+            } else if (isPoison(result, policy)) {
+              moveToFailed(unitFiles.get(i));
+            } else {
+              release(unitFiles.get(i));
+            }
+
+            if (resultListener != null) {
+              resultListener.accept(unitFiles.get(i).getName(), result);
+            }
+
+            results.add(result);
+          }
+        }
+      }
+
+      // Submitted, failed, or back in the queue, so the spilled attachment data is done with
+      for (LogItem item : batchItems) {
+        item.release();
+      }
+    }
+
+    for (File segment : QueueJournal.listSegments(queueDir)) {
+      results.addAll(drainSegment(segment, submitter, policy));
+    }
+
+    return Collections.unmodifiableList(results);
+  }
+
+  /**
+   * Lease and replay the specified journal segment. If any of its items were submitted or are
+   * poison, or any of its records cannot be read, the poison items and the XML of the unreadable
+   * records are written to the failed directory, the items which may yet be submitted are appended
+   * to the journal of this process and forced to disk, and the segment is removed; otherwise the
+   * segment is returned to the queue unchanged. A segment with a damaged record followed by more
+   * records is moved to the failed directory instead of being removed, so the records which could
+   * not be replayed are kept.
+   *
+   * @param segment The closed journal segment
+   * @param submitter The submitter
+   * @param policy The retry policy which classifies failures
+   * @return The results
+   */
+  private List<SubmitResult> drainSegment(
+      File segment, LogbookSubmitter submitter, RetryPolicy policy) {
+    File leased = lease(segment);
+
+    if (leased == null) {
+      return Collections.emptyList();
+    }
+
+    QueueJournal.Replay replay;
+
+    try {
+      replay = QueueJournal.replaySegment(leased);
+    } catch (LogException e) {
+      logger.log(Level.WARNING, "Unable to read queue journal segment " + segment, e);
+      release(leased);
+      return Collections.emptyList();
+    }
+
+    List<LogItem> items = replay.getItems();
+
+    try {
+      List<QueueJournal.Record> unreadable = replay.getUnreadable();
+
+      List<QueueCoalescer.Group> groups = QueueCoalescer.coalesce(items);
+      List<List<QueueCoalescer.Group>> units = groupByLogNumber(groups);
+      List<List<SubmitResult>> unitResults = submitInOrder(units, submitter, policy);
+      List<SubmitResult> segmentResults = new ArrayList<>(items.size());
+      List<LogItem> unsubmitted = new ArrayList<>();
+      List<LogItem> poison = new ArrayList<>();
+
+      for (int u = 0; u < units.size(); u++) {
+        for (int g = 0; g < units.get(u).size(); g++) {
+          QueueCoalescer.Group group = units.get(u).get(g);
+          SubmitResult result = unitResults.get(u).get(g);
+
+          if (isPoison(result, policy)) {
+            poison.add(group.getItem());
+          } else if (result.getStatus() != SubmitResult.Status.SUBMITTED) {
+            unsubmitted.add(group.getItem());
+          }
+
+          for (int i = 0; i < group.getSources().size(); i++) {
+            if (resultListener != null) {
+              resultListener.accept(leased.getName(), result);
+            }
+
+            segmentResults.add(result);
+          }
+        }
+      }
+
+      if (!groups.isEmpty()
+          && unsubmitted.size() == groups.size()
+          && unreadable.isEmpty()
+          && !replay.isDamaged()) {
+        release(leased);
+        return segmentResults;
+      }
+
+      try {
+        if (!poison.isEmpty() || !unreadable.isEmpty()) {
+          Files.createDirectories(failedDir.toPath());
+        }
+
+        for (LogItem item : poison) {
+          item.queue(new File(failedDir, item.generateXMLFilename()).getAbsolutePath(), true);
+        }
+
+        for (int i = 0; i < unreadable.size(); i++) {
+          File failed = new File(failedDir, leased.getName() + "." + (i + 1) + ".xml");
+          replay.copy(unreadable.get(i), failed);
+          logger.log(
+              Level.WARNING,
+              "Moved unreadable record of queue journal segment {0} to {1}",
+              new Object[] {segment, failed});
+        }
+
+        QueueJournal journal = QueueJournal.forDirectory(queueDir.getPath());
+
+        for (LogItem item : unsubmitted) {
+          journal.append(item);
+        }
+
+        // The segment is the only durable copy of these items until the journal is forced
+        journal.force();
+      } catch (IOException | LogException | LogRuntimeException e) {
+        // Replaying the whole segment again may submit some items twice, but loses none
+        logger.log(Level.SEVERE, "Unable to requeue items of journal segment " + segment, e);
+        release(leased);
+        return segmentResults;
+      }
+
+      for (QueueJournal.Record record : unreadable) {
+        if (resultListener != null) {
+          resultListener.accept(
+              leased.getName(),
+              new SubmitResult(null, SubmitResult.Status.FAILED, null, record.getFailure()));
+        }
+      }
+
+      if (replay.isDamaged()) {
+        // Its readable items are taken care of, but not the records after the damaged one
+        moveToFailed(leased);
+      } else {
+        remove(leased);
+      }
+
+      return segmentResults;
+    } finally {
+      // Written to the failed directory or journal, or left in the segment, so the spilled
+      // attachment data is done with
+      for (LogItem item : items) {
+        item.release();
+      }
+    }
+  }
+
+  /**
+   * Return true if the specified result is of a poison file, which a drainer moves to the failed
+   * directory: either the file could not be parsed, in which case the result has no item, or the
+   * server rejected the item and would reject it the same way if submitted again. A rejection is
+   * not poison if the SUBMIT_RETRY_ON configuration property makes it transient.
+   *
+   * @param result The result
+   * @param policy The retry policy which classifies failures
+   * @return true if poison
+   */
+  static boolean isPoison(SubmitResult result, RetryPolicy policy) {
+    LogException e = result.getException();
+
+    return result.getStatus() == SubmitResult.Status.FAILED
+        && (result.getItem() == null
+            || (e instanceof SubmissionRejectedException && !policy.isTransient(e)));
+  }
+
+  /**
+   * Submit the groups of each of the specified units in order, returning the results of each unit
+   * in the order of its groups. The first group of every unit is submitted at once, then the
+   * second of every unit which has one, and so on, so the groups of a unit are never in flight
+   * together. Once a group is not submitted, and is not poison, the later groups of its unit are
+   * not submitted either: submitting a newer revision before the older one is retried would let
+   * the older one win. They are reported as failed.
+   *
+   * @param units The units of groups, each for one log number or a single group
+   * @param submitter The submitter
+   * @param policy The retry policy which classifies failures
+   * @return The results of each unit
+   */
+  private static List<List<SubmitResult>> submitInOrder(
+      List<List<QueueCoalescer.Group>> units, LogbookSubmitter submitter, RetryPolicy policy) {
+    List<List<SubmitResult>> results = new ArrayList<>(units.size());
+    List<Integer> active = new ArrayList<>(units.size());
+
+    for (int u = 0; u < units.size(); u++) {
+      results.add(new ArrayList<>(units.get(u).size()));
+      active.add(u);
+    }
+
+    while (!active.isEmpty()) {
+      List<LogItem> round = new ArrayList<>(active.size());
+
+      for (int u : active) {
+        round.add(units.get(u).get(results.get(u).size()).getItem());
+      }
+
+      List<SubmitResult> roundResults = submitter.submitAll(round);
+      List<Integer> next = new ArrayList<>(active.size());
+
+      for (int k = 0; k < active.size(); k++) {
+        List<QueueCoalescer.Group> unit = units.get(active.get(k));
+        List<SubmitResult> unitResults = results.get(active.get(k));
+        SubmitResult result = roundResults.get(k);
+
+        unitResults.add(result);
+
+        if (result.getStatus() != SubmitResult.Status.SUBMITTED && !isPoison(result, policy)) {
+          while (unitResults.size() < unit.size()) {
+            unitResults.add(
+                new SubmitResult(
+                    unit.get(unitResults.size()).getItem(),
+                    SubmitResult.Status.FAILED,
+                    null,
+                    new LogIOException(
+                        "Not submitted; waiting for an older item for the same log number.")));
+          }
+        } else if (unitResults.size() < unit.size()) {
+          next.add(active.get(k));
+        }
+      }
+
+      active = next;
+    }
+
+    return results;
+  }
+
+  /**
+   * Split the specified groups into units for submitInOrder: the groups for each log number, in
+   * order, and each group without a log number on its own.
+   *
+   * @param groups The groups, oldest first
+   * @return The units
+   */
+  private static List<List<QueueCoalescer.Group>> groupByLogNumber(
+      List<QueueCoalescer.Group> groups) {
+    List<List<QueueCoalescer.Group>> units = new ArrayList<>(groups.size());
+    Map<Long, List<QueueCoalescer.Group>> byLogNumber = new HashMap<>();
+
+    for (QueueCoalescer.Group group : groups) {
+      Long lognumber = group.getItem().getLogNumber();
+      List<QueueCoalescer.Group> unit = lognumber == null ? null : byLogNumber.get(lognumber);
+
+      if (unit == null) {
+        unit = new ArrayList<>(1);
+        units.add(unit);
+
+        if (lognumber != null) {
+          byLogNumber.put(lognumber, unit);
+        }
+      }
+
+      unit.add(group);
+    }
+
+    return units;
+  }
+
+  private static String newOwnerName() {
+    Integer pid = SystemUtil.getJVMProcessId();
+    String hostname = SystemUtil.getHostname();
+
+    return (hostname == null ? "unknown" : hostname)
+        + "_"
+        + (pid == null ? 0 : pid)
+        + "_"
+        + instanceCount.incrementAndGet();
+  }
+
+  /**
+   * Lease the specified queue file by renaming it into the lease directory of this drainer.
+   *
+   * @param file The queue file
+   * @return The leased file, or null if another drainer leased it first or the rename failed
+   */
+  private File lease(File file) {
+    File leased = new File(leaseDir, file.getName());
+
+    try {
+      Files.move(file.toPath(), leased.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Unable to lease queue file " + file, e);
+      return null;
+    }
+
+    // The rename keeps the time the file was queued, but the lease expires from when it was taken
+    leased.setLastModified(serverTimeMillis());
+
+    return leased;
+  }
+
+  /**
+   * Renew the leases held by this drainer by setting their modification times to now, so another
+   * drainer does not presume them abandoned while a long scan is still submitting them. Called
+   * periodically while a scan runs.
+   */
+  private void renewLeases() {
+    File[] leasedFiles = leaseDir.listFiles();
+
+    if (leasedFiles == null) {
+      return;
+    }
+
+    long now = serverTimeMillis();
+
+    // The directory too, so another drainer does not presume this one has died
+    leaseDir.setLastModified(now);
+
+    for (File leased : leasedFiles) {
+      // A file released or removed meanwhile simply isn't updated
+      leased.setLastModified(now);
+    }
+  }
+
+  /**
+   * Measure the difference between the clock of the file server holding the queue and the clock
+   * of this host by creating a file and reading its modification time, which the file server sets.
+   * If the clock cannot be measured the last difference measured is kept.
+   */
+  private void syncClock() {
+    File clock = new File(processingDir, "." + leaseDir.getName() + CLOCK_SUFFIX);
+
+    try {
+      Files.deleteIfExists(clock.toPath());
+      Files.createFile(clock.toPath());
+
+      long now = System.currentTimeMillis();
+      long serverTime = Files.getLastModifiedTime(clock.toPath()).toMillis();
+
+      clockOffsetMillis = serverTime - now;
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Unable to read the clock of the file server", e);
+    } finally {
+      clock.delete();
+    }
+  }
+
+  /**
+   * Return the current time according to the clock of the file server holding the queue, as last
+   * measured by syncClock. Lease times are compared with this rather than the clock of this host,
+   * since drainers on other hosts with other clocks compare them too.
+   *
+   * @return The time in milliseconds since the epoch
+   */
+  private long serverTimeMillis() {
+    return System.currentTimeMillis() + clockOffsetMillis;
+  }
+
+  /**
+   * Return the specified leased file to the queue so it is tried again on a later scan.
+   *
+   * @param leased The leased file
+   */
+  private void release(File leased) {
+    try {
+      Files.move(
+          leased.toPath(),
+          new File(queueDir, leased.getName()).toPath(),
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      // The file is returned to the queue once the lease expires
+      logger.log(Level.WARNING, "Unable to return leased file " + leased + " to queue", e);
+    }
+  }
+
+  /**
+   * Move the specified leased poison file to the failed directory so it is not tried again. If it
+   * cannot be moved it is returned to the queue instead.
+   *
+   * @param leased The leased file
+   */
+  private void moveToFailed(File leased) {
+    try {
+      Files.createDirectories(failedDir.toPath());
+      Files.move(
+          leased.toPath(),
+          new File(failedDir, leased.getName()).toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+      logger.log(
+          Level.WARNING, "Moved poison queue file {0} to {1}", new Object[] {leased, failedDir});
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Unable to move poison queue file " + leased, e);
+      release(leased);
+    }
+  }
+
+  /**
+   * Return files leased by other drainers longer than the lease timeout to the queue, and remove
+   * their lease directories once empty. The drainers are presumed to have died; a live drainer
+   * renews its leases well within the lease timeout.
+   */
+  private void recoverExpiredLeases() {
+    File[] ownerDirs = processingDir.listFiles(File::isDirectory);
+
+    if (ownerDirs == null) {
+      return;
+    }
+
+    long expired = serverTimeMillis() - leaseTimeoutMillis;
+
+    for (File ownerDir : ownerDirs) {
+      if (ownerDir.equals(leaseDir)) {
+        continue;
+      }
+
+      // Checked first as recovering files updates the modification time of the directory
+      boolean abandoned = ownerDir.lastModified() < expired;
+      File[] leasedFiles = ownerDir.listFiles();
+
+      if (leasedFiles == null) {
+        continue;
+      }
+
+      for (File leased : leasedFiles) {
+        if (leased.lastModified() < expired) {
+          try {
+            Files.move(
+                leased.toPath(),
+                new File(queueDir, leased.getName()).toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+            logger.log(Level.INFO, "Recovered expired lease on queue file {0}", leased);
+          } catch (NoSuchFileException e) {
+            // Another drainer recovered it first
+          } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to recover leased file " + leased, e);
+          }
+        }
+      }
+
+      if (abandoned) {
+        // Only succeeds if empty
+        ownerDir.delete();
+      }
+    }
+  }
+
+  private static boolean isQueueFileName(String name) {
+    // Files being written have a dot prefix and no .xml extension; see LogItem.queue
+    return name.endsWith(".xml") && !name.startsWith(".");
+  }
+
+  /**
+   * Delete or archive the specified leased file once its item was submitted.
+   *
+   * @param file The leased file
+   */
+  private void remove(File file) {
+    try {
+      if (archiveDir == null) {
+        Files.delete(file.toPath());
+      } else {
+        Files.move(
+            file.toPath(),
+            new File(archiveDir, file.getName()).toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      // The item was submitted, so leaving the file would submit it again on the next scan
+      logger.log(Level.SEVERE, "Unable to remove submitted queue file " + file, e);
+    }
+  }
+}
@@ -0,0 +1,695 @@
+package org.jlab.jlog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import org.jlab.jlog.exception.InvalidXMLException;
+import org.jlab.jlog.exception.LogException;
+import org.jlab.jlog.exception.LogIOException;
+import org.jlab.jlog.exception.LogRuntimeException;
+import org.jlab.jlog.util.SystemUtil;
+
+/**
+ * An append-only journal of queued log items, used instead of one XML file per item when the
+ * QUEUE_BACKEND configuration property is "journal". Creating and closing a file on a network
+ * filesystem takes several round trips, so appending many items to a few large files is much
+ * cheaper than creating many small ones.
+ *
+ * <p>Each item is a record of a 4 byte length, the XML, and a 4 byte CRC32 checksum of the XML.
+ * Each process appends to its own hidden segment file, named .[name].journal.open, which is renamed
+ * to [name].journal once it exceeds QUEUE_JOURNAL_SEGMENT_BYTES, is older than
+ * QUEUE_JOURNAL_ROLL_SECONDS, or the journal is closed. Only renamed (closed) segments are
+ * replayed. Appends are forced to disk every QUEUE_JOURNAL_FSYNC_MS milliseconds, or on every
+ * append if zero, so an item appended less than that long before a crash may be lost.
+ *
+ * <p>The server does not read journals; a journal queue must be drained by a QueueDrainer, which
+ * replays closed segments with readSegment. Segments left open by a process which died are closed
+ * by the drainer once they are older than the lease timeout; a record torn by the crash is detected
+ * by its length or checksum and ends the replay of that segment. A damaged record followed by more
+ * records is not a torn append but corruption; the drainer keeps such a segment in the failed
+ * directory rather than deleting the records it could not read.
+ *
+ * @author ryans
+ */
+public final class QueueJournal {
+
+  /** The file name suffix of a closed segment */
+  static final String SEGMENT_SUFFIX = ".journal";
+
+  private static final String OPEN_SUFFIX = ".open";
+  private static final Logger logger = Logger.getLogger(QueueJournal.class.getName());
+  private static final long DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+  private static final long DEFAULT_ROLL_SECONDS = 60;
+  private static final long DEFAULT_FSYNC_MS = 1000;
+  private static final Map<String, QueueJournal> journals = new HashMap<>();
+  private static final AtomicLong segmentSequence = new AtomicLong();
+
+  private final File dir;
+  private final long segmentBytes;
+  private final long rollMillis;
+  private final long fsyncMillis;
+  private final ScheduledExecutorService scheduler;
+  private FileChannel channel;
+  private File openFile;
+  private long openedMillis;
+  private boolean dirty;
+
+  private QueueJournal(File dir, long segmentBytes, long rollMillis, long fsyncMillis) {
+    this.dir = dir;
+    this.segmentBytes = segmentBytes;
+    this.rollMillis = rollMillis;
+    this.fsyncMillis = fsyncMillis;
+
+    scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "jlog-journal");
+              thread.setDaemon(true);
+              return thread;
+            });
+
+    long period = fsyncMillis > 0 ? Math.min(fsyncMillis, rollMillis) : rollMillis;
+    scheduler.scheduleWithFixedDelay(this::tick, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Return the journal this process appends to in the specified queue directory, creating it if
+   * necessary.
+   *
+   * @param path The queue directory
+   * @return The journal
+   * @throws LogRuntimeException If a journal property is invalid, or the roll interval is not less
+   *     than the lease timeout
+   */
+  static synchronized QueueJournal forDirectory(String path) throws LogRuntimeException {
+    File dir = new File(path).getAbsoluteFile();
+    QueueJournal journal = journals.get(dir.getPath());
+
+    if (journal == null) {
+      long segmentBytes =
+          Library.getLongProperty("QUEUE_JOURNAL_SEGMENT_BYTES", DEFAULT_SEGMENT_BYTES);
+      long rollSeconds =
+          Library.getLongProperty("QUEUE_JOURNAL_ROLL_SECONDS", DEFAULT_ROLL_SECONDS);
+      long fsyncMillis = Library.getLongProperty("QUEUE_JOURNAL_FSYNC_MS", DEFAULT_FSYNC_MS);
+
+      long leaseTimeoutSeconds =
+          Library.getLongProperty(
+              "QUEUE_LEASE_TIMEOUT_SECONDS", QueueDrainer.DEFAULT_LEASE_TIMEOUT_SECONDS);
+
+      if (rollSeconds < 1) {
+        throw new LogRuntimeException("QUEUE_JOURNAL_ROLL_SECONDS must be at least 1.");
+      }
+
+      // Otherwise a drainer would take the open segment of a live process to be abandoned
+      if (rollSeconds >= leaseTimeoutSeconds) {
+        throw new LogRuntimeException(
+            "QUEUE_JOURNAL_ROLL_SECONDS must be less than QUEUE_LEASE_TIMEOUT_SECONDS.");
+      }
+
+      journal =
+          new QueueJournal(dir, segmentBytes, TimeUnit.SECONDS.toMillis(rollSeconds), fsyncMillis);
+      journals.put(dir.getPath(), journal);
+    }
+
+    return journal;
+  }
+
+  /** Close all journals, so their open segments can be replayed. */
+  static synchronized void closeAll() {
+    for (QueueJournal journal : journals.values()) {
+      journal.close();
+    }
+
+    journals.clear();
+  }
+
+  /**
+   * Append the specified item to the journal. The XML is streamed into the segment, so an item
+   * with large attachments is never held in memory.
+   *
+   * @param item The log entry or comment
+   * @throws InvalidXMLException If the XML is invalid
+   * @throws LogIOException If unable to append due to IO
+   */
+  synchronized void append(LogItem item) throws InvalidXMLException, LogIOException {
+    try {
+      if (channel == null) {
+        openSegment();
+      }
+
+      long start = channel.position();
+      CRC32 crc = new CRC32();
+
+      // The length is unknown until the XML is written, so it is patched in afterwards; a crash
+      // before then leaves a zero length, which ends a replay
+      channel.write(toBuffer(0));
+
+      try {
+        OutputStream out =
+            new BufferedOutputStream(
+                new CheckedOutputStream(Channels.newOutputStream(channel), crc));
+        item.writeXML(out);
+
+        long length = channel.position() - start - 4;
+
+        if (length > Integer.MAX_VALUE) {
+          throw new LogIOException("Log item is too large for the queue journal.");
+        }
+
+        channel.write(toBuffer((int) crc.getValue()));
+        channel.write(toBuffer((int) length), start);
+      } catch (LogIOException | LogRuntimeException | IOException e) {
+        channel.truncate(start);
+        channel.position(start);
+        throw e;
+      }
+
+      dirty = true;
+
+      if (fsyncMillis <= 0) {
+        sync();
+      }
+
+      if (channel.size() >= segmentBytes) {
+        roll();
+      }
+    } catch (IOException e) {
+      throw new LogIOException("Unable to append to queue journal.", e);
+    }
+  }
+
+  /**
+   * Force the items appended so far to disk now, whatever QUEUE_JOURNAL_FSYNC_MS is. A drainer
+   * calls this before removing a replayed segment whose unsubmitted items it appended here.
+   *
+   * @throws LogIOException If unable to force the open segment
+   */
+  synchronized void force() throws LogIOException {
+    if (channel == null || !dirty) {
+      // A rolled segment was forced as it was closed
+      return;
+    }
+
+    try {
+      sync();
+    } catch (IOException e) {
+      throw new LogIOException("Unable to force queue journal segment.", e);
+    }
+  }
+
+  /** Force and close the open segment, if any, and stop the background sync. */
+  synchronized void close() {
+    scheduler.shutdown();
+
+    try {
+      roll();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Unable to close queue journal segment " + openFile, e);
+    }
+  }
+
+  private synchronized void tick() {
+    try {
+      if (channel != null && System.currentTimeMillis() - openedMillis >= rollMillis) {
+        roll();
+      } else if (dirty) {
+        sync();
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Unable to sync queue journal segment " + openFile, e);
+    }
+  }
+
+  private void sync() throws IOException {
+    channel.force(false);
+    dirty = false;
+  }
+
+  private void openSegment() throws IOException {
+    Files.createDirectories(dir.toPath());
+
+    openFile = new File(dir, "." + newSegmentName() + OPEN_SUFFIX);
+    channel =
+        FileChannel.open(
+            openFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    openedMillis = System.currentTimeMillis();
+  }
+
+  private void roll() throws IOException {
+    if (channel == null) {
+      return;
+    }
+
+    boolean empty = channel.size() == 0;
+
+    try {
+      channel.force(false);
+    } finally {
+      channel.close();
+      channel = null;
+      dirty = false;
+    }
+
+    if (empty) {
+      Files.delete(openFile.toPath());
+    } else {
+      Files.move(
+          openFile.toPath(), getClosedFile(openFile).toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    openFile = null;
+  }
+
+  private static String newSegmentName() {
+    SimpleDateFormat formatter = new SimpleDateFormat("yyyy_MM_dd_HHmmss_");
+    Integer pid = SystemUtil.getJVMProcessId();
+    String hostname = SystemUtil.getHostname();
+
+    return formatter.format(new Date())
+        + (pid == null ? 0 : pid)
+        + "_"
+        + (hostname == null ? "unknown" : hostname)
+        + "_"
+        + String.format("%06d", segmentSequence.incrementAndGet())
+        + SEGMENT_SUFFIX;
+  }
+
+  private static File getClosedFile(File openFile) {
+    String name = openFile.getName();
+    String closedName = name.substring(1, name.length() - OPEN_SUFFIX.length());
+    return new File(openFile.getParentFile(), closedName);
+  }
+
+  private static ByteBuffer toBuffer(int value) {
+    ByteBuffer buffer = ByteBuffer.allocate(4);
+    buffer.putInt(value);
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Return the closed segments in the specified queue directory, oldest first.
+   *
+   * @param dir The queue directory
+   * @return The segment files
+   */
+  public static File[] listSegments(File dir) {
+    File[] segments =
+        dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX) && !name.startsWith("."));
+
+    if (segments == null) {
+      return new File[0];
+    }
+
+    // The names start with a timestamp and end with a per-process sequence number
+    Arrays.sort(segments);
+
+    return segments;
+  }
+
+  /**
+   * Return the segments in the specified queue directory which are still being appended to.
+   *
+   * @param dir The queue directory
+   * @return The open segment files
+   */
+  static File[] listOpenSegments(File dir) {
+    File[] openFiles =
+        dir.listFiles(
+            (d, name) -> name.startsWith(".") && name.endsWith(SEGMENT_SUFFIX + OPEN_SUFFIX));
+
+    return openFiles == null ? new File[0] : openFiles;
+  }
+
+  /**
+   * Close the segments in the specified queue directory which were left open by a process which
+   * died, meaning they have not been modified for longer than the specified time. A live process
+   * closes each segment after QUEUE_JOURNAL_ROLL_SECONDS, which must be shorter.
+   *
+   * @param dir The queue directory
+   * @param abandonedMillis The milliseconds after which an open segment is presumed abandoned
+   */
+  static void closeAbandonedSegments(File dir, long abandonedMillis) {
+    File[] openFiles = listOpenSegments(dir);
+    long abandoned = System.currentTimeMillis() - abandonedMillis;
+
+    for (File openFile : openFiles) {
+      if (openFile.lastModified() < abandoned) {
+        try {
+          Files.move(
+              openFile.toPath(),
+              getClosedFile(openFile).toPath(),
+              StandardCopyOption.ATOMIC_MOVE);
+          logger.log(Level.INFO, "Closed abandoned queue journal segment {0}", openFile);
+        } catch (IOException e) {
+          // Another drainer closed it first, or it will be tried again on the next scan
+        }
+      }
+    }
+  }
+
+  /**
+   * Replay the records of the specified closed segment in order and return the log items. Replay
+   * ends at the first record which is incomplete or fails its checksum, which can only be the last
+   * record of a segment left by a process which died while appending to it.
+   *
+   * @param segment The segment file
+   * @return The log entries and comments
+   * @throws LogIOException If unable to read the segment
+   */
+  public static List<LogItem> readSegment(File segment) throws LogIOException {
+    return replaySegment(segment).getItems();
+  }
+
+  /**
+   * Replay the records of the specified closed segment in order, as readSegment does, and also
+   * return the intact records which could not be parsed and whether replay stopped at a damaged
+   * record which is followed by more records.
+   *
+   * @param segment The segment file
+   * @return The replay
+   * @throws LogIOException If unable to read the segment
+   */
+  static Replay replaySegment(File segment) throws LogIOException {
+    Replay replay = new Replay(segment);
+    List<LogItem> items = replay.items;
+    long total = segment.length();
+    long remaining = total;
+
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+      while (remaining >= 8) {
+        int length = in.readInt();
+
+        if (length <= 0 || length > remaining - 8) {
+          logTorn(segment, items.size());
+          break;
+        }
+
+        long offset = total - remaining + 4;
+
+        CRC32 crc = new CRC32();
+        RecordInputStream record = new RecordInputStream(new CheckedInputStream(in, crc), length);
+        LogItem item = null;
+        LogException failure = null;
+
+        try {
+          item = LogEntry.readQueuedItem(record, segment.getPath());
+        } catch (LogException e) {
+          failure = e;
+        } catch (LogRuntimeException e) {
+          failure = new LogException(e.getMessage(), e);
+        }
+
+        record.skipRemaining();
+
+        if (in.readInt() != (int) crc.getValue()) {
+          if (item != null) {
+            item.release();
+          }
+
+          if (remaining - length - 8 > 0) {
+            replay.damaged = true;
+            logger.log(
+                Level.SEVERE,
+                "Queue journal segment {0} has a damaged record at index {1} followed by {2} bytes"
+                    + " which cannot be read",
+                new Object[] {segment, items.size(), remaining - length - 8});
+          } else {
+            logTorn(segment, items.size());
+          }
+
+          break;
+        }
+
+        remaining = remaining - length - 8;
+
+        if (failure != null) {
+          // Intact but unreadable, so not a torn record; the rest of the segment is still good
+          logger.log(Level.SEVERE, "Unable to read queue journal record in " + segment, failure);
+          replay.unreadable.add(new Record(offset, length, failure));
+          continue;
+        }
+
+        items.add(item);
+      }
+    } catch (EOFException e) {
+      logTorn(segment, items.size());
+    } catch (IOException e) {
+      for (LogItem item : items) {
+        item.release();
+      }
+
+      throw new LogIOException("Unable to read queue journal segment.", e);
+    }
+
+    return replay;
+  }
+
+  /**
+   * Return the number of complete records in the specified segment. Only the length prefixes are
+   * read, so this is much cheaper than readSegment, but checksums are not verified.
+   *
+   * @param segment The open or closed segment file
+   * @return The number of records
+   * @throws LogIOException If unable to read the segment
+   */
+  static int countRecords(File segment) throws LogIOException {
+    int count = 0;
+
+    try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+      long size = file.length();
+      long position = 0;
+
+      while (position + 8 <= size) {
+        file.seek(position);
+        int length = file.readInt();
+
+        // A zero length is a record still being appended
+        if (length <= 0 || position + 8 + length > size) {
+          break;
+        }
+
+        position = position + 8 + length;
+        count++;
+      }
+    } catch (IOException e) {
+      throw new LogIOException("Unable to read queue journal segment.", e);
+    }
+
+    return count;
+  }
+
+  private static void logTorn(File segment, int index) {
+    logger.log(
+        Level.WARNING,
+        "Queue journal segment {0} ends with an incomplete record at index {1}",
+        new Object[] {segment, index});
+  }
+
+  /** The items replayed from a closed segment, and what could not be replayed. */
+  static final class Replay {
+    private final File segment;
+    private final List<LogItem> items = new ArrayList<>();
+    private final List<Record> unreadable = new ArrayList<>();
+    private boolean damaged;
+
+    private Replay(File segment) {
+      this.segment = segment;
+    }
+
+    /**
+     * Return the log items, in order.
+     *
+     * @return The log entries and comments
+     */
+    List<LogItem> getItems() {
+      return items;
+    }
+
+    /**
+     * Return the intact records which could not be parsed.
+     *
+     * @return The records
+     */
+    List<Record> getUnreadable() {
+      return unreadable;
+    }
+
+    /**
+     * Return true if replay stopped at a damaged record which is followed by more records, so the
+     * segment holds records which were not replayed.
+     *
+     * @return true if damaged
+     */
+    boolean isDamaged() {
+      return damaged;
+    }
+
+    /**
+     * Copy the XML of the specified record of the segment to the specified file, forcing it to
+     * disk.
+     *
+     * @param record The record
+     * @param target The file
+     * @throws IOException If unable to copy
+     */
+    void copy(Record record, File target) throws IOException {
+      try (FileChannel in = FileChannel.open(segment.toPath(), StandardOpenOption.READ);
+          FileChannel out =
+              FileChannel.open(
+                  target.toPath(),
+                  StandardOpenOption.CREATE,
+                  StandardOpenOption.TRUNCATE_EXISTING,
+                  StandardOpenOption.WRITE)) {
+        long copied = 0;
+
+        while (copied < record.length) {
+          long count = in.transferTo(record.offset + copied, record.length - copied, out);
+
+          if (count <= 0) {
+            throw new EOFException("Queue journal segment ends within a record.");
+          }
+
+          copied = copied + count;
+        }
+
+        out.force(true);
+      }
+    }
+  }
+
+  /** The position of an intact record of a segment which could not be parsed. */
+  static final class Record {
+    private final long offset;
+    private final int length;
+    private final LogException failure;
+
+    private Record(long offset, int length, LogException failure) {
+      this.offset = offset;
+      this.length = length;
+      this.failure = failure;
+    }
+
+    /**
+     * Return the reason the record could not be parsed.
+     *
+     * @return The exception
+     */
+    LogException getFailure() {
+      return failure;
+    }
+  }
+
+  /** Exposes exactly one record of a segment, so the XML parser cannot read past its end. */
+  private static final class RecordInputStream extends FilterInputStream {
+
+    private long remaining;
+
+    RecordInputStream(InputStream in, long length) {
+      super(in);
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+
+      int b = in.read();
+
+      if (b >= 0) {
+        remaining--;
+      }
+
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+
+      int count = in.read(b, off, (int) Math.min(len, remaining));
+
+      if (count > 0) {
+        remaining = remaining - count;
+      }
+
+      return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // Read rather than skip so the bytes are included in the checksum
+      byte[] buffer = new byte[(int) Math.min(Math.max(n, 0), 8192)];
+      int count = read(buffer, 0, buffer.length);
+      return Math.max(count, 0);
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public void close() {
+      // The segment stream is shared by all records
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    /**
+     * Read the rest of the record, which the parser may not have needed, so the checksum covers
+     * all of it and the next read starts at the next record.
+     *
+     * @throws IOException If unable to read
+     */
+    void skipRemaining() throws IOException {
+      byte[] buffer = new byte[8192];
+
+      while (read(buffer, 0, buffer.length) > 0) {
+        // Discard
+      }
+
+      if (remaining > 0) {
+        throw new EOFException();
+      }
+    }
+  }
+}
@@ -0,0 +1,170 @@
+package org.jlab.jlog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import org.jlab.jlog.exception.LogCertificateException;
+import org.jlab.jlog.exception.LogRuntimeException;
+import org.jlab.jlog.util.IOUtil;
+
+/**
+ * Decides whether and when a failed direct submission to the server is attempted again. The delay
+ * before each retry grows exponentially from an initial backoff up to a maximum, and is reduced by
+ * a random amount of up to the jitter percentage so that many clients which failed together do not
+ * all retry together.
+ *
+ * <p>A failure is retried only if the exception or one of its causes is an instance of one of the
+ * retryable classes. By default these are IOExceptions, which covers refused or reset connections,
+ * timeouts, and the server being temporarily unavailable, but not a submission the server rejected.
+ * A LogCertificateException is never retried even though it may be caused by an IOException: the
+ * client certificate could not be read or used, which trying again does not fix.
+ *
+ * <p>The policy is read from the SUBMIT_RETRY_MAX_ATTEMPTS, SUBMIT_RETRY_BACKOFF_MS,
+ * SUBMIT_RETRY_MAX_BACKOFF_MS, SUBMIT_RETRY_JITTER_PERCENT, and SUBMIT_RETRY_ON configuration
+ * properties.
+ *
+ * @author ryans
+ */
+final class RetryPolicy {
+
+  private static final long DEFAULT_MAX_ATTEMPTS = 3;
+  private static final long DEFAULT_BACKOFF_MS = 500;
+  private static final long DEFAULT_MAX_BACKOFF_MS = 8000;
+  private static final long DEFAULT_JITTER_PERCENT = 50;
+  private static final String DEFAULT_RETRY_ON = "java.io.IOException";
+
+  private final int maxAttempts;
+  private final long backoffMillis;
+  private final long maxBackoffMillis;
+  private final int jitterPercent;
+  private final List<Class<?>> retryOn;
+
+  private RetryPolicy(
+      int maxAttempts,
+      long backoffMillis,
+      long maxBackoffMillis,
+      int jitterPercent,
+      List<Class<?>> retryOn) {
+    this.maxAttempts = maxAttempts;
+    this.backoffMillis = backoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+    this.jitterPercent = jitterPercent;
+    this.retryOn = retryOn;
+  }
+
+  /**
+   * Return the retry policy described by the configuration properties.
+   *
+   * @return The policy
+   * @throws LogRuntimeException If a retry property is invalid
+   */
+  static RetryPolicy fromConfiguration() throws LogRuntimeException {
+    long maxAttempts = Library.getLongProperty("SUBMIT_RETRY_MAX_ATTEMPTS", DEFAULT_MAX_ATTEMPTS);
+    long backoff = Library.getLongProperty("SUBMIT_RETRY_BACKOFF_MS", DEFAULT_BACKOFF_MS);
+    long maxBackoff =
+        Library.getLongProperty("SUBMIT_RETRY_MAX_BACKOFF_MS", DEFAULT_MAX_BACKOFF_MS);
+    long jitter = Library.getLongProperty("SUBMIT_RETRY_JITTER_PERCENT", DEFAULT_JITTER_PERCENT);
+
+    if (maxAttempts < 1) {
+      throw new LogRuntimeException("SUBMIT_RETRY_MAX_ATTEMPTS must be at least 1.");
+    }
+
+    if (jitter < 0 || jitter > 100) {
+      throw new LogRuntimeException("SUBMIT_RETRY_JITTER_PERCENT must be between 0 and 100.");
+    }
+
+    String names = Library.getConfiguration().getProperty("SUBMIT_RETRY_ON", DEFAULT_RETRY_ON);
+
+    List<Class<?>> retryOn = new ArrayList<>();
+
+    for (String name : IOUtil.csvToArray(names)) {
+      name = name.trim();
+
+      if (name.isEmpty()) {
+        continue;
+      }
+
+      try {
+        retryOn.add(Class.forName(name));
+      } catch (ClassNotFoundException e) {
+        throw new LogRuntimeException("SUBMIT_RETRY_ON class " + name + " not found.", e);
+      }
+    }
+
+    return new RetryPolicy(
+        (int) Math.min(maxAttempts, Integer.MAX_VALUE),
+        Math.max(backoff, 0),
+        Math.max(maxBackoff, 0),
+        (int) jitter,
+        retryOn);
+  }
+
+  /**
+   * Return the maximum number of attempts, including the first.
+   *
+   * @return The maximum number of attempts
+   */
+  int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * Return true if the specified failure of the specified attempt should be followed by another
+   * attempt.
+   *
+   * @param attempt The attempt which failed, starting from 1
+   * @param t The failure
+   * @return true to try again
+   */
+  boolean shouldRetry(int attempt, Throwable t) {
+    return attempt < maxAttempts && isTransient(t);
+  }
+
+  /**
+   * Return true if the specified failure is one of the retryable classes, meaning the server could
+   * not be reached rather than that it rejected the submission. A failure caused by a
+   * LogCertificateException is a local problem and never transient.
+   *
+   * @param t The failure
+   * @return true if the failure is transient
+   */
+  boolean isTransient(Throwable t) {
+    for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+      if (cause instanceof LogCertificateException) {
+        return false;
+      }
+
+      for (Class<?> retryable : retryOn) {
+        if (retryable.isInstance(cause)) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Return the number of milliseconds to wait after the specified failed attempt before the next.
+   *
+   * @param attempt The attempt which failed, starting from 1
+   * @return The delay in milliseconds
+   */
+  long getDelayMillis(int attempt) {
+    long delay = backoffMillis;
+
+    for (int i = 1; i < attempt && delay < maxBackoffMillis; i++) {
+      delay = delay * 2;
+    }
+
+    delay = Math.min(delay, maxBackoffMillis);
+
+    long jitter = delay * jitterPercent / 100;
+
+    if (jitter > 0) {
+      delay = delay - ThreadLocalRandom.current().nextLong(jitter + 1);
+    }
+
+    return delay;
+  }
+}
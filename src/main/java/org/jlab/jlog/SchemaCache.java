@@ -0,0 +1,242 @@
+package org.jlab.jlog;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.XMLConstants;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import org.jlab.jlog.exception.LogRuntimeException;
+import org.jlab.jlog.exception.SchemaUnavailableException;
+import org.jlab.jlog.util.SecurityUtil;
+import org.xml.sax.SAXException;
+
+/**
+ * Holds compiled schemas shared by all log item validations. A compiled Schema is thread-safe and
+ * reusable, so it is fetched from the server and compiled once per URL and then reused until the
+ * time-to-live given by the SCHEMA_CACHE_TTL_SECONDS configuration property expires.
+ *
+ * <p>If the server schema cannot be obtained the last schema successfully fetched from the URL is
+ * reused, or if there is none, the schema bundled in the jar, and a warning is logged. A fallback
+ * schema is only cached for a minute (or the time-to-live if shorter), so the server schema is used
+ * again soon after the server returns while an unreachable server still costs one failed fetch per
+ * minute instead of one per validation.
+ *
+ * <p>Only one thread fetches a given URL at a time, and no lock is held while it does. Other
+ * threads validating against the same URL meanwhile use the expired schema if there is one, or wait
+ * for the fetch if there is not.
+ *
+ * <p>If the SCHEMA_SOURCE configuration property is "bundled" the server is never contacted and the
+ * bundled schema is always used.
+ *
+ * @author ryans
+ */
+final class SchemaCache {
+
+  private static final Logger logger = Logger.getLogger(SchemaCache.class.getName());
+  private static final long DEFAULT_TTL_SECONDS = 3600;
+  private static final long FALLBACK_TTL_SECONDS = 60;
+  private static final Map<String, Entry> schemas = new ConcurrentHashMap<>();
+  private static final Map<String, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+  private static final Map<String, Schema> bundledSchemas = new ConcurrentHashMap<>();
+
+  private SchemaCache() {
+    // Can't instantiate publicly
+  }
+
+  /**
+   * Return the compiled schema for the specified URL, fetching and compiling it if it is not cached
+   * or has expired.
+   *
+   * @param url The schema URL
+   * @param resource The classpath resource name of the schema bundled in the jar
+   * @return The schema
+   * @throws SchemaUnavailableException If the schema is unavailable from the URL and the jar
+   * @throws LogRuntimeException If the SCHEMA_SOURCE or SCHEMA_CACHE_TTL_SECONDS property is
+   *     invalid
+   */
+  static Schema getSchema(String url, String resource)
+      throws SchemaUnavailableException, LogRuntimeException {
+    if (isBundledSource()) {
+      return getBundledSchema(resource);
+    }
+
+    long ttlNanos =
+        TimeUnit.SECONDS.toNanos(
+            Library.getLongProperty("SCHEMA_CACHE_TTL_SECONDS", DEFAULT_TTL_SECONDS));
+
+    Entry entry = schemas.get(url);
+
+    if (entry != null && !entry.isExpired()) {
+      return entry.schema;
+    }
+
+    // Only one thread fetches each URL rather than all of them hitting the server
+    CompletableFuture<Entry> pending = new CompletableFuture<>();
+    CompletableFuture<Entry> existing = loading.putIfAbsent(url, pending);
+
+    if (existing != null) {
+      return entry != null ? entry.schema : await(existing);
+    }
+
+    try {
+      entry = schemas.get(url);
+
+      // Another thread may have finished fetching since the first check
+      if (entry == null || entry.isExpired()) {
+        entry = load(url, resource, entry, ttlNanos);
+        schemas.put(url, entry);
+      }
+
+      pending.complete(entry);
+
+      return entry.schema;
+    } catch (SchemaUnavailableException | RuntimeException e) {
+      pending.completeExceptionally(e);
+      throw e;
+    } finally {
+      loading.remove(url, pending);
+    }
+  }
+
+  private static Schema await(CompletableFuture<Entry> pending) throws SchemaUnavailableException {
+    try {
+      return pending.join().schema;
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+
+      throw new SchemaUnavailableException("Unable to load schema.", e.getCause());
+    }
+  }
+
+  /** Remove all cached schemas so that the next validation fetches them again. */
+  static void clear() {
+    schemas.clear();
+    bundledSchemas.clear();
+  }
+
+  /**
+   * Return the schema bundled in the jar, compiling it once.
+   *
+   * @param resource The classpath resource name of the schema bundled in the jar
+   * @return The schema
+   * @throws SchemaUnavailableException If the resource is missing or cannot be compiled
+   */
+  static Schema getBundledSchema(String resource) throws SchemaUnavailableException {
+    Schema schema = bundledSchemas.get(resource);
+
+    if (schema == null) {
+      schema = compileBundled(resource, null);
+      bundledSchemas.putIfAbsent(resource, schema);
+    }
+
+    return schema;
+  }
+
+  private static boolean isBundledSource() throws LogRuntimeException {
+    String source = Library.getConfiguration().getProperty("SCHEMA_SOURCE");
+
+    if (source == null || source.trim().isEmpty() || source.trim().equals("server")) {
+      return false;
+    }
+
+    if (source.trim().equals("bundled")) {
+      return true;
+    }
+
+    throw new LogRuntimeException("SCHEMA_SOURCE must be server or bundled.");
+  }
+
+  private static Entry load(String url, String resource, Entry previous, long ttlNanos)
+      throws SchemaUnavailableException {
+    Exception failure;
+
+    try {
+      return new Entry(compile(new URL(url)), System.nanoTime() + ttlNanos, false);
+    } catch (MalformedURLException e) {
+      failure = new SchemaUnavailableException("Schema URL malformed.", e);
+    } catch (SAXException e) {
+      failure = new SchemaUnavailableException("Unable to parse schema.", e);
+    }
+
+    long expires =
+        System.nanoTime() + Math.min(ttlNanos, TimeUnit.SECONDS.toNanos(FALLBACK_TTL_SECONDS));
+
+    if (previous != null && !previous.bundled) {
+      logger.log(
+          Level.WARNING, "Unable to refresh schema " + url + "; reusing last copy.", failure);
+      return new Entry(previous.schema, expires, false);
+    }
+
+    logger.log(Level.WARNING, "Unable to load schema " + url + "; using bundled schema.", failure);
+
+    Schema bundled = bundledSchemas.get(resource);
+
+    if (bundled == null) {
+      bundled = compileBundled(resource, failure);
+      bundledSchemas.putIfAbsent(resource, bundled);
+    }
+
+    return new Entry(bundled, expires, true);
+  }
+
+  private static Schema compileBundled(String resource, Exception cause)
+      throws SchemaUnavailableException {
+    URL bundled = SchemaCache.class.getClassLoader().getResource(resource);
+
+    if (bundled == null) {
+      throw new SchemaUnavailableException("Bundled schema " + resource + " not found.", cause);
+    }
+
+    try {
+      return SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(bundled);
+    } catch (SAXException e) {
+      throw new SchemaUnavailableException("Unable to parse bundled schema.", e);
+    }
+  }
+
+  private static Schema compile(URL url) throws SAXException {
+    boolean ignoreServerCert =
+        "true".equals(Library.getConfiguration().getProperty("IGNORE_SERVER_CERT_ERRORS"));
+
+    try {
+      if (ignoreServerCert) {
+        try {
+          SecurityUtil.disableServerCertificateCheck();
+        } catch (NoSuchAlgorithmException | KeyManagementException e) {
+          throw new LogRuntimeException("Unable to disable server certificate check", e);
+        }
+      }
+
+      return SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(url);
+    } finally {
+      SecurityUtil.enableServerCertificateCheck();
+    }
+  }
+
+  private static final class Entry {
+    private final Schema schema;
+    private final long expires;
+    private final boolean bundled;
+
+    Entry(Schema schema, long expires, boolean bundled) {
+      this.schema = schema;
+      this.expires = expires;
+      this.bundled = bundled;
+    }
+
+    boolean isExpired() {
+      return System.nanoTime() - expires >= 0;
+    }
+  }
+}
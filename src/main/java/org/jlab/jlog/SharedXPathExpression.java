@@ -0,0 +1,56 @@
+package org.jlab.jlog;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import org.jlab.jlog.exception.LogRuntimeException;
+
+/**
+ * An XPath expression which can be shared by all log items. XPathExpression and XPath objects are
+ * not thread-safe, so the expression is compiled once per thread and reused by every log item that
+ * thread works on, instead of once per log item.
+ *
+ * @author ryans
+ */
+final class SharedXPathExpression {
+
+  private static final ThreadLocal<XPath> xpaths =
+      ThreadLocal.withInitial(() -> XPathFactory.newInstance().newXPath());
+
+  private final String expression;
+  private final ThreadLocal<XPathExpression> compiled = ThreadLocal.withInitial(this::compile);
+
+  /**
+   * Construct a new SharedXPathExpression. The expression is compiled immediately so a malformed
+   * expression is reported when the owning class is initialized.
+   *
+   * @param expression The XPath expression
+   * @throws LogRuntimeException If the expression cannot be compiled
+   */
+  SharedXPathExpression(String expression) throws LogRuntimeException {
+    this.expression = expression;
+    compiled.get();
+  }
+
+  /**
+   * Evaluate the expression in the specified context and return the result as the specified type.
+   *
+   * @param item The context (generally a Document)
+   * @param returnType The XPathConstants return type
+   * @return The result
+   * @throws XPathExpressionException If unable to evaluate the expression
+   */
+  Object evaluate(Object item, QName returnType) throws XPathExpressionException {
+    return compiled.get().evaluate(item, returnType);
+  }
+
+  private XPathExpression compile() {
+    try {
+      return xpaths.get().compile(expression);
+    } catch (XPathExpressionException e) {
+      throw new LogRuntimeException("Unable to construct XML XPath query", e);
+    }
+  }
+}
@@ -0,0 +1,342 @@
+package org.jlab.jlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jlab.jlog.exception.InvalidXMLException;
+import org.jlab.jlog.exception.LogException;
+import org.jlab.jlog.exception.LogIOException;
+import org.jlab.jlog.exception.LogRuntimeException;
+import org.jlab.jlog.exception.MalformedXMLException;
+import org.jlab.jlog.exception.SubmissionRejectedException;
+
+/**
+ * A local spool directory used as the first tier of the queue when the SPOOL_PATH configuration
+ * property is set. Queuing an item then writes it to the spool on a local disk, which is fast and
+ * does not depend on the shared queue directory being reachable, and a background mover forwards
+ * spooled items to the shared queue (see QUEUE_PATH and QUEUE_BACKEND). If the shared queue cannot
+ * be written the mover submits the items directly to the server instead. Items which can be
+ * forwarded neither way stay in the spool and are tried again on the next scan, while the items
+ * behind them are still forwarded. Files which cannot be parsed and items the server rejects as
+ * invalid are moved to the .failed subdirectory of the spool so they are not tried again.
+ *
+ * <p>The mover scans every SPOOL_FORWARD_INTERVAL_SECONDS seconds and whenever an item is spooled.
+ * Many processes may share a spool directory; a lock file in the directory ensures only one of them
+ * forwards at a time. Items left in the spool by a process which exited or crashed are forwarded
+ * once a spool over the same directory is created again. The shared spool is started by the first
+ * submit or queue call of a process, so this happens without waiting for the next item to be
+ * spooled.
+ *
+ * <p>The spool itself is not bounded by the QUEUE_MAX_ITEMS and QUEUE_MAX_BYTES limits. Its purpose
+ * is to accept items while the shared queue is unreachable or full, so blocking or rejecting them
+ * here would defeat it. The limits and overflow policy of the shared queue apply as items are
+ * forwarded; an item the queue has no room for is submitted directly to the server instead.
+ *
+ * <p>Note: do not drain a spool directory with a QueueDrainer, or an item may be submitted twice.
+ *
+ * @author ryans
+ */
+public class Spool {
+
+  private static final Logger logger = Logger.getLogger(Spool.class.getName());
+  private static final long DEFAULT_FORWARD_INTERVAL_SECONDS = 30;
+  private static final String LOCK_FILE_NAME = ".lock";
+  private static final String FAILED_DIR_NAME = ".failed";
+  private static Spool defaultSpool;
+
+  private final File dir;
+  private final long intervalMillis;
+  private final Object forwardLock = new Object();
+  private final AtomicBoolean wakeUpPending = new AtomicBoolean();
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Construct a new Spool over the specified directory, creating the directory if necessary. The
+   * mover is not started until start is called.
+   *
+   * @param path The spool directory
+   * @param intervalMillis The milliseconds between the end of one scan and the start of the next
+   * @throws LogRuntimeException If unable to create the directory or intervalMillis is less than
+   *     one
+   */
+  public Spool(String path, long intervalMillis) throws LogRuntimeException {
+    if (intervalMillis < 1) {
+      throw new LogRuntimeException("intervalMillis must be at least 1.");
+    }
+
+    this.dir = new File(path);
+    this.intervalMillis = intervalMillis;
+
+    try {
+      Files.createDirectories(dir.toPath());
+    } catch (IOException e) {
+      throw new LogRuntimeException("Unable to create spool directory " + dir + ".", e);
+    }
+  }
+
+  /**
+   * Return the shared spool over the directory given by the SPOOL_PATH configuration property,
+   * creating and starting it if necessary, or null if the property is empty and items are queued
+   * directly to the shared queue.
+   *
+   * @return The spool or null
+   * @throws LogRuntimeException If unable to create the spool or a spool property is invalid
+   */
+  static synchronized Spool getDefault() throws LogRuntimeException {
+    if (defaultSpool == null) {
+      String path = Library.getConfiguration().getProperty("SPOOL_PATH");
+
+      if (path == null || path.isEmpty()) {
+        return null;
+      }
+
+      defaultSpool =
+          new Spool(
+              path,
+              TimeUnit.SECONDS.toMillis(
+                  Library.getLongProperty(
+                      "SPOOL_FORWARD_INTERVAL_SECONDS", DEFAULT_FORWARD_INTERVAL_SECONDS)));
+      defaultSpool.start();
+    }
+
+    return defaultSpool;
+  }
+
+  /** Stop the mover of the shared spool, if any. Items not yet forwarded remain in the spool. */
+  static synchronized void closeDefault() {
+    if (defaultSpool != null) {
+      defaultSpool.stop();
+      defaultSpool = null;
+    }
+  }
+
+  /**
+   * Write the specified item to the spool and wake the mover. The file is forced to disk if the
+   * QUEUE_FSYNC configuration property is "true". The spool is not bounded (the queue limits apply
+   * as items are forwarded). If QUEUE_COALESCE is "true" the spooled revisions which the item
+   * supersedes are removed once it is written, as in the queue.
+   *
+   * @param item The log entry or comment
+   * @throws InvalidXMLException If the XML is invalid
+   * @throws LogIOException If unable to write the item to the spool
+   */
+  void put(LogItem item) throws InvalidXMLException, LogIOException {
+    File file = new File(dir, item.generateXMLFilename());
+
+    item.queue(file.getAbsolutePath());
+
+    if (QueueCoalescer.isEnabled()) {
+      QueueCoalescer.removeSupersededRevisions(dir, item, file);
+    }
+
+    wakeUp();
+  }
+
+  /**
+   * Start the mover on a background daemon thread. The first scan starts immediately. Calling start
+   * on a spool which is already started has no effect.
+   */
+  public synchronized void start() {
+    if (scheduler != null) {
+      return;
+    }
+
+    scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "jlog-spool-mover");
+              thread.setDaemon(true);
+              return thread;
+            });
+
+    scheduler.scheduleWithFixedDelay(
+        this::forwardQuietly, 0, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /** Stop the mover. A scan in progress is allowed to finish, but no further scans are started. */
+  public synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+      scheduler = null;
+    }
+  }
+
+  private synchronized void wakeUp() {
+    if (scheduler != null && wakeUpPending.compareAndSet(false, true)) {
+      scheduler.execute(
+          () -> {
+            wakeUpPending.set(false);
+            forwardQuietly();
+          });
+    }
+  }
+
+  private void forwardQuietly() {
+    try {
+      forward();
+    } catch (RuntimeException e) {
+      // An exception would cancel the periodic scan
+      logger.log(Level.WARNING, "Unable to forward spool " + dir, e);
+    }
+  }
+
+  /**
+   * Scan the spool directory once and forward every spooled item, oldest first, to the shared
+   * queue, or to the server if the shared queue cannot be written. An item which can be forwarded
+   * neither way is left for the next scan, along with any later item for the same log number so
+   * revisions are not forwarded out of order. Nothing is forwarded if another process holds the
+   * spool lock.
+   *
+   * @return The number of items forwarded
+   * @throws LogRuntimeException If unable to lock or list the spool directory or a retry property
+   *     is invalid
+   */
+  public int forward() throws LogRuntimeException {
+    // Scans never overlap, whether started by the scheduler or by a direct call
+    synchronized (forwardLock) {
+      File lockFile = new File(dir, LOCK_FILE_NAME);
+
+      try (FileChannel channel =
+              FileChannel.open(
+                  lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+          FileLock lock = channel.tryLock()) {
+        if (lock == null) {
+          // Another process is forwarding
+          return 0;
+        }
+
+        return forwardOnce();
+      } catch (OverlappingFileLockException e) {
+        // Another spool over the same directory in this JVM is forwarding
+        return 0;
+      } catch (IOException e) {
+        throw new LogRuntimeException("Unable to lock spool directory " + dir + ".", e);
+      }
+    }
+  }
+
+  private int forwardOnce() throws LogRuntimeException {
+    // Files being written have a dot prefix and no .xml extension; see LogItem.queue
+    File[] files = dir.listFiles((d, name) -> name.endsWith(".xml") && !name.startsWith("."));
+
+    if (files == null) {
+      throw new LogRuntimeException("Unable to list spool directory " + dir + ".");
+    }
+
+    // The file names start with a timestamp, so this is oldest first to the second
+    Arrays.sort(files);
+
+    RetryPolicy policy = RetryPolicy.fromConfiguration();
+    Set<Long> waiting = new HashSet<>();
+    boolean queueWritable = true;
+    int forwarded = 0;
+
+    for (File file : files) {
+      LogItem item;
+
+      try {
+        item = LogEntry.readQueuedItem(file);
+      } catch (MalformedXMLException | LogRuntimeException e) {
+        logger.log(Level.WARNING, "Unable to parse spooled file " + file, e);
+        moveToFailed(file);
+        continue;
+      } catch (LogException e) {
+        logger.log(Level.WARNING, "Unable to read spooled file " + file, e);
+        continue;
+      }
+
+      try {
+        Long lognumber = item.getLogNumber();
+
+        if (lognumber != null && waiting.contains(lognumber)) {
+          // An older item for the same log number is still in the spool
+          continue;
+        }
+
+        if (queueWritable) {
+          try {
+            item.queueToQueuePath(file.getName());
+            remove(file);
+            forwarded++;
+            continue;
+          } catch (LogException | LogRuntimeException e) {
+            // The rest of this scan goes to the server rather than waiting on the queue for each
+            logger.log(Level.WARNING, "Unable to forward spooled items to queue", e);
+            queueWritable = false;
+          }
+        }
+
+        try {
+          item.submitNow();
+          remove(file);
+          forwarded++;
+        } catch (LogException | LogRuntimeException e) {
+          if (e instanceof SubmissionRejectedException && !policy.isTransient(e)) {
+            logger.log(Level.WARNING, "Server rejected spooled item " + file, e);
+            moveToFailed(file);
+          } else {
+            logger.log(Level.WARNING, "Unable to forward spooled item " + file + " to server", e);
+
+            if (lognumber != null) {
+              waiting.add(lognumber);
+            }
+          }
+        }
+      } finally {
+        // Forwarded or still in the spool, so the spilled attachment data is done with
+        item.release();
+      }
+    }
+
+    return forwarded;
+  }
+
+  /**
+   * Move the specified spooled file to the failed directory so it is not tried again. If it cannot
+   * be moved it stays in the spool.
+   *
+   * @param file The spooled file
+   */
+  private void moveToFailed(File file) {
+    File failedDir = new File(dir, FAILED_DIR_NAME);
+
+    try {
+      Files.createDirectories(failedDir.toPath());
+      Files.move(
+          file.toPath(),
+          new File(failedDir, file.getName()).toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+      logger.log(Level.WARNING, "Moved spooled file {0} to {1}", new Object[] {file, failedDir});
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Unable to move spooled file " + file + " to " + failedDir, e);
+    }
+  }
+
+  /**
+   * Delete the specified spooled file once its item was forwarded.
+   *
+   * @param file The spooled file
+   */
+  private void remove(File file) {
+    try {
+      Files.delete(file.toPath());
+    } catch (IOException e) {
+      // The item was forwarded, so leaving the file would forward it again on the next scan
+      logger.log(Level.SEVERE, "Unable to remove forwarded spool file " + file, e);
+    }
+  }
+}
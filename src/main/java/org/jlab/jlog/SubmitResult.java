@@ -0,0 +1,101 @@
+package org.jlab.jlog;
+
+import org.jlab.jlog.exception.LogException;
+
+/**
+ * The outcome of submitting a single log item as part of a batch.
+ *
+ * @author ryans
+ */
+public class SubmitResult {
+
+  /** The submission status enumeration. */
+  public enum Status {
+
+    /** Consumed directly by the server */
+    SUBMITTED,
+    /** Written to the queue directory instead of being consumed directly by the server */
+    QUEUED,
+    /** Neither submitted nor queued */
+    FAILED
+  }
+
+  private final LogItem item;
+  private final Status status;
+  private final Long lognumber;
+  private final LogException exception;
+
+  /**
+   * Construct a new SubmitResult.
+   *
+   * @param item The log item
+   * @param status The status
+   * @param lognumber The log number or null if not submitted
+   * @param exception The exception which prevented direct submission or null if none
+   */
+  SubmitResult(LogItem item, Status status, Long lognumber, LogException exception) {
+    this.item = item;
+    this.status = status;
+    this.lognumber = lognumber;
+    this.exception = exception;
+  }
+
+  /**
+   * Return the log item.
+   *
+   * @return The log item
+   */
+  public LogItem getItem() {
+    return item;
+  }
+
+  /**
+   * Return the status.
+   *
+   * @return The status
+   */
+  public Status getStatus() {
+    return status;
+  }
+
+  /**
+   * Return the log number assigned by the server, or null if the item was queued or failed.
+   *
+   * @return The log number or null
+   */
+  public Long getLogNumber() {
+    return lognumber;
+  }
+
+  /**
+   * Return the exception which prevented direct submission, or null if none. For a queued item
+   * this is the same as the item's whyQueued value.
+   *
+   * @return The exception or null
+   */
+  public LogException getException() {
+    return exception;
+  }
+
+  /**
+   * Returns a String representation.
+   *
+   * @return The String representation
+   */
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+
+    builder.append("Status: ");
+    builder.append(status.name());
+    builder.append(", Lognumber: ");
+    builder.append(lognumber);
+
+    if (exception != null) {
+      builder.append(", Exception: ");
+      builder.append(exception.getMessage());
+    }
+
+    return builder.toString();
+  }
+}
@@ -0,0 +1,28 @@
+package org.jlab.jlog.exception;
+
+/**
+ * Indicates that the queue is full and the log item was not queued.
+ *
+ * @author ryans
+ */
+public class QueueFullException extends LogIOException {
+
+  /**
+   * Create a new QueueFullException with a message.
+   *
+   * @param msg The message
+   */
+  public QueueFullException(String msg) {
+    super(msg);
+  }
+
+  /**
+   * Create a new QueueFullException with a message and cause.
+   *
+   * @param msg The message
+   * @param cause The cause
+   */
+  public QueueFullException(String msg, Throwable cause) {
+    super(msg, cause);
+  }
+}
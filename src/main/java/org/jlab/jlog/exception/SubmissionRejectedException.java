@@ -0,0 +1,29 @@
+package org.jlab.jlog.exception;
+
+/**
+ * Indicates that the server was reached and rejected the submission, so submitting the same log
+ * item again would fail the same way.
+ *
+ * @author ryans
+ */
+public class SubmissionRejectedException extends LogIOException {
+
+  /**
+   * Create a new SubmissionRejectedException with a message.
+   *
+   * @param msg The message
+   */
+  public SubmissionRejectedException(String msg) {
+    super(msg);
+  }
+
+  /**
+   * Create a new SubmissionRejectedException with a message and cause.
+   *
+   * @param msg The message
+   * @param cause The cause
+   */
+  public SubmissionRejectedException(String msg, Throwable cause) {
+    super(msg, cause);
+  }
+}
@@ -0,0 +1,287 @@
+package org.jlab.jlog.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * An XMLReader which emits SAX events for an in-memory Document (DOM) instead of parsing text. This
+ * allows a Document to be used as a streaming source for a Transformer or Validator. Elements
+ * marked with a base64 file (see XMLUtil.setBase64FileContent) have the file content encoded and
+ * emitted in chunks as it is read, so the content is never held in memory all at once.
+ *
+ * @author ryans
+ */
+final class DOMSAXReader implements XMLReader {
+
+  private static final String LEXICAL_HANDLER_PROPERTY =
+      "http://xml.org/sax/properties/lexical-handler";
+  private static final String NAMESPACES_FEATURE = "http://xml.org/sax/features/namespaces";
+
+  /** Bytes encoded per chunk; a multiple of 57 so MIME base64 lines (76 chars) align */
+  private static final int CHUNK_BYTES = 57 * 1024;
+
+  private static final char[] LINE_SEPARATOR = {'\r', '\n'};
+
+  private final Document doc;
+  private final Map<String, Boolean> features = new HashMap<>();
+  private final Map<String, Object> properties = new HashMap<>();
+  private ContentHandler contentHandler;
+  private LexicalHandler lexicalHandler;
+  private DTDHandler dtdHandler;
+  private EntityResolver entityResolver;
+  private ErrorHandler errorHandler;
+
+  /**
+   * Construct a new DOMSAXReader for the specified Document.
+   *
+   * @param doc The Document
+   */
+  DOMSAXReader(Document doc) {
+    this.doc = doc;
+    features.put(NAMESPACES_FEATURE, true);
+  }
+
+  @Override
+  public boolean getFeature(String name) {
+    return features.getOrDefault(name, false);
+  }
+
+  @Override
+  public void setFeature(String name, boolean value) {
+    features.put(name, value);
+  }
+
+  @Override
+  public Object getProperty(String name) {
+    if (LEXICAL_HANDLER_PROPERTY.equals(name)) {
+      return lexicalHandler;
+    }
+
+    return properties.get(name);
+  }
+
+  @Override
+  public void setProperty(String name, Object value) {
+    if (LEXICAL_HANDLER_PROPERTY.equals(name)) {
+      lexicalHandler = (LexicalHandler) value;
+    } else {
+      properties.put(name, value);
+    }
+  }
+
+  @Override
+  public void setEntityResolver(EntityResolver resolver) {
+    entityResolver = resolver;
+  }
+
+  @Override
+  public EntityResolver getEntityResolver() {
+    return entityResolver;
+  }
+
+  @Override
+  public void setDTDHandler(DTDHandler handler) {
+    dtdHandler = handler;
+  }
+
+  @Override
+  public DTDHandler getDTDHandler() {
+    return dtdHandler;
+  }
+
+  @Override
+  public void setContentHandler(ContentHandler handler) {
+    contentHandler = handler;
+  }
+
+  @Override
+  public ContentHandler getContentHandler() {
+    return contentHandler;
+  }
+
+  @Override
+  public void setErrorHandler(ErrorHandler handler) {
+    errorHandler = handler;
+  }
+
+  @Override
+  public ErrorHandler getErrorHandler() {
+    return errorHandler;
+  }
+
+  /**
+   * Emit the events for the Document. The InputSource is ignored.
+   *
+   * @param input Ignored
+   * @throws IOException If unable to read a base64 file
+   * @throws SAXException If the handler reports an error
+   */
+  @Override
+  public void parse(InputSource input) throws IOException, SAXException {
+    contentHandler.startDocument();
+
+    for (Node child = doc.getFirstChild(); child != null; child = child.getNextSibling()) {
+      emit(child);
+    }
+
+    contentHandler.endDocument();
+  }
+
+  /**
+   * Emit the events for the Document. The systemId is ignored.
+   *
+   * @param systemId Ignored
+   * @throws IOException If unable to read a base64 file
+   * @throws SAXException If the handler reports an error
+   */
+  @Override
+  public void parse(String systemId) throws IOException, SAXException {
+    parse((InputSource) null);
+  }
+
+  private void emit(Node node) throws IOException, SAXException {
+    switch (node.getNodeType()) {
+      case Node.ELEMENT_NODE:
+        emitElement((Element) node);
+        break;
+      case Node.TEXT_NODE:
+        emitText(node.getNodeValue());
+        break;
+      case Node.CDATA_SECTION_NODE:
+        if (lexicalHandler != null) {
+          lexicalHandler.startCDATA();
+        }
+
+        emitText(node.getNodeValue());
+
+        if (lexicalHandler != null) {
+          lexicalHandler.endCDATA();
+        }
+        break;
+      case Node.COMMENT_NODE:
+        if (lexicalHandler != null) {
+          char[] chars = node.getNodeValue().toCharArray();
+          lexicalHandler.comment(chars, 0, chars.length);
+        }
+        break;
+      case Node.PROCESSING_INSTRUCTION_NODE:
+        contentHandler.processingInstruction(node.getNodeName(), node.getNodeValue());
+        break;
+      case Node.ENTITY_REFERENCE_NODE:
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+          emit(child);
+        }
+        break;
+      default:
+        // Document type and other node kinds are not serialized
+        break;
+    }
+  }
+
+  private void emitElement(Element element) throws IOException, SAXException {
+    String uri = element.getNamespaceURI() == null ? "" : element.getNamespaceURI();
+    String qName = element.getTagName();
+    String localName = element.getLocalName() == null ? qName : element.getLocalName();
+
+    AttributesImpl atts = new AttributesImpl();
+    NamedNodeMap attributes = element.getAttributes();
+
+    for (int i = 0; i < attributes.getLength(); i++) {
+      Attr attr = (Attr) attributes.item(i);
+      String attrUri = attr.getNamespaceURI() == null ? "" : attr.getNamespaceURI();
+      String attrLocalName = attr.getLocalName() == null ? attr.getName() : attr.getLocalName();
+      atts.addAttribute(attrUri, attrLocalName, attr.getName(), "CDATA", attr.getValue());
+    }
+
+    contentHandler.startElement(uri, localName, qName, atts);
+
+    File file = XMLUtil.getBase64FileContent(element);
+
+    if (file != null) {
+      emitBase64(file);
+    } else {
+      for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+        emit(child);
+      }
+    }
+
+    contentHandler.endElement(uri, localName, qName);
+  }
+
+  private void emitText(String text) throws SAXException {
+    char[] chars = text.toCharArray();
+    contentHandler.characters(chars, 0, chars.length);
+  }
+
+  private void emitBase64(File file) throws IOException, SAXException {
+    // An indenting serializer buffers the character content of an element until the element ends
+    // to decide how to indent it, which would hold the whole file in memory. The content of a CDATA
+    // section is written out immediately instead, and base64 never needs escaping.
+    if (lexicalHandler != null) {
+      lexicalHandler.startCDATA();
+    }
+
+    emitBase64Chunks(file);
+
+    if (lexicalHandler != null) {
+      lexicalHandler.endCDATA();
+    }
+  }
+
+  private void emitBase64Chunks(File file) throws IOException, SAXException {
+    Base64.Encoder encoder = Base64.getMimeEncoder();
+    ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+    boolean first = true;
+
+    try (FileInputStream in = new FileInputStream(file);
+        FileChannel channel = in.getChannel()) {
+      boolean eof = false;
+
+      while (!eof) {
+        buffer.clear();
+
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer) == -1) {
+            eof = true;
+            break;
+          }
+        }
+
+        if (buffer.position() == 0) {
+          break;
+        }
+
+        buffer.flip();
+
+        if (!first) {
+          contentHandler.characters(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+        }
+
+        char[] chars = StandardCharsets.ISO_8859_1.decode(encoder.encode(buffer)).array();
+        contentHandler.characters(chars, 0, chars.length);
+        first = false;
+      }
+    }
+  }
+}
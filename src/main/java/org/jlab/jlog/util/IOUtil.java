@@ -173,4 +173,44 @@ public final class IOUtil {
   public static byte[] decodeBase64(String data) {
     return Base64.getMimeDecoder().decode(data);
   }
+
+  /**
+   * Returns the number of bytes a base64 String decodes to, without decoding it. Like the MIME
+   * decoder, characters outside of the base64 alphabet (such as line separators) are ignored.
+   *
+   * @param data The base64 encoded String
+   * @return The decoded length
+   */
+  public static long base64DecodedLength(CharSequence data) {
+    long chars = 0;
+    int padding = 0;
+
+    for (int i = 0; i < data.length(); i++) {
+      char c = data.charAt(i);
+
+      if (c == '=') {
+        chars++;
+        padding++;
+      } else if (isBase64Alphabet(c)) {
+        chars++;
+      }
+    }
+
+    return chars * 3 / 4 - padding;
+  }
+
+  /**
+   * Return true if the specified character is in the base64 alphabet. The padding character '=' is
+   * not included.
+   *
+   * @param c The character
+   * @return true if in the alphabet, false otherwise
+   */
+  public static boolean isBase64Alphabet(char c) {
+    return (c >= 'A' && c <= 'Z')
+        || (c >= 'a' && c <= 'z')
+        || (c >= '0' && c <= '9')
+        || c == '+'
+        || c == '/';
+  }
 }
@@ -15,6 +15,8 @@ import java.security.cert.X509Certificate;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.naming.InvalidNameException;
@@ -43,6 +45,7 @@ public final class SecurityUtil {
       (SSLSocketFactory) SSLSocketFactory.getDefault();
   private static final HostnameVerifier defaultVerifier =
       HttpsURLConnection.getDefaultHostnameVerifier();
+  private static final Map<String, CachedContext> contextCache = new ConcurrentHashMap<>();
 
   private SecurityUtil() {
     // Can't instantiate publicly
@@ -224,6 +227,66 @@ public final class SecurityUtil {
     return context;
   }
 
+  /**
+   * Get a cached SSLContext, creating it with getContext if necessary. Initializing an SSLContext
+   * requires reading and parsing the PEM file and building a keystore so the result is cached by
+   * PEM path and verifyPeer. The cached context is discarded automatically if the last modified
+   * time or size of the PEM file changes.
+   *
+   * @param pemPath The PEM file path
+   * @param verifyPeer true to verify peer hostname
+   * @return The SSLContext
+   * @throws NoSuchAlgorithmException If unable to create the SocketFactory
+   * @throws FileNotFoundException If the PEM file cannot be found
+   * @throws IOException If unable to read the PEM file
+   * @throws KeyStoreException If unable to create the SocketFactory
+   * @throws CertificateException If unable to create the SocketFactory
+   * @throws UnrecoverableKeyException If unable to create the SocketFactory
+   * @throws KeyManagementException If unable to create the SocketFactory
+   * @throws InvalidKeySpecException If unable to create the SocketFactory
+   */
+  public static SSLContext getCachedContext(String pemPath, boolean verifyPeer)
+      throws NoSuchAlgorithmException,
+          IOException,
+          CertificateException,
+          InvalidKeySpecException,
+          KeyStoreException,
+          UnrecoverableKeyException,
+          KeyManagementException {
+    File pemFile = new File(pemPath);
+    long lastModified = pemFile.lastModified();
+    long length = pemFile.length();
+
+    String key = pemFile.getAbsolutePath() + "|" + verifyPeer;
+
+    CachedContext cached = contextCache.get(key);
+
+    if (cached == null || cached.lastModified != lastModified || cached.length != length) {
+      SSLContext context = getContext(pemPath, verifyPeer);
+      cached = new CachedContext(context, lastModified, length);
+      contextCache.put(key, cached);
+    }
+
+    return cached.context;
+  }
+
+  /** Discard all SSLContext objects cached by getCachedContext. */
+  public static void clearContextCache() {
+    contextCache.clear();
+  }
+
+  private static final class CachedContext {
+    private final SSLContext context;
+    private final long lastModified;
+    private final long length;
+
+    CachedContext(SSLContext context, long lastModified, long length) {
+      this.context = context;
+      this.lastModified = lastModified;
+      this.length = length;
+    }
+  }
+
   /**
    * Obtain a SSLSocketFactory that provides a client certificate from a PKCS12 file.
    *
@@ -1,21 +1,31 @@
 package org.jlab.jlog.util;
 
+import java.io.File;
+import java.io.OutputStream;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamResult;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.w3c.dom.UserDataHandler;
+import org.xml.sax.InputSource;
 
 /**
  * XML Utilities.
@@ -24,8 +34,32 @@ import org.w3c.dom.NodeList;
  */
 public final class XMLUtil {
 
+  private static final String BASE64_FILE_KEY = "org.jlab.jlog.base64File";
+
+  /** Carries the base64 file over to copies made by cloneNode and importNode */
+  private static final UserDataHandler BASE64_FILE_HANDLER =
+      (operation, key, data, src, dst) -> {
+        if (dst != null
+            && (operation == UserDataHandler.NODE_CLONED
+                || operation == UserDataHandler.NODE_IMPORTED)) {
+          dst.setUserData(key, data, XMLUtil.BASE64_FILE_HANDLER);
+        }
+      };
+
   private static final DatatypeFactory typeFactory;
 
+  /*
+   * Serialization uses the identity Transformer, which streams SAX events straight to the output.
+   * Compiled Templates are not used since an identity stylesheet run through them would first
+   * build a model of the whole Document, including any streamed attachment content.
+   */
+  private static final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+
+  /** A Transformer is not thread-safe, so each thread reuses its own */
+  private static final ThreadLocal<Transformer> indentingTransformers = new ThreadLocal<>();
+
+  private static final ThreadLocal<Transformer> compactTransformers = new ThreadLocal<>();
+
   static {
     try {
       typeFactory = DatatypeFactory.newInstance();
@@ -194,7 +228,140 @@ public final class XMLUtil {
   }
 
   /**
-   * Convert a Document (DOM) into an XML String.
+   * Read the element at the current position of an XMLStreamReader, including its attributes and
+   * descendants, into a new Element owned by the specified Document. The reader must be positioned
+   * on the START_ELEMENT event and is left on the matching END_ELEMENT event. The Element is not
+   * appended to the Document.
+   *
+   * @param doc The Document
+   * @param reader The XMLStreamReader
+   * @return The Element
+   * @throws XMLStreamException If unable to read the element
+   */
+  public static Element readElement(Document doc, XMLStreamReader reader)
+      throws XMLStreamException {
+    String tagName = getQualifiedName(reader.getPrefix(), reader.getLocalName());
+    Element element = doc.createElement(tagName);
+
+    readAttributes(reader).forEach(element::setAttribute);
+
+    while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+      switch (reader.getEventType()) {
+        case XMLStreamConstants.START_ELEMENT:
+          element.appendChild(readElement(doc, reader));
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.SPACE:
+          element.appendChild(doc.createTextNode(reader.getText()));
+          break;
+        case XMLStreamConstants.CDATA:
+          element.appendChild(doc.createCDATASection(reader.getText()));
+          break;
+        case XMLStreamConstants.COMMENT:
+          element.appendChild(doc.createComment(reader.getText()));
+          break;
+        case XMLStreamConstants.PROCESSING_INSTRUCTION:
+          element.appendChild(
+              doc.createProcessingInstruction(reader.getPITarget(), reader.getPIData()));
+          break;
+        default:
+          // Entity references are replaced by the reader; nothing else can occur in an element
+          break;
+      }
+    }
+
+    return element;
+  }
+
+  /**
+   * Skip the element at the current position of an XMLStreamReader, including its descendants. The
+   * reader must be positioned on the START_ELEMENT event and is left on the matching END_ELEMENT
+   * event.
+   *
+   * @param reader The XMLStreamReader
+   * @throws XMLStreamException If unable to read the element
+   */
+  public static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+    int depth = 1;
+
+    while (depth > 0) {
+      int event = reader.next();
+
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+
+  /**
+   * Return the attributes of the element at the current position of an XMLStreamReader, including
+   * namespace declarations, keyed by qualified name in document order.
+   *
+   * @param reader The XMLStreamReader positioned on a START_ELEMENT event
+   * @return The attributes
+   */
+  public static Map<String, String> readAttributes(XMLStreamReader reader) {
+    Map<String, String> attributes = new LinkedHashMap<>();
+
+    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+      String prefix = reader.getNamespacePrefix(i);
+      String name = prefix == null || prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix;
+      attributes.put(name, reader.getNamespaceURI(i));
+    }
+
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      attributes.put(
+          getQualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)),
+          reader.getAttributeValue(i));
+    }
+
+    return attributes;
+  }
+
+  private static String getQualifiedName(String prefix, String localName) {
+    return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+  }
+
+  /**
+   * Mark an Element as having the base64 encoded content of the specified file. The file is not
+   * read now; it is encoded as the Element content each time the Document is serialized with
+   * getXML, writeXML, or getSource, so the content is never held in memory all at once. Any
+   * existing children of the Element are not serialized. The mark is kept when the Element is
+   * cloned or imported into another Document.
+   *
+   * @param element The Element
+   * @param file The file
+   */
+  public static void setBase64FileContent(Element element, File file) {
+    element.setUserData(BASE64_FILE_KEY, file, BASE64_FILE_HANDLER);
+  }
+
+  /**
+   * Return the file whose base64 encoded content is streamed as the content of the specified
+   * Element, or null if the Element content is in the DOM.
+   *
+   * @param element The Element
+   * @return The file or null
+   */
+  public static File getBase64FileContent(Element element) {
+    return (File) element.getUserData(BASE64_FILE_KEY);
+  }
+
+  /**
+   * Return a Source for a Document (DOM) which can be used with a Transformer or Validator. Unlike
+   * a DOMSource, the content of Elements marked with setBase64FileContent is included.
+   *
+   * @param doc The Document
+   * @return The Source
+   */
+  public static Source getSource(Document doc) {
+    return new SAXSource(new DOMSAXReader(doc), new InputSource());
+  }
+
+  /**
+   * Convert a Document (DOM) into an indented XML String.
    *
    * @param doc The Document
    * @return The XML String
@@ -203,15 +370,86 @@ public final class XMLUtil {
    */
   public static String getXML(Document doc)
       throws TransformerConfigurationException, TransformerException {
-    TransformerFactory factory = TransformerFactory.newInstance();
+    return getXML(doc, true);
+  }
 
-    Transformer transformer = factory.newTransformer();
-    transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+  /**
+   * Convert a Document (DOM) into an XML String.
+   *
+   * @param doc The Document
+   * @param indent true to indent the XML for readability, false for compact XML
+   * @return The XML String
+   * @throws TransformerConfigurationException If there is a configuration issue
+   * @throws TransformerException If unable to transform the Document
+   */
+  public static String getXML(Document doc, boolean indent)
+      throws TransformerConfigurationException, TransformerException {
     StringWriter writer = new StringWriter();
-    StreamResult result = new StreamResult(writer);
-    DOMSource source = new DOMSource(doc);
-    transformer.transform(source, result);
+    transform(doc, new StreamResult(writer), indent);
 
     return writer.toString();
   }
+
+  /**
+   * Write a Document (DOM) as indented UTF-8 encoded XML to an OutputStream without first building
+   * the entire XML as a String. The stream is flushed but not closed.
+   *
+   * @param doc The Document
+   * @param out The OutputStream
+   * @throws TransformerConfigurationException If there is a configuration issue
+   * @throws TransformerException If unable to transform the Document or write to the stream
+   */
+  public static void writeXML(Document doc, OutputStream out)
+      throws TransformerConfigurationException, TransformerException {
+    writeXML(doc, out, true);
+  }
+
+  /**
+   * Write a Document (DOM) as UTF-8 encoded XML to an OutputStream without first building the
+   * entire XML as a String. The stream is flushed but not closed.
+   *
+   * @param doc The Document
+   * @param out The OutputStream
+   * @param indent true to indent the XML for readability, false for compact XML
+   * @throws TransformerConfigurationException If there is a configuration issue
+   * @throws TransformerException If unable to transform the Document or write to the stream
+   */
+  public static void writeXML(Document doc, OutputStream out, boolean indent)
+      throws TransformerConfigurationException, TransformerException {
+    transform(doc, new StreamResult(out), indent);
+  }
+
+  private static void transform(Document doc, StreamResult result, boolean indent)
+      throws TransformerConfigurationException, TransformerException {
+    ThreadLocal<Transformer> transformers = indent ? indentingTransformers : compactTransformers;
+    Transformer transformer = transformers.get();
+
+    if (transformer == null) {
+      transformer = newTransformer(indent);
+      transformers.set(transformer);
+    }
+
+    try {
+      transformer.transform(getSource(doc), result);
+    } catch (TransformerException | RuntimeException e) {
+      // Don't reuse a Transformer which may have been left mid-document
+      transformers.remove();
+      throw e;
+    }
+  }
+
+  private static Transformer newTransformer(boolean indent)
+      throws TransformerConfigurationException {
+    Transformer transformer;
+
+    // A TransformerFactory is not guaranteed to be thread-safe
+    synchronized (transformerFactory) {
+      transformer = transformerFactory.newTransformer();
+    }
+
+    transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+    transformer.setOutputProperty(OutputKeys.INDENT, indent ? "yes" : "no");
+
+    return transformer;
+  }
 }
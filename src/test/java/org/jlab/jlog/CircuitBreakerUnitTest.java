@@ -0,0 +1,258 @@
+package org.jlab.jlog;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jlab.jlog.exception.LogCertificateException;
+import org.jlab.jlog.exception.LogException;
+import org.jlab.jlog.exception.LogRuntimeException;
+import org.jlab.jlog.exception.QueueFullException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * CircuitBreaker JUnit tests.
+ *
+ * @author ryans
+ */
+public class CircuitBreakerUnitTest {
+
+  private static final long OPEN_MS = 1000;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private Properties saved;
+  private Properties config;
+  private AtomicLong now;
+  private CircuitBreaker breaker;
+
+  public CircuitBreakerUnitTest() {}
+
+  @BeforeClass
+  public static void setUpClass() {}
+
+  @AfterClass
+  public static void tearDownClass() {}
+
+  @Before
+  public void setUp() {
+    saved = Library.getConfiguration();
+    config = new Properties(saved);
+    Library.setConfiguration(config);
+
+    config.setProperty("CIRCUIT_BREAKER_FAILURE_THRESHOLD", "3");
+    config.setProperty("CIRCUIT_BREAKER_OPEN_MS", String.valueOf(OPEN_MS));
+
+    now = new AtomicLong();
+    breaker = new CircuitBreaker(now::get);
+  }
+
+  @After
+  public void tearDown() {
+    Library.shutdown();
+    Library.setConfiguration(saved);
+  }
+
+  @Test
+  public void testOpensAfterThreshold() {
+    assertTrue(breaker.tryAcquire());
+    breaker.recordFailure();
+    breaker.recordFailure();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertTrue(breaker.tryAcquire());
+
+    breaker.recordFailure();
+
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertTrue(breaker.isOpen());
+    assertFalse(breaker.tryAcquire());
+  }
+
+  @Test
+  public void testSuccessResetsFailures() {
+    breaker.recordFailure();
+    breaker.recordFailure();
+    breaker.recordSuccess();
+    breaker.recordFailure();
+    breaker.recordFailure();
+
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void testHalfOpenSuccessCloses() {
+    open();
+
+    advance(OPEN_MS - 1);
+    assertFalse(breaker.tryAcquire());
+
+    advance(1);
+    assertTrue(breaker.tryAcquire());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+    // Only one trial at a time
+    assertFalse(breaker.tryAcquire());
+
+    breaker.recordSuccess();
+
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertTrue(breaker.tryAcquire());
+  }
+
+  @Test
+  public void testHalfOpenFailureReopens() {
+    open();
+    advance(OPEN_MS);
+    assertTrue(breaker.tryAcquire());
+
+    breaker.recordFailure();
+
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.tryAcquire());
+
+    advance(OPEN_MS);
+    assertTrue(breaker.tryAcquire());
+  }
+
+  @Test
+  public void testReleaseReturnsTrial() {
+    open();
+    advance(OPEN_MS);
+    assertTrue(breaker.tryAcquire());
+
+    breaker.release();
+
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertTrue(breaker.tryAcquire());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+  }
+
+  @Test
+  public void testReleaseWhenClosed() {
+    breaker.recordFailure();
+    breaker.recordFailure();
+    breaker.release();
+    breaker.recordFailure();
+
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void testDisabled() {
+    config.setProperty("CIRCUIT_BREAKER_FAILURE_THRESHOLD", "0");
+
+    for (int i = 0; i < 10; i++) {
+      assertTrue(breaker.tryAcquire());
+      breaker.recordFailure();
+    }
+  }
+
+  @Test
+  public void testLocalFailureNotCounted() throws Exception {
+    config.setProperty("CIRCUIT_BREAKER_FAILURE_THRESHOLD", "1");
+    config.setProperty("SUBMIT_URL", "http://localhost:1/incoming");
+    config.setProperty(
+        "CLIENT_CERTIFICATE_PATH", new File(folder.getRoot(), "missing.pem").getAbsolutePath());
+
+    try {
+      new LogEntry("Testing 123", "TLOG").submitNow();
+      fail("Expected LogCertificateException");
+    } catch (LogCertificateException e) {
+      // Expected
+    }
+
+    assertEquals(CircuitBreaker.State.CLOSED, LogItem.getCircuitBreaker().getState());
+  }
+
+  @Test
+  public void testSubmitAsyncReturnsAtOnceWhileOpen() throws Exception {
+    config.setProperty("CIRCUIT_BREAKER_FAILURE_THRESHOLD", "1");
+    config.setProperty("SUBMIT_URL", "http://localhost:1/incoming");
+    config.setProperty("QUEUE_PATH", folder.newFolder("queue").getPath());
+    config.setProperty("QUEUE_MAX_ITEMS", "1");
+    config.setProperty("QUEUE_OVERFLOW_POLICY", "BLOCK");
+    config.setProperty("QUEUE_BLOCK_TIMEOUT_MS", "1000");
+
+    // A full queue, so the fallback blocks
+    new LogEntry("Testing 1", "TLOG").queue();
+
+    LogItem.getCircuitBreaker().recordFailure();
+    assertTrue(LogItem.getCircuitBreaker().isOpen());
+
+    long start = System.nanoTime();
+    CompletableFuture<Long> future = new LogEntry("Testing 2", "TLOG").submitAsync();
+
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+    assertFalse(future.isDone());
+
+    try {
+      future.get();
+      fail("Expected ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof QueueFullException);
+    }
+  }
+
+  @Test
+  public void testNeverLeftHalfOpen() throws Exception {
+    config.setProperty("CIRCUIT_BREAKER_FAILURE_THRESHOLD", "1");
+    config.setProperty("CIRCUIT_BREAKER_OPEN_MS", "0");
+    config.setProperty("SUBMIT_RETRY_MAX_ATTEMPTS", "1");
+
+    try (FakeLogbookServer server = new FakeLogbookServer()) {
+      server.configure(config);
+      server.setStatus(503);
+
+      try {
+        new LogEntry("Testing 123", "TLOG").submitNow();
+        fail("Expected LogException");
+      } catch (LogException e) {
+        // Expected; the server is unavailable
+      }
+
+      CircuitBreaker shared = LogItem.getCircuitBreaker();
+      assertEquals(CircuitBreaker.State.OPEN, shared.getState());
+
+      // The trial attempt fails in this client after the breaker went half-open, which says
+      // nothing about the server, so the breaker goes back to open rather than closing or
+      // staying half-open
+      config.setProperty("SUBMIT_REQUEST_TIMEOUT_MS", "soon");
+
+      try {
+        new LogEntry("Testing 123", "TLOG").submitNow();
+        fail("Expected LogRuntimeException");
+      } catch (LogRuntimeException e) {
+        // Expected
+      }
+
+      assertEquals(CircuitBreaker.State.OPEN, shared.getState());
+
+      config.remove("SUBMIT_REQUEST_TIMEOUT_MS");
+      server.setStatus(200);
+
+      assertTrue(new LogEntry("Testing 123", "TLOG").submitNow() > 0);
+      assertEquals(CircuitBreaker.State.CLOSED, shared.getState());
+    }
+  }
+
+  private void open() {
+    breaker.recordFailure();
+    breaker.recordFailure();
+    breaker.recordFailure();
+    assertTrue(breaker.isOpen());
+  }
+
+  private void advance(long millis) {
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+}
@@ -52,6 +52,37 @@ public class CommentUnitTest {
     assertEquals(expected.getType(), actual.getType());
   }
 
+  @Test
+  public void testMerge() throws Exception {
+    Comment other = new Comment(2070473L, new Body(Body.ContentType.TEXT, "Goodbye"));
+    other.setEmailNotify("someone@example.com");
+
+    assertTrue(comment.isMergeableWith(other));
+
+    comment.merge(other);
+
+    assertEquals("Hello World\n\nGoodbye", comment.getBody().getContent());
+    assertArrayEquals(new String[] {"someone@example.com"}, comment.getEmailNotify());
+
+    Comment html = new Comment(2070473L, new Body(Body.ContentType.HTML, "<b>Hi</b>"));
+    Comment elsewhere = new Comment(1L, new Body(Body.ContentType.TEXT, "Hi"));
+
+    assertFalse(comment.isMergeableWith(html));
+    assertFalse(comment.isMergeableWith(elsewhere));
+  }
+
+  @Test
+  public void testValidateBundled() throws Exception {
+    Library.getConfiguration().setProperty("SCHEMA_SOURCE", "bundled");
+
+    try {
+      comment.setEmailNotify("someone@example.com");
+      comment.validate();
+    } finally {
+      Library.getConfiguration().remove("SCHEMA_SOURCE");
+    }
+  }
+
   // @Test
   public void testValidate() throws Exception {
     comment.validate();
@@ -0,0 +1,149 @@
+package org.jlab.jlog;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A logbook server on the loopback interface for unit tests. Every PUT body is recorded and
+ * answered by the responder, which by default accepts the item with the next log number.
+ *
+ * @author ryans
+ */
+public class FakeLogbookServer implements AutoCloseable {
+
+  private final HttpServer server;
+  private final List<String> requests = new ArrayList<>();
+  private final List<String> paths = new ArrayList<>();
+  private final AtomicLong nextLogNumber = new AtomicLong(1);
+  private volatile Function<String, String> responder = xml -> ok(nextLogNumber.getAndIncrement());
+  private volatile int status = 200;
+
+  /**
+   * Start a new server on an ephemeral port.
+   *
+   * @throws IOException If unable to start the server
+   */
+  public FakeLogbookServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/",
+        exchange -> {
+          String xml = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+
+          synchronized (requests) {
+            requests.add(xml);
+            paths.add(exchange.getRequestURI().getPath());
+          }
+
+          byte[] response = responder.apply(xml).getBytes(StandardCharsets.UTF_8);
+          exchange.sendResponseHeaders(status, response.length);
+
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+          }
+        });
+    server.start();
+  }
+
+  /**
+   * Point SUBMIT_URL at this server and CLIENT_CERTIFICATE_PATH at the test certificate in the
+   * specified configuration.
+   *
+   * @param config The configuration
+   */
+  public void configure(Properties config) {
+    config.setProperty(
+        "SUBMIT_URL", "http://localhost:" + server.getAddress().getPort() + "/incoming");
+    config.setProperty("CLIENT_CERTIFICATE_PATH", getTestCertificatePath());
+  }
+
+  /**
+   * Return the path of the self-signed client certificate used by the unit tests.
+   *
+   * @return The path
+   */
+  public static String getTestCertificatePath() {
+    try {
+      return new File(FakeLogbookServer.class.getResource("/test-client.pem").toURI()).getPath();
+    } catch (URISyntaxException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Set the function which answers each request body with a Response document.
+   *
+   * @param responder The responder
+   */
+  public void setResponder(Function<String, String> responder) {
+    this.responder = responder;
+  }
+
+  /**
+   * Set the HTTP status of the responses.
+   *
+   * @param status The status code
+   */
+  public void setStatus(int status) {
+    this.status = status;
+  }
+
+  /**
+   * Return a copy of the request bodies received so far, in the order they arrived.
+   *
+   * @return The request bodies
+   */
+  public List<String> getRequests() {
+    synchronized (requests) {
+      return new ArrayList<>(requests);
+    }
+  }
+
+  /**
+   * Return a copy of the request paths received so far, in the order they arrived.
+   *
+   * @return The request paths
+   */
+  public List<String> getPaths() {
+    synchronized (requests) {
+      return new ArrayList<>(paths);
+    }
+  }
+
+  /**
+   * Return a Response document accepting an item with the specified log number.
+   *
+   * @param lognumber The log number
+   * @return The response XML
+   */
+  public static String ok(long lognumber) {
+    return "<Response stat=\"ok\"><msg>Success</msg><lognumber>"
+        + lognumber
+        + "</lognumber></Response>";
+  }
+
+  /**
+   * Return a Response document rejecting an item with the specified message.
+   *
+   * @param message The message
+   * @return The response XML
+   */
+  public static String fail(String message) {
+    return "<Response stat=\"fail\"><msg>" + message + "</msg></Response>";
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+}
@@ -3,19 +3,38 @@ package org.jlab.jlog;
 import static org.junit.Assert.*;
 
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.jlab.jlog.exception.AttachmentSizeException;
+import org.jlab.jlog.exception.InvalidXMLException;
+import org.jlab.jlog.exception.LogCertificateException;
 import org.jlab.jlog.exception.LogException;
+import org.jlab.jlog.exception.LogIOException;
 import org.jlab.jlog.util.IOUtil;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 /**
  * LogEntry JUnit tests.
@@ -24,6 +43,8 @@ import org.junit.Test;
  */
 public class LogEntryUnitTest {
 
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
   private LogEntry entry;
   private LogEntryAdminExtension extension;
 
@@ -127,6 +148,30 @@ public class LogEntryUnitTest {
     assertEquals(expectedLength, actualLength);
   }
 
+  @Test
+  public void testLazyAttachment() throws Exception {
+    byte[] expected = new byte[200000]; // Spans several base64 chunks
+    new Random(1234).nextBytes(expected);
+    File tmp = File.createTempFile("eloglibunittest", ".bin");
+    tmp.deleteOnExit();
+    Files.write(tmp.toPath(), expected);
+    entry.addLazyAttachment(tmp.getAbsolutePath(), "Lazy", "application/octet-stream");
+
+    byte[] actual;
+    try (InputStream in = entry.getAttachments()[0].getData()) {
+      actual = in.readAllBytes();
+    }
+    assertArrayEquals(expected, actual);
+
+    String filepath = new File(System.getProperty("java.io.tmpdir"), "lazy.xml").getAbsolutePath();
+    entry.queue(filepath);
+    LogEntry tmpEntry = new LogEntry(filepath);
+    try (InputStream in = tmpEntry.getAttachments()[0].getData()) {
+      actual = in.readAllBytes();
+    }
+    assertArrayEquals(expected, actual);
+  }
+
   @Test(expected = AttachmentSizeException.class)
   public void testLargeAttachment() throws Exception {
     File tmp = File.createTempFile("eloglibunittest", ".tmp");
@@ -141,6 +186,37 @@ public class LogEntryUnitTest {
     entry.addAttachment(tmp.getAbsolutePath());
   }
 
+  @Test
+  public void testLoadedAttachmentSize() throws Exception {
+    byte[] data = new byte[2000];
+    File tmp = File.createTempFile("eloglibunittest", ".bin");
+    tmp.deleteOnExit();
+    Files.write(tmp.toPath(), data);
+    entry.addAttachment(tmp.getAbsolutePath());
+    String filepath = new File(System.getProperty("java.io.tmpdir"), "size.xml").getAbsolutePath();
+    entry.queue(filepath);
+
+    Properties config = Library.getConfiguration();
+    config.setProperty("ATTACH_SINGLE_MAX_BYTES", "1999");
+
+    try {
+      new LogEntry(filepath);
+      fail("Expected AttachmentSizeException");
+    } catch (AttachmentSizeException e) {
+      // Expected
+    } finally {
+      config.remove("ATTACH_SINGLE_MAX_BYTES");
+    }
+
+    config.setProperty("ATTACH_SINGLE_MAX_BYTES", "2000");
+
+    try {
+      new LogEntry(filepath);
+    } finally {
+      config.remove("ATTACH_SINGLE_MAX_BYTES");
+    }
+  }
+
   @Test
   public void testLognumber() throws LogException {
     Long expected = 1234L;
@@ -220,6 +296,75 @@ public class LogEntryUnitTest {
     assertEquals(expected, actual);
   }
 
+  @Test
+  public void testParsedRoundTrip() throws Exception {
+    entry.addTags("Readme");
+    entry.addReference(new Reference("atlis", "123"));
+    entry.setSticky(true);
+    entry.setProblemReport(new ProblemReport(ProblemReportType.OPS, true, 1, 2, 3));
+    extension.addComment(new Comment(123L, "Hello World"));
+    String expected = entry.getXML();
+
+    String filepath =
+        new File(System.getProperty("java.io.tmpdir"), "roundtrip.xml").getAbsolutePath();
+    entry.queue(filepath);
+    String actual = new LogEntry(filepath).getXML();
+
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testCompactXML() throws Exception {
+    entry.addTags("Readme");
+    entry.addReference(new Reference("atlis", "123"));
+    entry.setProblemReport(new ProblemReport(ProblemReportType.OPS, true, 1, 2, 3));
+    entry.setBody("Hello\n  World");
+    extension.addComment(new Comment(123L, "Hello World"));
+
+    Properties config = Library.getConfiguration();
+    config.setProperty("SCHEMA_SOURCE", "bundled");
+
+    try {
+      config.setProperty("INDENT_XML", "true");
+      String indented = entry.getXML();
+      entry.validate();
+
+      config.setProperty("INDENT_XML", "false");
+      String compact = entry.getXML();
+      entry.validate();
+
+      assertTrue(compact.length() < indented.length());
+      assertFalse(compact.contains("\n  <"));
+
+      // Whitespace between elements is not content, so both forms read back as the same entry
+      assertEquals(compact, readQueuedXML(indented).getXML());
+      assertEquals(compact, readQueuedXML(compact).getXML());
+    } finally {
+      config.remove("SCHEMA_SOURCE");
+      config.remove("INDENT_XML");
+    }
+  }
+
+  @Test
+  public void testTemplate() throws LogException {
+    entry.addTags("Readme");
+    entry.addReference(new Reference("atlis", "123"));
+    entry.setEmailNotify("someone@example.com");
+    entry.setBody("Hello World");
+
+    LogEntry copy = new LogEntry(entry);
+    copy.setTitle("Copy");
+    copy.addTags("Autolog");
+
+    assertEquals("Copy", copy.getTitle());
+    assertEquals("Readme,Autolog", copy.getTagsCSV());
+    assertEquals("Readme", entry.getTagsCSV());
+    assertEquals(entry.getLogbooksCSV(), copy.getLogbooksCSV());
+    assertEquals(1, copy.getReferences().length);
+    assertEquals("someone@example.com", copy.getEmailNotifyCSV());
+    assertEquals("Hello World", copy.getBody().getContent());
+  }
+
   @Test
   public void testSetEntrymakers() throws LogException {
     String expected = "cjs,theo";
@@ -263,6 +408,73 @@ public class LogEntryUnitTest {
     assertEquals(expected, actual);
   }
 
+  @Test
+  public void testWriteXML() throws Exception {
+    entry.setBody("ΩΨΣΦΠΔ");
+    String expected = entry.getXML();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    entry.writeXML(out);
+    String actual = new String(out.toByteArray(), StandardCharsets.UTF_8);
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testValidate() throws LogException {
+    entry.addTags("Readme");
+    entry.setSticky(true);
+    entry.validate(); // Uses the bundled schema if the server is unreachable
+    entry.validate(); // Cached
+  }
+
+  @Test
+  public void testValidateBundled() throws LogException {
+    Properties config = Library.getConfiguration();
+    config.setProperty("SCHEMA_SOURCE", "bundled");
+
+    try {
+      entry.validate();
+
+      entry.setTitle("");
+
+      try {
+        entry.validate();
+        fail("Expected InvalidXMLException");
+      } catch (InvalidXMLException e) {
+        // Expected
+      }
+    } finally {
+      config.remove("SCHEMA_SOURCE");
+    }
+  }
+
+  @Test
+  public void testValidateBundledStructure() throws LogException {
+    Properties config = Library.getConfiguration();
+    config.setProperty("SCHEMA_SOURCE", "bundled");
+
+    try {
+      entry.addTags("Readme");
+      entry.addEntryMakers("someone");
+      entry.addReference(new Reference("logbook", "1"));
+      entry.setSticky(true);
+      entry.setProblemReport(new ProblemReport(ProblemReportType.OPS, true, 1, 2, 3));
+      entry.setBody("Hello World");
+      entry.setEmailNotify("someone@example.com");
+      entry.validate();
+
+      entry.setTitle(null);
+
+      try {
+        entry.validate();
+        fail("Expected InvalidXMLException");
+      } catch (InvalidXMLException e) {
+        // Expected; a title is required
+      }
+    } finally {
+      config.remove("SCHEMA_SOURCE");
+    }
+  }
+
   @Test
   public void testQueue() throws LogException {
     String expected = "Save and then load me";
@@ -274,6 +486,111 @@ public class LogEntryUnitTest {
     assertEquals(expected, actual);
   }
 
+  @Test
+  public void testQueueFilenamesDistinct() throws Exception {
+    File queue = folder.newFolder("queue");
+    Set<String> names = new HashSet<>();
+
+    // Far more than fit in one second, so many share a timestamp
+    for (int i = 0; i < 200; i++) {
+      String name = entry.generateXMLFilename();
+      assertTrue(names.add(name));
+      entry.queue(new File(queue, name).getAbsolutePath());
+    }
+
+    String[] files = queue.list();
+    assertEquals(200, files.length);
+
+    // Names sort in the order the items were queued
+    List<String> sorted = new ArrayList<>(names);
+    Collections.sort(sorted);
+    Arrays.sort(files);
+    assertArrayEquals(sorted.toArray(), files);
+  }
+
+  @Test
+  public void testQueueNeverPartial() throws Exception {
+    File queue = folder.newFolder("queue");
+    File data = folder.newFile("data.bin");
+    byte[] bytes = new byte[4 * 1024 * 1024];
+    new Random(1234).nextBytes(bytes);
+    Files.write(data.toPath(), bytes);
+    entry.addLazyAttachment(data.getAbsolutePath(), "Lazy", "application/octet-stream");
+
+    AtomicBoolean done = new AtomicBoolean();
+    List<String> partial = Collections.synchronizedList(new ArrayList<>());
+
+    // Any queue file a consumer can see must already be complete
+    Thread watcher =
+        new Thread(
+            () -> {
+              while (!done.get()) {
+                File[] files = queue.listFiles((d, name) -> name.endsWith(".xml"));
+
+                for (File file : files == null ? new File[0] : files) {
+                  try {
+                    String xml = Files.readString(file.toPath()).trim();
+
+                    if (!xml.endsWith("</Logentry>")) {
+                      partial.add(file.getName());
+                    }
+                  } catch (IOException e) {
+                    partial.add(file.getName() + ": " + e);
+                  }
+                }
+              }
+            });
+    watcher.start();
+
+    try {
+      for (int i = 0; i < 5; i++) {
+        entry.queue(new File(queue, entry.generateXMLFilename()).getAbsolutePath());
+      }
+    } finally {
+      done.set(true);
+      watcher.join();
+    }
+
+    assertEquals(Collections.emptyList(), partial);
+    assertEquals(5, queue.list().length);
+
+    // A write which fails part way leaves nothing behind
+    Files.delete(data.toPath());
+    File failed = new File(queue, entry.generateXMLFilename());
+
+    try {
+      entry.queue(failed.getAbsolutePath());
+      fail("Expected LogIOException");
+    } catch (LogIOException e) {
+      // Expected
+    }
+
+    assertFalse(failed.exists());
+    assertEquals(5, queue.list().length);
+  }
+
+  @Test
+  public void testSubmitAsyncQueuesOnFailure() throws Exception {
+    Properties config = Library.getConfiguration();
+    File queue = folder.newFolder("queue");
+    File missing = new File(folder.getRoot(), "missing-cert.pem");
+    config.setProperty("CLIENT_CERTIFICATE_PATH", missing.getAbsolutePath());
+    config.setProperty("QUEUE_PATH", queue.getAbsolutePath());
+    config.setProperty("SUBMIT_RETRY_MAX_ATTEMPTS", "1");
+
+    try {
+      long expected = 0L;
+      long actual = entry.submitAsync().get();
+      assertEquals(expected, actual);
+      assertTrue(entry.whyQueued() instanceof LogCertificateException);
+      assertEquals(1, queue.list().length);
+    } finally {
+      config.remove("CLIENT_CERTIFICATE_PATH");
+      config.remove("QUEUE_PATH");
+      config.remove("SUBMIT_RETRY_MAX_ATTEMPTS");
+    }
+  }
+
   @Test
   public void testCharacterEncoding() throws Exception {
     String expected = "ΩΨΣΦΠΔ";
@@ -283,4 +600,9 @@ public class LogEntryUnitTest {
     String actual = entry.getTitle();
     assertEquals(expected, actual);
   }
+
+  private static LogItem readQueuedXML(String xml) throws LogException {
+    return LogEntry.readQueuedItem(
+        new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), "test.xml");
+  }
 }
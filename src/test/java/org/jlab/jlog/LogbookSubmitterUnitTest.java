@@ -0,0 +1,189 @@
+package org.jlab.jlog;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.jlab.jlog.exception.LogException;
+import org.jlab.jlog.exception.LogIOException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * LogbookSubmitter JUnit tests.
+ *
+ * @author ryans
+ */
+public class LogbookSubmitterUnitTest {
+
+  private static final Pattern TITLE = Pattern.compile("<title>Entry (\\d+)</title>");
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private Properties saved;
+  private FakeLogbookServer server;
+
+  public LogbookSubmitterUnitTest() {}
+
+  @BeforeClass
+  public static void setUpClass() {}
+
+  @AfterClass
+  public static void tearDownClass() {}
+
+  @Before
+  public void setUp() throws Exception {
+    saved = Library.getConfiguration();
+    Library.setConfiguration(new Properties(saved));
+
+    server = new FakeLogbookServer();
+
+    Properties config = Library.getConfiguration();
+    server.configure(config);
+    config.setProperty("QUEUE_PATH", folder.newFolder("queue").getAbsolutePath());
+    config.setProperty("SUBMIT_RETRY_MAX_ATTEMPTS", "1");
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+    Library.shutdown();
+    Library.setConfiguration(saved);
+  }
+
+  @Test
+  public void testSubmitAllInOrder() throws LogException {
+    // The server answers with the number in the title after a random delay, so the requests
+    // complete out of order
+    server.setResponder(
+        xml -> {
+          try {
+            Thread.sleep(ThreadLocalRandom.current().nextInt(50));
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+
+          Matcher matcher = TITLE.matcher(xml);
+          assertTrue(matcher.find());
+          return FakeLogbookServer.ok(Long.parseLong(matcher.group(1)));
+        });
+
+    List<LogEntry> entries = new ArrayList<>();
+
+    for (int i = 1; i <= 20; i++) {
+      entries.add(new LogEntry("Entry " + i, "TLOG"));
+    }
+
+    List<SubmitResult> results = new LogbookSubmitter(4, false).submitAll(entries);
+
+    assertEquals(20, results.size());
+    assertEquals(20, server.getRequests().size());
+
+    for (int i = 0; i < results.size(); i++) {
+      SubmitResult result = results.get(i);
+      assertSame(entries.get(i), result.getItem());
+      assertEquals(SubmitResult.Status.SUBMITTED, result.getStatus());
+      assertEquals(Long.valueOf(i + 1), result.getLogNumber());
+    }
+  }
+
+  @Test
+  public void testSubmitAllQueuesWhenUnavailable() throws LogException {
+    server.setStatus(503);
+
+    List<LogEntry> entries = new ArrayList<>();
+    entries.add(new LogEntry("Entry 1", "TLOG"));
+    entries.add(new LogEntry("Entry 2", "TLOG"));
+
+    List<SubmitResult> results = new LogbookSubmitter(2, true).submitAll(entries);
+
+    for (SubmitResult result : results) {
+      assertEquals(SubmitResult.Status.QUEUED, result.getStatus());
+      assertNull(result.getLogNumber());
+      assertNotNull(result.getException());
+    }
+
+    assertEquals(2, Library.getQueueDepth());
+  }
+
+  @Test
+  public void testSubmitAllReportsFailure() throws LogException {
+    server.setResponder(
+        xml ->
+            xml.contains("Entry 2") ? FakeLogbookServer.fail("Rejected") : FakeLogbookServer.ok(7));
+
+    List<LogEntry> entries = new ArrayList<>();
+    entries.add(new LogEntry("Entry 1", "TLOG"));
+    entries.add(new LogEntry("Entry 2", "TLOG"));
+
+    List<SubmitResult> results = new LogbookSubmitter(2, false).submitAll(entries);
+
+    assertEquals(SubmitResult.Status.SUBMITTED, results.get(0).getStatus());
+    assertEquals(Long.valueOf(7), results.get(0).getLogNumber());
+    assertEquals(SubmitResult.Status.FAILED, results.get(1).getStatus());
+    assertTrue(results.get(1).getException().getMessage().contains("Rejected"));
+    assertEquals(0, Library.getQueueDepth());
+  }
+
+  @Test
+  public void testRetryPutsSameFile() throws Exception {
+    Properties config = Library.getConfiguration();
+    config.setProperty("SUBMIT_RETRY_MAX_ATTEMPTS", "3");
+    config.setProperty("SUBMIT_RETRY_BACKOFF_MS", "1");
+
+    AtomicInteger calls = new AtomicInteger();
+    server.setResponder(
+        xml -> {
+          // The first attempt is answered as if by a proxy in front of a restarting server
+          server.setStatus(calls.incrementAndGet() == 1 ? 503 : 200);
+          return FakeLogbookServer.ok(7);
+        });
+
+    assertEquals(7, new LogEntry("Entry 1", "TLOG").submitNow());
+
+    List<String> paths = server.getPaths();
+    assertEquals(2, paths.size());
+    assertEquals(paths.get(0), paths.get(1));
+  }
+
+  @Test
+  public void testNotRetriedOnceSent() throws Exception {
+    Properties config = Library.getConfiguration();
+    config.setProperty("SUBMIT_RETRY_MAX_ATTEMPTS", "3");
+    config.setProperty("SUBMIT_RETRY_BACKOFF_MS", "1");
+    config.setProperty("SUBMIT_REQUEST_TIMEOUT_MS", "300");
+
+    // The server takes the whole item but does not answer in time
+    server.setResponder(
+        xml -> {
+          try {
+            Thread.sleep(1000);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+
+          return FakeLogbookServer.ok(7);
+        });
+
+    LogEntry entry = new LogEntry("Entry 1", "TLOG");
+
+    try {
+      entry.submitNow();
+      fail("Expected LogIOException");
+    } catch (LogIOException e) {
+      // Expected
+    }
+
+    assertEquals(1, entry.getFailedAttempts().size());
+  }
+}
@@ -0,0 +1,167 @@
+package org.jlab.jlog;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.jlab.jlog.exception.LogRuntimeException;
+import org.jlab.jlog.exception.SubmissionRejectedException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Outbox JUnit tests.
+ *
+ * @author ryans
+ */
+public class OutboxUnitTest {
+
+  private static final long WAIT_SECONDS = 10;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private Properties saved;
+  private Properties config;
+  private File outboxDir;
+  private FakeLogbookServer server;
+
+  public OutboxUnitTest() {}
+
+  @BeforeClass
+  public static void setUpClass() {}
+
+  @AfterClass
+  public static void tearDownClass() {}
+
+  @Before
+  public void setUp() throws Exception {
+    saved = Library.getConfiguration();
+    config = new Properties(saved);
+    Library.setConfiguration(config);
+
+    config.setProperty("SUBMIT_RETRY_MAX_ATTEMPTS", "1");
+
+    outboxDir = folder.newFolder("outbox");
+    config.setProperty("OUTBOX_PATH", outboxDir.getPath());
+
+    server = new FakeLogbookServer();
+    server.configure(config);
+  }
+
+  @After
+  public void tearDown() {
+    Library.shutdown();
+    server.close();
+    Library.setConfiguration(saved);
+  }
+
+  @Test
+  public void testSubmitCompletes() throws Exception {
+    CompletableFuture<Long> ticket = new LogEntry("Testing 123", "TLOG").submitWriteBehind();
+
+    assertTrue(ticket.get(WAIT_SECONDS, TimeUnit.SECONDS) > 0);
+    assertEquals(1, server.getRequests().size());
+    assertEquals(0, listOutbox().length);
+  }
+
+  @Test
+  public void testRejectedCompletesExceptionally() throws Exception {
+    server.setResponder(request -> FakeLogbookServer.fail("Bad title"));
+
+    CompletableFuture<Long> ticket = new LogEntry("Testing 123", "TLOG").submitWriteBehind();
+
+    try {
+      ticket.get(WAIT_SECONDS, TimeUnit.SECONDS);
+      fail("Expected ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof SubmissionRejectedException);
+    }
+
+    assertEquals(0, listOutbox().length);
+    assertEquals(1, new File(outboxDir, ".failed").listFiles().length);
+  }
+
+  @Test
+  public void testUnavailableStaysPending() throws Exception {
+    server.setStatus(503);
+
+    CompletableFuture<Long> ticket = new LogEntry("Testing 123", "TLOG").submitWriteBehind();
+
+    waitFor(() -> !server.getRequests().isEmpty() && listOutbox().length == 1);
+
+    assertFalse(ticket.isDone());
+    assertFalse(new File(outboxDir, ".failed").exists());
+  }
+
+  @Test
+  public void testRejectedStaysPendingUntilMovedToFailed() throws Exception {
+    server.setResponder(request -> FakeLogbookServer.fail("Bad title"));
+
+    // A file in the way of the failed directory, so the rejected item is returned to the outbox
+    File blocker = new File(outboxDir, ".failed");
+    assertTrue(blocker.createNewFile());
+
+    CompletableFuture<Long> ticket = new LogEntry("Testing 1", "TLOG").submitWriteBehind();
+
+    waitFor(() -> !server.getRequests().isEmpty() && listOutbox().length == 1);
+    Thread.sleep(100);
+
+    assertFalse(ticket.isDone());
+
+    // The next item wakes the sender, which now moves both to the failed directory
+    assertTrue(blocker.delete());
+    new LogEntry("Testing 2", "TLOG").submitWriteBehind();
+
+    try {
+      ticket.get(WAIT_SECONDS, TimeUnit.SECONDS);
+      fail("Expected ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof SubmissionRejectedException);
+    }
+  }
+
+  @Test
+  public void testLeftoverSentOnStart() throws Exception {
+    LogEntry entry = new LogEntry("Testing 123", "TLOG");
+    entry.queue(new File(outboxDir, entry.generateXMLFilename()).getAbsolutePath());
+
+    Outbox outbox = new Outbox(outboxDir.getPath());
+
+    try {
+      waitFor(() -> !server.getRequests().isEmpty());
+    } finally {
+      outbox.close();
+    }
+
+    assertEquals(1, server.getRequests().size());
+  }
+
+  @Test(expected = LogRuntimeException.class)
+  public void testPathRequired() throws Exception {
+    config.setProperty("OUTBOX_PATH", "");
+
+    new LogEntry("Testing 123", "TLOG").submitWriteBehind();
+  }
+
+  private File[] listOutbox() {
+    return outboxDir.listFiles((dir, name) -> name.endsWith(".xml"));
+  }
+
+  private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT_SECONDS);
+
+    while (!condition.getAsBoolean()) {
+      assertTrue("Timed out waiting", System.nanoTime() < deadline);
+      Thread.sleep(10);
+    }
+  }
+}
@@ -0,0 +1,247 @@
+package org.jlab.jlog;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Properties;
+import org.jlab.jlog.exception.QueueFullException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * QueueCapacity JUnit tests.
+ *
+ * @author ryans
+ */
+public class QueueCapacityUnitTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private Properties saved;
+  private Properties config;
+  private File queueDir;
+
+  public QueueCapacityUnitTest() {}
+
+  @BeforeClass
+  public static void setUpClass() {}
+
+  @AfterClass
+  public static void tearDownClass() {}
+
+  @Before
+  public void setUp() throws Exception {
+    saved = Library.getConfiguration();
+    config = new Properties(saved);
+    Library.setConfiguration(config);
+
+    queueDir = folder.newFolder("queue");
+    config.setProperty("QUEUE_PATH", queueDir.getPath());
+    config.setProperty("QUEUE_MAX_ITEMS", "2");
+  }
+
+  @After
+  public void tearDown() {
+    Library.shutdown();
+    Library.setConfiguration(saved);
+  }
+
+  @Test
+  public void testNoLimit() throws Exception {
+    config.setProperty("QUEUE_MAX_ITEMS", "0");
+
+    for (int i = 0; i < 5; i++) {
+      queue(new LogEntry("Testing " + i, "TLOG"));
+    }
+
+    assertEquals(5, Library.getQueueDepth());
+  }
+
+  @Test
+  public void testReject() throws Exception {
+    config.setProperty("QUEUE_OVERFLOW_POLICY", "REJECT");
+    String first = queue(new LogEntry("Testing 1", "TLOG"));
+    String second = queue(new LogEntry("Testing 2", "TLOG"));
+
+    try {
+      queue(new LogEntry("Testing 3", "TLOG"));
+      fail("Expected QueueFullException");
+    } catch (QueueFullException e) {
+      // Expected
+    }
+
+    assertQueued(first, second);
+  }
+
+  @Test
+  public void testBlockTimesOut() throws Exception {
+    config.setProperty("QUEUE_OVERFLOW_POLICY", "BLOCK");
+    config.setProperty("QUEUE_BLOCK_TIMEOUT_MS", "300");
+    queue(new LogEntry("Testing 1", "TLOG"));
+    queue(new LogEntry("Testing 2", "TLOG"));
+
+    long start = System.nanoTime();
+
+    try {
+      queue(new LogEntry("Testing 3", "TLOG"));
+      fail("Expected QueueFullException");
+    } catch (QueueFullException e) {
+      // Expected
+    }
+
+    assertTrue(System.nanoTime() - start >= 250_000_000L);
+    assertEquals(2, Library.getQueueDepth());
+  }
+
+  @Test
+  public void testBlockWaitsForRoom() throws Exception {
+    config.setProperty("QUEUE_OVERFLOW_POLICY", "BLOCK");
+    config.setProperty("QUEUE_BLOCK_TIMEOUT_MS", "10000");
+    String first = queue(new LogEntry("Testing 1", "TLOG"));
+    String second = queue(new LogEntry("Testing 2", "TLOG"));
+
+    // Stands in for the server consuming the oldest item
+    Thread consumer =
+        new Thread(
+            () -> {
+              try {
+                Thread.sleep(200);
+              } catch (InterruptedException e) {
+                return;
+              }
+
+              new File(queueDir, first).delete();
+            });
+    consumer.start();
+
+    String third = queue(new LogEntry("Testing 3", "TLOG"));
+    consumer.join();
+
+    assertQueued(second, third);
+  }
+
+  @Test
+  public void testDropOldest() throws Exception {
+    config.setProperty("QUEUE_OVERFLOW_POLICY", "DROP_OLDEST");
+    queue(new LogEntry("Testing 1", "TLOG"));
+    String second = queue(new LogEntry("Testing 2", "TLOG"));
+    String third = queue(new LogEntry("Testing 3", "TLOG"));
+
+    assertQueued(second, third);
+  }
+
+  @Test
+  public void testEvictionCancelled() throws Exception {
+    config.setProperty("QUEUE_OVERFLOW_POLICY", "DROP_OLDEST");
+    String first = queue(new LogEntry("Testing 1", "TLOG"));
+    String second = queue(new LogEntry("Testing 2", "TLOG"));
+
+    LogEntry third = new LogEntry("Testing 3", "TLOG");
+    QueueCapacity.Eviction eviction =
+        QueueCapacity.fromConfiguration().ensureRoom(queueDir, third, third.generateXMLFilename());
+
+    // Leased, so neither counted nor visible to drainers, until the eviction is resolved
+    assertEquals(1, Library.getQueueDepth());
+    assertFalse(new File(queueDir, first).exists());
+
+    eviction.cancel();
+
+    assertQueued(first, second);
+  }
+
+  @Test
+  public void testCoalesce() throws Exception {
+    config.setProperty("QUEUE_OVERFLOW_POLICY", "COALESCE");
+    queue(revision(1234, "Testing 1"));
+    String other = queue(new LogEntry("Testing 2", "TLOG"));
+    String latest = queue(revision(1234, "Testing 3"));
+
+    assertQueued(other, latest);
+  }
+
+  @Test
+  public void testCoalesceWithoutRevisionRejects() throws Exception {
+    config.setProperty("QUEUE_OVERFLOW_POLICY", "COALESCE");
+    String first = queue(revision(1234, "Testing 1"));
+    String second = queue(new LogEntry("Testing 2", "TLOG"));
+
+    try {
+      queue(revision(5678, "Testing 3"));
+      fail("Expected QueueFullException");
+    } catch (QueueFullException e) {
+      // Expected
+    }
+
+    assertQueued(first, second);
+  }
+
+  @Test
+  public void testMeasurementCached() throws Exception {
+    config.setProperty("QUEUE_MAX_ITEMS", "0");
+    config.setProperty("QUEUE_MEASURE_TTL_MS", "60000");
+    String first = queue(new LogEntry("Testing 1", "TLOG"));
+
+    assertEquals(1, Library.getQueueDepth());
+
+    // Stands in for another process consuming the item, which is not seen until measured again
+    assertTrue(new File(queueDir, first).delete());
+    queue(new LogEntry("Testing 2", "TLOG"));
+
+    assertEquals(2, Library.getQueueDepth());
+
+    QueueCapacity.forget(queueDir);
+
+    assertEquals(1, Library.getQueueDepth());
+  }
+
+  @Test
+  public void testAbandonedEvictionRecovered() throws Exception {
+    config.setProperty("QUEUE_MAX_ITEMS", "0");
+    String first = queue(new LogEntry("Testing 1", "TLOG"));
+    String second = queue(new LogEntry("Testing 2", "TLOG"));
+
+    // Leased by evictions, one of a process which died long ago
+    File abandoned = new File(queueDir, "." + first + ".evicting");
+    File current = new File(queueDir, "." + second + ".evicting");
+    assertTrue(new File(queueDir, first).renameTo(abandoned));
+    assertTrue(new File(queueDir, second).renameTo(current));
+    assertTrue(
+        abandoned.setLastModified(
+            System.currentTimeMillis() - QueueCapacity.EVICTION_TIMEOUT_MS - 1000));
+
+    assertEquals(1, QueueCapacity.measure(queueDir).getItems());
+    assertTrue(new File(queueDir, first).exists());
+    assertTrue(current.exists());
+  }
+
+  private String queue(LogEntry entry) throws Exception {
+    String filename = entry.generateXMLFilename();
+
+    entry.queueToQueuePath(filename);
+
+    return filename;
+  }
+
+  private static LogEntry revision(long lognumber, String title) {
+    LogEntry entry = new LogEntry(title, "TLOG");
+    entry.setLogNumber(lognumber);
+    return entry;
+  }
+
+  private void assertQueued(String... expected) {
+    String[] names = queueDir.list((dir, name) -> name.endsWith(".xml") && !name.startsWith("."));
+    Arrays.sort(names);
+    Arrays.sort(expected);
+
+    assertArrayEquals(expected, names);
+
+    // No leased file is left behind
+    assertEquals(0, queueDir.list((dir, name) -> name.startsWith(".")).length);
+  }
+}
@@ -0,0 +1,210 @@
+package org.jlab.jlog;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Properties;
+import org.jlab.jlog.exception.LogIOException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * QueueCoalescer JUnit tests.
+ *
+ * @author ryans
+ */
+public class QueueCoalescerUnitTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private Properties saved;
+  private Properties config;
+  private File queueDir;
+
+  public QueueCoalescerUnitTest() {}
+
+  @BeforeClass
+  public static void setUpClass() {}
+
+  @AfterClass
+  public static void tearDownClass() {}
+
+  @Before
+  public void setUp() throws Exception {
+    saved = Library.getConfiguration();
+    config = new Properties(saved);
+    Library.setConfiguration(config);
+
+    config.setProperty("SUBMIT_RETRY_MAX_ATTEMPTS", "1");
+    config.setProperty("QUEUE_COALESCE", "true");
+
+    queueDir = folder.newFolder("queue");
+    config.setProperty("QUEUE_PATH", queueDir.getPath());
+  }
+
+  @After
+  public void tearDown() {
+    Library.shutdown();
+    Library.setConfiguration(saved);
+  }
+
+  @Test
+  public void testQueueKeepsNewestRevision() throws Exception {
+    queue(revision(1234, "Testing 1"), "0001.xml");
+    queue(new LogEntry("Testing 2", "TLOG"), "0002.xml");
+    queue(revision(1234, "Testing 3"), "0003.xml");
+
+    assertQueued("0002.xml", "0003.xml");
+  }
+
+  @Test
+  public void testNewerRevisionKept() throws Exception {
+    queue(revision(1234, "Testing 2"), "0002.xml");
+
+    // Queued late by a slower client, so it must not replace the newer revision
+    queue(revision(1234, "Testing 1"), "0001.xml");
+
+    assertQueued("0001.xml", "0002.xml");
+  }
+
+  @Test
+  public void testFailedWriteKeepsRevision() throws Exception {
+    queue(revision(1234, "Testing 1"), "0001.xml");
+
+    // A non-empty directory in the way of the new queue file makes the write fail
+    File blocker = new File(queueDir, "0002.xml");
+    assertTrue(new File(blocker, "blocker").mkdirs());
+
+    try {
+      queue(revision(1234, "Testing 2"), "0002.xml");
+      fail("Expected LogIOException");
+    } catch (LogIOException e) {
+      // Expected
+    }
+
+    assertTrue(new File(queueDir, "0001.xml").exists());
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    config.setProperty("QUEUE_COALESCE", "false");
+    queue(revision(1234, "Testing 1"), "0001.xml");
+    queue(revision(1234, "Testing 2"), "0002.xml");
+
+    assertQueued("0001.xml", "0002.xml");
+  }
+
+  @Test
+  public void testCoalesce() throws Exception {
+    List<LogItem> items = new ArrayList<>();
+    items.add(revision(1234, "Testing 1"));
+    items.add(new Comment(1234, "First"));
+    items.add(new LogEntry("Testing 2", "TLOG"));
+    items.add(revision(1234, "Testing 3"));
+    items.add(new Comment(1234, "Second"));
+
+    List<QueueCoalescer.Group> groups = QueueCoalescer.coalesce(items);
+
+    assertEquals(3, groups.size());
+
+    assertSame(items.get(3), groups.get(0).getItem());
+    assertEquals(Arrays.asList(0, 3), groups.get(0).getSources());
+
+    Comment merged = (Comment) groups.get(1).getItem();
+    assertEquals("First\n\nSecond", merged.getBody().getContent());
+    assertEquals(Arrays.asList(1, 4), groups.get(1).getSources());
+
+    assertSame(items.get(2), groups.get(2).getItem());
+    assertEquals(Arrays.asList(2), groups.get(2).getSources());
+  }
+
+  @Test
+  public void testMergeKeepsLatestCreated() throws Exception {
+    Comment first = new Comment(1234, "First");
+    first.setCreated(new GregorianCalendar(2020, Calendar.JANUARY, 1));
+    Comment second = new Comment(1234, "Second");
+    second.setCreated(new GregorianCalendar(2020, Calendar.JANUARY, 2));
+
+    List<QueueCoalescer.Group> groups = QueueCoalescer.coalesce(Arrays.asList(first, second));
+
+    assertEquals(1, groups.size());
+    assertEquals(
+        second.getCreated().getTimeInMillis(),
+        groups.get(0).getItem().getCreated().getTimeInMillis());
+  }
+
+  @Test
+  public void testGroupRelated() throws Exception {
+    File first = write(revision(1234, "Testing 1"), "0001.xml");
+    File other = write(new LogEntry("Testing 2", "TLOG"), "0002.xml");
+    File comment = write(new Comment(1234, "Testing 3"), "0003.xml");
+
+    List<List<File>> units = QueueCoalescer.groupRelated(new File[] {first, other, comment});
+
+    assertEquals(2, units.size());
+    assertEquals(Arrays.asList(first, comment), units.get(0));
+    assertEquals(Arrays.asList(other), units.get(1));
+  }
+
+  @Test
+  public void testDrainSubmitsNewestRevision() throws Exception {
+    // Written directly, as revisions queued by clients without coalescing would be
+    write(revision(1234, "Testing 1"), "0001.xml");
+    write(revision(1234, "Testing 2"), "0002.xml");
+    write(revision(1234, "Testing 3"), "0003.xml");
+
+    QueueDrainer drainer = new QueueDrainer(queueDir.getPath(), 2, 1000, null, 60000);
+
+    try (FakeLogbookServer server = new FakeLogbookServer()) {
+      server.configure(config);
+
+      List<SubmitResult> results = drainer.drain();
+
+      // A result for every queued file, from a single submission
+      assertEquals(3, results.size());
+
+      for (SubmitResult result : results) {
+        assertEquals(SubmitResult.Status.SUBMITTED, result.getStatus());
+      }
+
+      assertEquals(1, server.getRequests().size());
+      assertTrue(server.getRequests().get(0).contains("Testing 3"));
+    }
+
+    assertQueued();
+  }
+
+  private static void queue(LogItem item, String filename) throws Exception {
+    item.queueToQueuePath(filename);
+  }
+
+  private File write(LogItem item, String filename) throws Exception {
+    File file = new File(queueDir, filename);
+    item.queue(file.getAbsolutePath());
+    return file;
+  }
+
+  private static LogEntry revision(long lognumber, String title) {
+    LogEntry entry = new LogEntry(title, "TLOG");
+    entry.setLogNumber(lognumber);
+    return entry;
+  }
+
+  private void assertQueued(String... expected) {
+    String[] names = queueDir.list((dir, name) -> name.endsWith(".xml") && !name.startsWith("."));
+    Arrays.sort(names);
+    Arrays.sort(expected);
+
+    assertArrayEquals(expected, names);
+  }
+}
@@ -0,0 +1,378 @@
+package org.jlab.jlog;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import org.jlab.jlog.exception.LogCertificateException;
+import org.jlab.jlog.exception.SubmissionRejectedException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * QueueDrainer JUnit tests.
+ *
+ * @author ryans
+ */
+public class QueueDrainerUnitTest {
+
+  private static final long LEASE_TIMEOUT_MS = 60000;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private Properties saved;
+  private Properties config;
+  private File queueDir;
+  private QueueDrainer drainer;
+  private List<SubmitResult> reported;
+
+  public QueueDrainerUnitTest() {}
+
+  @BeforeClass
+  public static void setUpClass() {}
+
+  @AfterClass
+  public static void tearDownClass() {}
+
+  @Before
+  public void setUp() throws Exception {
+    saved = Library.getConfiguration();
+    config = new Properties(saved);
+    Library.setConfiguration(config);
+
+    config.setProperty("SUBMIT_RETRY_MAX_ATTEMPTS", "1");
+
+    queueDir = folder.newFolder("queue");
+    drainer = new QueueDrainer(queueDir.getPath(), 2, 1000, null, LEASE_TIMEOUT_MS);
+    reported = new ArrayList<>();
+    drainer.setResultListener((name, result) -> reported.add(result));
+  }
+
+  @After
+  public void tearDown() {
+    Library.shutdown();
+    Library.setConfiguration(saved);
+  }
+
+  @Test
+  public void testDrainSubmitsAndRemoves() throws Exception {
+    queue("Testing 1");
+    queue("Testing 2");
+
+    try (FakeLogbookServer server = new FakeLogbookServer()) {
+      server.configure(config);
+
+      List<SubmitResult> results = drainer.drain();
+
+      assertEquals(2, results.size());
+
+      for (SubmitResult result : results) {
+        assertEquals(SubmitResult.Status.SUBMITTED, result.getStatus());
+      }
+
+      assertEquals(2, server.getRequests().size());
+      assertEquals(2, reported.size());
+    }
+
+    assertEquals(0, listQueue().length);
+    assertLeasesReleased();
+  }
+
+  @Test
+  public void testUnsubmittedReturnedToQueue() throws Exception {
+    File file = queue("Testing 123");
+
+    try (FakeLogbookServer server = new FakeLogbookServer()) {
+      server.configure(config);
+      server.setStatus(503);
+
+      List<SubmitResult> results = drainer.drain();
+
+      assertEquals(1, results.size());
+      assertEquals(SubmitResult.Status.FAILED, results.get(0).getStatus());
+    }
+
+    assertTrue(file.exists());
+    assertLeasesReleased();
+  }
+
+  @Test
+  public void testLeasedFileSkipped() throws Exception {
+    File file = queue("Testing 123");
+    File leased = leaseElsewhere(file);
+
+    try (FakeLogbookServer server = new FakeLogbookServer()) {
+      server.configure(config);
+
+      assertTrue(drainer.drain().isEmpty());
+      assertTrue(server.getRequests().isEmpty());
+      assertTrue(leased.exists());
+    }
+  }
+
+  @Test
+  public void testExpiredLeaseRecovered() throws Exception {
+    File file = queue("Testing 123");
+    File leased = leaseElsewhere(file);
+
+    assertTrue(leased.setLastModified(System.currentTimeMillis() - LEASE_TIMEOUT_MS - 1000));
+
+    try (FakeLogbookServer server = new FakeLogbookServer()) {
+      server.configure(config);
+
+      List<SubmitResult> results = drainer.drain();
+
+      assertEquals(1, results.size());
+      assertEquals(SubmitResult.Status.SUBMITTED, results.get(0).getStatus());
+    }
+
+    assertFalse(leased.exists());
+    assertFalse(file.exists());
+  }
+
+  @Test
+  public void testLeaseRenewedWhileSubmitting() throws Exception {
+    queue("Testing 123");
+    drainer = new QueueDrainer(queueDir.getPath(), 2, 1000, null, 300);
+    QueueDrainer other = new QueueDrainer(queueDir.getPath(), 2, 1000, null, 300);
+
+    try (FakeLogbookServer server = new FakeLogbookServer()) {
+      server.configure(config);
+      server.setResponder(
+          request -> {
+            sleep(1000);
+            return FakeLogbookServer.ok(1);
+          });
+
+      // Scans while the submission takes longer than the lease timeout
+      CompletableFuture<List<SubmitResult>> stolen =
+          CompletableFuture.supplyAsync(
+              () -> {
+                sleep(700);
+                return other.drain();
+              });
+
+      assertEquals(1, drainer.drain().size());
+      assertTrue(stolen.get().isEmpty());
+      assertEquals(1, server.getRequests().size());
+    }
+
+    assertEquals(0, listQueue().length);
+  }
+
+  @Test
+  public void testRejectedMovedToFailed() throws Exception {
+    File file = queue("Testing 123");
+
+    try (FakeLogbookServer server = new FakeLogbookServer()) {
+      server.configure(config);
+      server.setResponder(request -> FakeLogbookServer.fail("Bad title"));
+
+      drainer.drain();
+    }
+
+    assertFalse(file.exists());
+    assertTrue(new File(new File(queueDir, ".failed"), file.getName()).exists());
+    assertEquals(1, reported.size());
+    assertTrue(reported.get(0).getException() instanceof SubmissionRejectedException);
+    assertLeasesReleased();
+  }
+
+  @Test
+  public void testRejectedRetriedIfTransient() throws Exception {
+    config.setProperty("SUBMIT_RETRY_ON", SubmissionRejectedException.class.getName());
+    File file = queue("Testing 123");
+
+    try (FakeLogbookServer server = new FakeLogbookServer()) {
+      server.configure(config);
+      server.setResponder(request -> FakeLogbookServer.fail("Try later"));
+
+      drainer.drain();
+    }
+
+    assertTrue(file.exists());
+  }
+
+  @Test
+  public void testUnparsableMovedToFailed() throws Exception {
+    File file = new File(queueDir, "2020_01_01_000000_1_host_000001.xml");
+    Files.write(file.toPath(), "<Logentry>".getBytes(StandardCharsets.UTF_8));
+
+    File failedDir = folder.newFolder("failed");
+    drainer =
+        new QueueDrainer(queueDir.getPath(), 2, 1000, null, LEASE_TIMEOUT_MS, failedDir.getPath());
+    drainer.setResultListener((name, result) -> reported.add(result));
+
+    assertTrue(drainer.drain().isEmpty());
+
+    assertFalse(file.exists());
+    assertTrue(new File(failedDir, file.getName()).exists());
+    assertEquals(1, reported.size());
+    assertNull(reported.get(0).getItem());
+    assertEquals(SubmitResult.Status.FAILED, reported.get(0).getStatus());
+  }
+
+  @Test
+  public void testLocalFailureLeftInQueue() throws Exception {
+    File file = queue("Testing 123");
+
+    config.setProperty("SUBMIT_URL", "http://localhost:1/incoming");
+    config.setProperty(
+        "CLIENT_CERTIFICATE_PATH", new File(folder.getRoot(), "missing.pem").getAbsolutePath());
+
+    List<SubmitResult> results = drainer.drain();
+
+    assertEquals(1, results.size());
+    assertTrue(results.get(0).getException() instanceof LogCertificateException);
+    assertTrue(file.exists());
+    assertFalse(new File(queueDir, ".failed").exists());
+  }
+
+  @Test
+  public void testRevisionsSubmittedInOrder() throws Exception {
+    queue(revision(1234, "Testing 1"), "2020_01_01_000000_1_host_000001.xml");
+    queue(new LogEntry("Testing 2", "TLOG"), "2020_01_01_000000_1_host_000002.xml");
+    queue(revision(1234, "Testing 3"), "2020_01_01_000000_1_host_000003.xml");
+
+    try (FakeLogbookServer server = new FakeLogbookServer()) {
+      server.configure(config);
+
+      assertEquals(3, drainer.drain().size());
+
+      List<String> requests = server.getRequests();
+      assertEquals(3, requests.size());
+      assertTrue(indexOf(requests, "Testing 1") < indexOf(requests, "Testing 3"));
+    }
+
+    assertEquals(0, listQueue().length);
+  }
+
+  @Test
+  public void testNewerRevisionWaitsForOlder() throws Exception {
+    config.setProperty("SUBMIT_RETRY_ON", SubmissionRejectedException.class.getName());
+    File older = queue(revision(1234, "Testing 1"), "2020_01_01_000000_1_host_000001.xml");
+    File newer = queue(revision(1234, "Testing 2"), "2020_01_01_000000_1_host_000002.xml");
+
+    try (FakeLogbookServer server = new FakeLogbookServer()) {
+      server.configure(config);
+      server.setResponder(
+          request ->
+              request.contains("Testing 1")
+                  ? FakeLogbookServer.fail("Try later")
+                  : FakeLogbookServer.ok(1234));
+
+      List<SubmitResult> results = drainer.drain();
+
+      assertEquals(2, results.size());
+      assertEquals(SubmitResult.Status.FAILED, results.get(1).getStatus());
+      assertEquals(1, server.getRequests().size());
+    }
+
+    assertTrue(older.exists());
+    assertTrue(newer.exists());
+    assertLeasesReleased();
+  }
+
+  @Test
+  public void testSpilledAttachmentDeleted() throws Exception {
+    // Large enough for its base64 data to be spilled to a temporary file when read
+    File data = folder.newFile("data.bin");
+    Files.write(data.toPath(), new byte[200 * 1024]);
+
+    LogEntry entry = new LogEntry("Testing 1", "TLOG");
+    entry.addAttachment(data.getAbsolutePath());
+    queue(entry, entry.generateXMLFilename());
+
+    List<String> before = listSpillFiles();
+
+    try (FakeLogbookServer server = new FakeLogbookServer()) {
+      server.configure(config);
+
+      assertEquals(SubmitResult.Status.SUBMITTED, drainer.drain().get(0).getStatus());
+    }
+
+    assertEquals(before, listSpillFiles());
+  }
+
+  private File queue(LogEntry entry, String name) throws Exception {
+    File file = new File(queueDir, name);
+
+    entry.queue(file.getAbsolutePath());
+
+    return file;
+  }
+
+  private static LogEntry revision(long lognumber, String title) {
+    LogEntry entry = new LogEntry(title, "TLOG");
+    entry.setLogNumber(lognumber);
+    return entry;
+  }
+
+  private static int indexOf(List<String> requests, String title) {
+    for (int i = 0; i < requests.size(); i++) {
+      if (requests.get(i).contains(title)) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private File queue(String title) throws Exception {
+    LogEntry entry = new LogEntry(title, "TLOG");
+    File file = new File(queueDir, entry.generateXMLFilename());
+
+    entry.queue(file.getAbsolutePath());
+
+    return file;
+  }
+
+  private static List<String> listSpillFiles() {
+    String[] names =
+        new File(System.getProperty("java.io.tmpdir"))
+            .list((dir, name) -> name.startsWith("jlog") && name.endsWith(".bin"));
+    List<String> list = new ArrayList<>(Arrays.asList(names));
+    Collections.sort(list);
+    return list;
+  }
+
+  private File[] listQueue() {
+    return queueDir.listFiles((dir, name) -> name.endsWith(".xml"));
+  }
+
+  private File leaseElsewhere(File file) throws Exception {
+    File ownerDir = new File(new File(queueDir, ".processing"), "otherhost_1_1");
+    File leased = new File(ownerDir, file.getName());
+
+    assertTrue(ownerDir.mkdirs());
+    Files.move(file.toPath(), leased.toPath());
+
+    return leased;
+  }
+
+  private void assertLeasesReleased() {
+    File[] ownerDirs = new File(queueDir, ".processing").listFiles();
+
+    assertTrue(ownerDirs == null || ownerDirs.length == 0);
+  }
+}
@@ -0,0 +1,265 @@
+package org.jlab.jlog;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.CRC32;
+import org.jlab.jlog.exception.LogRuntimeException;
+import org.jlab.jlog.exception.SubmissionRejectedException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * QueueJournal JUnit tests.
+ *
+ * @author ryans
+ */
+public class QueueJournalUnitTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private Properties saved;
+  private Properties config;
+  private File queueDir;
+
+  public QueueJournalUnitTest() {}
+
+  @BeforeClass
+  public static void setUpClass() {}
+
+  @AfterClass
+  public static void tearDownClass() {}
+
+  @Before
+  public void setUp() throws Exception {
+    saved = Library.getConfiguration();
+    config = new Properties(saved);
+    Library.setConfiguration(config);
+
+    queueDir = folder.newFolder("queue");
+  }
+
+  @After
+  public void tearDown() {
+    Library.shutdown();
+    Library.setConfiguration(saved);
+  }
+
+  @Test
+  public void testAppendAndReplay() throws Exception {
+    File segment = appendAndClose("Testing 1", "Testing 2", "Testing 3");
+
+    assertEquals(3, QueueJournal.countRecords(segment));
+    assertTitles(QueueJournal.readSegment(segment), "Testing 1", "Testing 2", "Testing 3");
+  }
+
+  @Test
+  public void testOpenSegmentNotListed() throws Exception {
+    QueueJournal.forDirectory(queueDir.getPath()).append(new LogEntry("Testing 123", "TLOG"));
+
+    assertEquals(0, QueueJournal.listSegments(queueDir).length);
+    assertEquals(1, QueueJournal.listOpenSegments(queueDir).length);
+
+    QueueJournal.closeAll();
+
+    assertEquals(1, QueueJournal.listSegments(queueDir).length);
+    assertEquals(0, QueueJournal.listOpenSegments(queueDir).length);
+  }
+
+  @Test
+  public void testTornLengthEndsReplay() throws Exception {
+    File segment = appendAndClose("Testing 1", "Testing 2");
+
+    // A record whose length runs past the end of the segment
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      file.seek(file.length());
+      file.writeInt(1000);
+      file.write(new byte[] {'<', 'L', 'o', 'g', 0, 0, 0, 0});
+    }
+
+    assertEquals(2, QueueJournal.countRecords(segment));
+    assertTitles(QueueJournal.readSegment(segment), "Testing 1", "Testing 2");
+  }
+
+  @Test
+  public void testZeroLengthEndsReplay() throws Exception {
+    File segment = appendAndClose("Testing 1");
+
+    // A record whose length was never patched in
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      file.seek(file.length());
+      file.writeInt(0);
+      file.write(new byte[] {'<', 'L', 'o', 'g', 0, 0, 0, 0});
+    }
+
+    assertTitles(QueueJournal.readSegment(segment), "Testing 1");
+  }
+
+  @Test
+  public void testTornChecksumEndsReplay() throws Exception {
+    File segment = appendAndClose("Testing 1", "Testing 2");
+
+    // Corrupt the checksum of the last record
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      file.seek(file.length() - 1);
+      int last = file.read();
+      file.seek(file.length() - 1);
+      file.write(last ^ 0xFF);
+    }
+
+    assertTitles(QueueJournal.readSegment(segment), "Testing 1");
+  }
+
+  @Test
+  public void testAbandonedSegmentClosed() throws Exception {
+    QueueJournal.forDirectory(queueDir.getPath()).append(new LogEntry("Testing 123", "TLOG"));
+    File openFile = QueueJournal.listOpenSegments(queueDir)[0];
+
+    QueueJournal.closeAbandonedSegments(queueDir, 60000);
+    assertTrue(openFile.exists());
+
+    assertTrue(openFile.setLastModified(System.currentTimeMillis() - 120000));
+    QueueJournal.closeAbandonedSegments(queueDir, 60000);
+
+    assertFalse(openFile.exists());
+    assertTitles(QueueJournal.readSegment(QueueJournal.listSegments(queueDir)[0]), "Testing 123");
+  }
+
+  @Test(expected = LogRuntimeException.class)
+  public void testRollNotBeforeLeaseTimeout() throws Exception {
+    config.setProperty("QUEUE_JOURNAL_ROLL_SECONDS", "600");
+    config.setProperty("QUEUE_LEASE_TIMEOUT_SECONDS", "600");
+
+    QueueJournal.forDirectory(queueDir.getPath());
+  }
+
+  @Test
+  public void testDrainRequeuesUnsubmitted() throws Exception {
+    config.setProperty("SUBMIT_RETRY_MAX_ATTEMPTS", "1");
+    config.setProperty("SUBMIT_RETRY_ON", SubmissionRejectedException.class.getName());
+
+    File segment = appendAndClose("Testing 1", "Later", "Testing 3");
+
+    try (FakeLogbookServer server = new FakeLogbookServer()) {
+      server.configure(config);
+      server.setResponder(
+          request ->
+              request.contains("Later")
+                  ? FakeLogbookServer.fail("Try again later")
+                  : FakeLogbookServer.ok(1));
+
+      List<SubmitResult> results =
+          new QueueDrainer(queueDir.getPath(), 2, 1000, null, 60000).drain();
+
+      assertEquals(3, results.size());
+    }
+
+    // The replayed segment is gone and only the unsubmitted item is left in the queue
+    assertFalse(segment.exists());
+
+    QueueJournal.closeAll();
+    File[] segments = QueueJournal.listSegments(queueDir);
+
+    assertEquals(1, segments.length);
+    assertTitles(QueueJournal.readSegment(segments[0]), "Later");
+  }
+
+  @Test
+  public void testDamagedRecordKeepsSegment() throws Exception {
+    config.setProperty("SUBMIT_RETRY_MAX_ATTEMPTS", "1");
+    File segment = appendAndClose("Testing 1", "Testing 2", "Testing 3");
+
+    // Corrupt the checksum of the second record, which is followed by the third
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      long second = 4 + file.readInt() + 4;
+      file.seek(second);
+      long checksum = second + 4 + file.readInt();
+      file.seek(checksum);
+      int first = file.read();
+      file.seek(checksum);
+      file.write(first ^ 0xFF);
+    }
+
+    QueueJournal.Replay replay = QueueJournal.replaySegment(segment);
+    assertTrue(replay.isDamaged());
+    assertTitles(replay.getItems(), "Testing 1");
+
+    try (FakeLogbookServer server = new FakeLogbookServer()) {
+      server.configure(config);
+
+      assertEquals(1, new QueueDrainer(queueDir.getPath(), 2, 1000, null, 60000).drain().size());
+      assertEquals(1, server.getRequests().size());
+    }
+
+    // Kept for recovery by hand, rather than deleted with the records after the damaged one
+    assertFalse(segment.exists());
+    assertTrue(new File(new File(queueDir, ".failed"), segment.getName()).exists());
+  }
+
+  @Test
+  public void testUnreadableRecordMovedToFailed() throws Exception {
+    config.setProperty("SUBMIT_RETRY_MAX_ATTEMPTS", "1");
+    File segment = appendAndClose("Testing 1");
+    byte[] xml = "<Logentry>".getBytes(StandardCharsets.UTF_8);
+    CRC32 crc = new CRC32();
+    crc.update(xml);
+
+    // An intact record which cannot be parsed
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      file.seek(file.length());
+      file.writeInt(xml.length);
+      file.write(xml);
+      file.writeInt((int) crc.getValue());
+    }
+
+    QueueJournal.Replay replay = QueueJournal.replaySegment(segment);
+    assertFalse(replay.isDamaged());
+    assertEquals(1, replay.getUnreadable().size());
+
+    try (FakeLogbookServer server = new FakeLogbookServer()) {
+      server.configure(config);
+
+      new QueueDrainer(queueDir.getPath(), 2, 1000, null, 60000).drain();
+
+      assertEquals(1, server.getRequests().size());
+    }
+
+    File failed = new File(new File(queueDir, ".failed"), segment.getName() + ".1.xml");
+
+    assertFalse(segment.exists());
+    assertArrayEquals(xml, Files.readAllBytes(failed.toPath()));
+  }
+
+  private File appendAndClose(String... titles) throws Exception {
+    QueueJournal journal = QueueJournal.forDirectory(queueDir.getPath());
+
+    for (String title : titles) {
+      journal.append(new LogEntry(title, "TLOG"));
+    }
+
+    QueueJournal.closeAll();
+
+    File[] segments = QueueJournal.listSegments(queueDir);
+    assertEquals(1, segments.length);
+
+    return segments[0];
+  }
+
+  private static void assertTitles(List<LogItem> items, String... titles) {
+    assertEquals(titles.length, items.size());
+
+    for (int i = 0; i < titles.length; i++) {
+      assertEquals(titles[i], ((LogEntry) items.get(i)).getTitle());
+    }
+  }
+}
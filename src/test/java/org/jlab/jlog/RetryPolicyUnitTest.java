@@ -0,0 +1,133 @@
+package org.jlab.jlog;
+
+import static org.junit.Assert.*;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Properties;
+import org.jlab.jlog.exception.LogCertificateException;
+import org.jlab.jlog.exception.LogIOException;
+import org.jlab.jlog.exception.LogRuntimeException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * RetryPolicy JUnit tests.
+ *
+ * @author ryans
+ */
+public class RetryPolicyUnitTest {
+
+  private Properties saved;
+  private Properties config;
+
+  public RetryPolicyUnitTest() {}
+
+  @BeforeClass
+  public static void setUpClass() {}
+
+  @AfterClass
+  public static void tearDownClass() {}
+
+  @Before
+  public void setUp() {
+    saved = Library.getConfiguration();
+    config = new Properties(saved);
+    Library.setConfiguration(config);
+
+    config.setProperty("SUBMIT_RETRY_MAX_ATTEMPTS", "3");
+    config.setProperty("SUBMIT_RETRY_BACKOFF_MS", "100");
+    config.setProperty("SUBMIT_RETRY_MAX_BACKOFF_MS", "1000");
+    config.setProperty("SUBMIT_RETRY_JITTER_PERCENT", "0");
+    config.setProperty("SUBMIT_RETRY_ON", "java.io.IOException");
+  }
+
+  @After
+  public void tearDown() {
+    Library.setConfiguration(saved);
+  }
+
+  @Test
+  public void testDelayWithoutJitter() {
+    RetryPolicy policy = RetryPolicy.fromConfiguration();
+
+    assertEquals(100, policy.getDelayMillis(1));
+    assertEquals(200, policy.getDelayMillis(2));
+    assertEquals(400, policy.getDelayMillis(3));
+    assertEquals(800, policy.getDelayMillis(4));
+    assertEquals(1000, policy.getDelayMillis(5));
+    assertEquals(1000, policy.getDelayMillis(50));
+  }
+
+  @Test
+  public void testDelayJitterBounds() {
+    config.setProperty("SUBMIT_RETRY_JITTER_PERCENT", "50");
+    RetryPolicy policy = RetryPolicy.fromConfiguration();
+
+    for (int i = 0; i < 1000; i++) {
+      long delay = policy.getDelayMillis(3);
+      assertTrue("delay " + delay, delay >= 200 && delay <= 400);
+
+      delay = policy.getDelayMillis(10);
+      assertTrue("delay " + delay, delay >= 500 && delay <= 1000);
+    }
+  }
+
+  @Test
+  public void testShouldRetry() {
+    RetryPolicy policy = RetryPolicy.fromConfiguration();
+    IOException refused = new ConnectException("Connection refused");
+
+    assertEquals(3, policy.getMaxAttempts());
+    assertTrue(policy.shouldRetry(1, refused));
+    assertTrue(policy.shouldRetry(2, refused));
+    assertFalse(policy.shouldRetry(3, refused));
+  }
+
+  @Test
+  public void testIsTransient() {
+    RetryPolicy policy = RetryPolicy.fromConfiguration();
+
+    assertTrue(policy.isTransient(new IOException("Reset")));
+    assertTrue(policy.isTransient(new LogIOException("Unable to submit", new IOException())));
+
+    // The server rejected the submission
+    assertFalse(policy.isTransient(new LogIOException("Submission Failed: bad title")));
+    assertFalse(policy.isTransient(new LogRuntimeException("Invalid property")));
+  }
+
+  @Test
+  public void testCertificateNotTransient() {
+    RetryPolicy policy = RetryPolicy.fromConfiguration();
+    LogCertificateException missing =
+        new LogCertificateException("Unable to read", new FileNotFoundException("cert.pem"));
+
+    assertFalse(policy.isTransient(missing));
+    assertFalse(policy.isTransient(new LogIOException("Unable to submit", missing)));
+  }
+
+  @Test
+  public void testRetryOn() {
+    config.setProperty("SUBMIT_RETRY_ON", "java.net.ConnectException");
+    RetryPolicy policy = RetryPolicy.fromConfiguration();
+
+    assertTrue(policy.isTransient(new ConnectException("Connection refused")));
+    assertFalse(policy.isTransient(new IOException("Reset")));
+  }
+
+  @Test(expected = LogRuntimeException.class)
+  public void testInvalidMaxAttempts() {
+    config.setProperty("SUBMIT_RETRY_MAX_ATTEMPTS", "0");
+    RetryPolicy.fromConfiguration();
+  }
+
+  @Test(expected = LogRuntimeException.class)
+  public void testInvalidRetryOn() {
+    config.setProperty("SUBMIT_RETRY_ON", "org.example.NoSuchException");
+    RetryPolicy.fromConfiguration();
+  }
+}
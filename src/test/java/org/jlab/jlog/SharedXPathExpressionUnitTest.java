@@ -0,0 +1,93 @@
+package org.jlab.jlog;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.xml.xpath.XPathConstants;
+import org.jlab.jlog.exception.LogRuntimeException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * SharedXPathExpression JUnit tests.
+ *
+ * @author ryans
+ */
+public class SharedXPathExpressionUnitTest {
+
+  private static final int THREADS = 8;
+  private static final int ITERATIONS = 500;
+
+  private ExecutorService executor;
+
+  public SharedXPathExpressionUnitTest() {}
+
+  @BeforeClass
+  public static void setUpClass() {}
+
+  @AfterClass
+  public static void tearDownClass() {}
+
+  @Before
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(THREADS);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testConcurrentEvaluate() throws Exception {
+    SharedXPathExpression expression = new SharedXPathExpression("/Response/lognumber");
+    List<Future<Integer>> futures = new ArrayList<>();
+
+    for (int t = 0; t < THREADS; t++) {
+      int thread = t;
+      Callable<Integer> task =
+          () -> {
+            int correct = 0;
+
+            for (int i = 0; i < ITERATIONS; i++) {
+              long lognumber = thread * ITERATIONS + i;
+              Document doc = parse(FakeLogbookServer.ok(lognumber));
+              Object actual = expression.evaluate(doc, XPathConstants.STRING);
+
+              if (String.valueOf(lognumber).equals(actual)) {
+                correct++;
+              }
+            }
+
+            return correct;
+          };
+
+      futures.add(executor.submit(task));
+    }
+
+    for (Future<Integer> future : futures) {
+      assertEquals(Integer.valueOf(ITERATIONS), future.get());
+    }
+  }
+
+  @Test(expected = LogRuntimeException.class)
+  public void testMalformedExpression() {
+    new SharedXPathExpression("/Response[");
+  }
+
+  private static Document parse(String xml) throws Exception {
+    return LogItem.getDocumentBuilder()
+        .parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+  }
+}
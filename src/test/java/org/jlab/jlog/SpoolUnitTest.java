@@ -0,0 +1,222 @@
+package org.jlab.jlog;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Properties;
+import org.jlab.jlog.exception.SubmissionRejectedException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Spool JUnit tests.
+ *
+ * @author ryans
+ */
+public class SpoolUnitTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private Properties saved;
+  private Properties config;
+  private File spoolDir;
+  private File queueDir;
+  private Spool spool;
+
+  public SpoolUnitTest() {}
+
+  @BeforeClass
+  public static void setUpClass() {}
+
+  @AfterClass
+  public static void tearDownClass() {}
+
+  @Before
+  public void setUp() throws Exception {
+    saved = Library.getConfiguration();
+    config = new Properties(saved);
+    Library.setConfiguration(config);
+
+    config.setProperty("SUBMIT_RETRY_MAX_ATTEMPTS", "1");
+
+    spoolDir = folder.newFolder("spool");
+    queueDir = folder.newFolder("queue");
+    config.setProperty("QUEUE_PATH", queueDir.getPath());
+
+    // Not started, so items are only forwarded when the test calls forward
+    spool = new Spool(spoolDir.getPath(), 60000);
+  }
+
+  @After
+  public void tearDown() {
+    Library.shutdown();
+    Library.setConfiguration(saved);
+  }
+
+  @Test
+  public void testForwardToQueue() throws Exception {
+    spool.put(new LogEntry("Testing 123", "TLOG"));
+
+    File[] spooled = list(spoolDir);
+    assertEquals(1, spooled.length);
+
+    assertEquals(1, spool.forward());
+
+    assertEquals(0, list(spoolDir).length);
+    assertTrue(new File(queueDir, spooled[0].getName()).exists());
+  }
+
+  @Test
+  public void testForwardToServerIfQueueUnwritable() throws Exception {
+    config.setProperty("QUEUE_PATH", folder.newFile("not-a-directory").getPath());
+    spool.put(new LogEntry("Testing 123", "TLOG"));
+
+    try (FakeLogbookServer server = new FakeLogbookServer()) {
+      server.configure(config);
+
+      assertEquals(1, spool.forward());
+      assertEquals(1, server.getRequests().size());
+    }
+
+    assertEquals(0, list(spoolDir).length);
+  }
+
+  @Test
+  public void testKeptIfNotForwarded() throws Exception {
+    config.setProperty("QUEUE_PATH", folder.newFile("not-a-directory").getPath());
+    spool.put(new LogEntry("Testing 1", "TLOG"));
+    spool.put(new LogEntry("Testing 2", "TLOG"));
+
+    try (FakeLogbookServer server = new FakeLogbookServer()) {
+      server.configure(config);
+      server.setStatus(503);
+
+      assertEquals(0, spool.forward());
+
+      // An item which cannot be forwarded does not hold up the ones behind it
+      assertEquals(2, server.getRequests().size());
+    }
+
+    assertEquals(2, list(spoolDir).length);
+  }
+
+  @Test
+  public void testUnparseableMovedToFailed() throws Exception {
+    File garbage = new File(spoolDir, "0000.xml");
+    Files.write(garbage.toPath(), "<Logentry>".getBytes(StandardCharsets.UTF_8));
+    spool.put(new LogEntry("Testing 1", "TLOG"));
+
+    assertEquals(1, spool.forward());
+
+    assertEquals(0, list(spoolDir).length);
+    assertTrue(new File(new File(spoolDir, ".failed"), garbage.getName()).exists());
+    assertEquals(1, list(queueDir).length);
+  }
+
+  @Test
+  public void testRejectedMovedToFailed() throws Exception {
+    config.setProperty("QUEUE_PATH", folder.newFile("not-a-directory").getPath());
+    spool.put(new LogEntry("Testing 1", "TLOG"));
+    spool.put(new LogEntry("Testing 2", "TLOG"));
+
+    try (FakeLogbookServer server = new FakeLogbookServer()) {
+      server.configure(config);
+      server.setResponder(
+          request ->
+              request.contains("Testing 1")
+                  ? FakeLogbookServer.fail("Invalid")
+                  : FakeLogbookServer.ok(1234));
+
+      assertEquals(1, spool.forward());
+      assertEquals(2, server.getRequests().size());
+    }
+
+    assertEquals(0, list(spoolDir).length);
+    assertEquals(1, list(new File(spoolDir, ".failed")).length);
+  }
+
+  @Test
+  public void testNewerRevisionWaitsForOlder() throws Exception {
+    config.setProperty("QUEUE_PATH", folder.newFile("not-a-directory").getPath());
+    config.setProperty("SUBMIT_RETRY_ON", SubmissionRejectedException.class.getName());
+
+    LogEntry first = new LogEntry("Testing 1", "TLOG");
+    first.setLogNumber(1234);
+    spool.put(first);
+
+    LogEntry second = new LogEntry("Testing 2", "TLOG");
+    second.setLogNumber(1234);
+    spool.put(second);
+
+    spool.put(new LogEntry("Testing 3", "TLOG"));
+
+    try (FakeLogbookServer server = new FakeLogbookServer()) {
+      server.configure(config);
+      server.setResponder(
+          request ->
+              request.contains("Testing 1")
+                  ? FakeLogbookServer.fail("Try later")
+                  : FakeLogbookServer.ok(5678));
+
+      assertEquals(1, spool.forward());
+
+      List<String> requests = server.getRequests();
+      assertEquals(2, requests.size());
+      assertTrue(requests.get(1).contains("Testing 3"));
+    }
+
+    assertEquals(2, list(spoolDir).length);
+  }
+
+  @Test
+  public void testNotBoundedByQueueLimits() throws Exception {
+    config.setProperty("QUEUE_MAX_ITEMS", "1");
+    config.setProperty("QUEUE_OVERFLOW_POLICY", "REJECT");
+
+    spool.put(new LogEntry("Testing 1", "TLOG"));
+    spool.put(new LogEntry("Testing 2", "TLOG"));
+    spool.put(new LogEntry("Testing 3", "TLOG"));
+
+    assertEquals(3, list(spoolDir).length);
+
+    // The queue limits apply on forwarding; what the queue has no room for goes to the server
+    try (FakeLogbookServer server = new FakeLogbookServer()) {
+      server.configure(config);
+
+      assertEquals(3, spool.forward());
+      assertEquals(2, server.getRequests().size());
+    }
+
+    assertEquals(1, list(queueDir).length);
+    assertEquals(0, list(spoolDir).length);
+  }
+
+  @Test
+  public void testCoalesceKeepsNewestRevision() throws Exception {
+    config.setProperty("QUEUE_COALESCE", "true");
+
+    LogEntry first = new LogEntry("Testing 1", "TLOG");
+    first.setLogNumber(1234);
+    spool.put(first);
+
+    LogEntry second = new LogEntry("Testing 2", "TLOG");
+    second.setLogNumber(1234);
+    spool.put(second);
+
+    File[] spooled = list(spoolDir);
+    assertEquals(1, spooled.length);
+    assertEquals("Testing 2", ((LogEntry) LogEntry.readQueuedItem(spooled[0])).getTitle());
+  }
+
+  private static File[] list(File dir) {
+    return dir.listFiles((d, name) -> name.endsWith(".xml") && !name.startsWith("."));
+  }
+}